@@ -0,0 +1,203 @@
+package org.matsim.routing.ph;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.StreamObserver;
+import org.matsim.analysis.replay.RequestTrace;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.router.RoutingRequest;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import routing.Routing;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the stages of a routing request in process, without gRPC transport. By default, the pt-tutorial scenario is
+ * used. A larger scenario is benchmarked with
+ * <pre>
+ * java -cp $JAR org.matsim.routing.ph.RoutingBenchmark -p config=berlin.config.xml -p requests=requests.trace
+ * </pre>
+ * where the requests are sampled from a request trace. The GC profiler is always enabled, so allocation rates are reported
+ * next to the timings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-XX:+UseG1GC", "-Dmatsim.preferLocalDtds=true"})
+public class RoutingBenchmark {
+    static final String PT_TUTORIAL = "pt-tutorial";
+
+    /**
+     * Path to a config, or {@value PT_TUTORIAL}.
+     */
+    @Param({PT_TUTORIAL})
+    String config;
+
+    /**
+     * Request trace to sample the requests from. Empty for the pt-tutorial requests.
+     */
+    @Param({""})
+    String requests;
+
+    @Param({"1000"})
+    int maxRequests;
+
+    private RoutingServicePH service;
+    private RoutingServicePH primitive;
+    private Routing.Request[] protoRequests;
+    private RoutingRequest[] raptorRequests;
+    private List<List<? extends PlanElement>> routes;
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(RoutingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Config cfg;
+        if (PT_TUTORIAL.equals(config)) {
+            cfg = ConfigUtils.loadConfig(IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL(PT_TUTORIAL), "0.config.xml"));
+        } else {
+            cfg = ConfigUtils.loadConfig(config);
+        }
+        cfg.controller().setOutputDirectory(System.getProperty("java.io.tmpdir") + "/routing-benchmark");
+
+        service = RoutingServicePH.Factory.builder(cfg).build().create();
+        primitive = RoutingServicePH.Factory.builder(cfg).engine(RoutingServicePH.Engine.PRIMITIVE).build().create();
+
+        protoRequests = requests.isEmpty() ? tutorialRequests() : sample(RequestTrace.open(Path.of(requests)), maxRequests);
+        raptorRequests = new RoutingRequest[protoRequests.length];
+        routes = new ArrayList<>(protoRequests.length);
+        for (int i = 0; i < protoRequests.length; i++) {
+            raptorRequests[i] = RoutingServicePH.createRaptorRequest(protoRequests[i]);
+            routes.add(service.raptor().calcRoute(raptorRequests[i]));
+        }
+    }
+
+    /**
+     * Round-robin position in the requests, per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int i = -1;
+
+        int next(int n) {
+            i = i + 1 == n ? 0 : i + 1;
+            return i;
+        }
+    }
+
+    /**
+     * The Raptor request creates its facilities lazily, so they are requested here to include their cost.
+     */
+    @Benchmark
+    public void createRaptorRequest(Cursor cursor, Blackhole bh) {
+        RoutingRequest request = RoutingServicePH.createRaptorRequest(protoRequests[cursor.next(protoRequests.length)]);
+        bh.consume(request.getFromFacility());
+        bh.consume(request.getToFacility());
+    }
+
+    @Benchmark
+    public List<? extends PlanElement> calcRoute(Cursor cursor) {
+        return service.raptor().calcRoute(raptorRequests[cursor.next(raptorRequests.length)]);
+    }
+
+    /**
+     * Search of the primitive engine, which includes the conversion to the response.
+     */
+    @Benchmark
+    public Routing.Response primitiveRoute(Cursor cursor) {
+        return primitive.route(protoRequests[cursor.next(protoRequests.length)]);
+    }
+
+    @Benchmark
+    public Routing.Response convertToProtoResponse(Cursor cursor) {
+        int i = cursor.next(routes.size());
+        return service.convertToProtoResponse(routes.get(i), protoRequests[i].getRequestId());
+    }
+
+    /**
+     * All stages of a request, run inline on the benchmark thread.
+     */
+    @Benchmark
+    public void getRoute(Cursor cursor, Blackhole bh) {
+        service.getRoute(protoRequests[cursor.next(protoRequests.length)], new StreamObserver<>() {
+            @Override
+            public void onNext(Routing.Response value) {
+                bh.consume(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new IllegalStateException(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+    }
+
+    /**
+     * The request of {@code RoutingServerPHTest} at departure times spread over the morning.
+     */
+    private static Routing.Request[] tutorialRequests() {
+        Routing.Request[] res = new Routing.Request[10];
+        for (int i = 0; i < res.length; i++) {
+            int departure = 27126 + i * 600;
+            res[i] = Routing.Request.newBuilder()
+                    .setPersonId("1")
+                    .setFromLinkId("1112")
+                    .setFrom(Routing.Coordinate.newBuilder().setX(1000).setY(1500))
+                    .setToLinkId("4142")
+                    .setTo(Routing.Coordinate.newBuilder().setX(4000).setY(1500))
+                    .setMode("pt")
+                    .setDepartureTimeNs(RoutingServicePH.sToNs(departure))
+                    .setNowNs(RoutingServicePH.sToNs(departure - 600))
+                    .setRequestId(ByteString.copyFromUtf8(String.valueOf(i)))
+                    .build();
+        }
+        return res;
+    }
+
+    /**
+     * Reservoir sample of the trace with a fixed seed, so that every run sees the same requests.
+     */
+    private static Routing.Request[] sample(RequestTrace trace, int n) {
+        Random random = new Random(4711);
+        List<Routing.Request> res = new ArrayList<>(n);
+        long seen = 0;
+        for (int second = 0; second < trace.endTime(); second++) {
+            for (Routing.Request request : trace.requestsAt(second)) {
+                seen++;
+                if (res.size() < n) {
+                    res.add(request);
+                } else {
+                    long j = (long) (random.nextDouble() * seen);
+                    if (j < n) {
+                        res.set((int) j, request);
+                    }
+                }
+            }
+        }
+        return res.toArray(Routing.Request[]::new);
+    }
+}
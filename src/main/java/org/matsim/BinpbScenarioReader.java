@@ -0,0 +1,190 @@
+package org.matsim;
+
+import network.NetworkOuterClass;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.Vehicle;
+import pt.TransitScheduleOuterClass;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds the MATSim network and transit schedule from the binary protobuf files written by the Rust
+ * {@code convert_to_binary} tool, so that the Java and the Rust side start from the same preprocessed inputs. The files are
+ * found by the run id prefix of the converter, e.g. {@code binpb/berlin-v6.4-1pct}:
+ * {@code <prefix>.ids.binpb}, {@code <prefix>.network.binpb} and {@code <prefix>.transit-schedule.binpb}. Instead of
+ * {@code <prefix>.network.binpb}, the network may be one partitioned by {@code convert-network},
+ * {@code <prefix>.network.<partitions>.binpb}; the partitions are ignored.
+ */
+public final class BinpbScenarioReader {
+    private static final Logger log = LogManager.getLogger(BinpbScenarioReader.class);
+
+    private final Path prefix;
+    private final IdStore ids;
+
+    public BinpbScenarioReader(Path prefix) {
+        this.prefix = prefix;
+        this.ids = IdStore.load(file("ids"));
+    }
+
+    /**
+     * Adds the network and the transit schedule to the scenario, which should have been loaded without them.
+     */
+    public void read(Scenario scenario) {
+        readNetwork(scenario.getNetwork());
+        if (Files.exists(file("transit-schedule"))) {
+            readTransitSchedule(scenario.getTransitSchedule());
+        } else {
+            log.warn("No transit schedule at {}", file("transit-schedule"));
+        }
+    }
+
+    public void readNetwork(Network network) {
+        Path path = networkFile();
+        log.info("Reading network {}", path);
+        NetworkOuterClass.Network proto;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            proto = NetworkOuterClass.Network.parseFrom(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + path, e);
+        }
+
+        long nodeType = IdStoreDeserializer.typeId(Node.class);
+        long linkType = IdStoreDeserializer.typeId(Link.class);
+        long stringType = IdStoreDeserializer.typeId(String.class);
+
+        network.setEffectiveCellSize(proto.getEffectiveCellSize());
+        network.setCapacityPeriod(3600);
+        NetworkFactory factory = network.getFactory();
+
+        List<Node> nodes = new ArrayList<>(proto.getNodesCount());
+        for (NetworkOuterClass.Node n : proto.getNodesList()) {
+            Node node = factory.createNode(Id.createNodeId(ids.get(nodeType, (int) n.getId())), new Coord(n.getX(), n.getY()));
+            network.addNode(node);
+            setAt(nodes, (int) n.getId(), node);
+        }
+
+        for (NetworkOuterClass.Link l : proto.getLinksList()) {
+            Link link = factory.createLink(Id.createLinkId(ids.get(linkType, (int) l.getId())), nodes.get((int) l.getFrom()), nodes.get((int) l.getTo()));
+            link.setLength(l.getLength());
+            link.setCapacity(l.getCapacity());
+            link.setFreespeed(l.getFreespeed());
+            link.setNumberOfLanes(l.getPermlanes());
+            Set<String> modes = new HashSet<>();
+            for (long mode : l.getModesList()) {
+                modes.add(ids.get(stringType, (int) mode));
+            }
+            link.setAllowedModes(modes);
+            network.addLink(link);
+        }
+        log.info("Read {} nodes and {} links", network.getNodes().size(), network.getLinks().size());
+    }
+
+    public void readTransitSchedule(TransitSchedule schedule) {
+        Path path = file("transit-schedule");
+        log.info("Reading transit schedule {}", path);
+        TransitScheduleOuterClass.TransitSchedule proto;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            proto = TransitScheduleOuterClass.TransitSchedule.parseFrom(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + path, e);
+        }
+
+        long linkType = IdStoreDeserializer.typeId(Link.class);
+        long vehicleType = IdStoreDeserializer.typeId(Vehicle.class);
+        long stringType = IdStoreDeserializer.typeId(String.class);
+        TransitScheduleFactory factory = schedule.getFactory();
+
+        for (TransitScheduleOuterClass.TransitStopFacility s : proto.getStopFacilitiesList()) {
+            TransitStopFacility stop = factory.createTransitStopFacility(
+                    Id.create(ids.get(stringType, (int) s.getId()), TransitStopFacility.class), new Coord(s.getX(), s.getY()), s.getIsBlocking());
+            stop.setLinkId(Id.createLinkId(ids.get(linkType, (int) s.getLinkId())));
+            schedule.addStopFacility(stop);
+        }
+
+        int routes = 0;
+        for (TransitScheduleOuterClass.TransitLine l : proto.getLinesList()) {
+            TransitLine line = factory.createTransitLine(Id.create(ids.get(stringType, (int) l.getId()), TransitLine.class));
+            for (TransitScheduleOuterClass.TransitRoute r : l.getRoutesList()) {
+                List<TransitRouteStop> stops = new ArrayList<>(r.getStopsCount());
+                for (TransitScheduleOuterClass.TransitRouteStop rs : r.getStopsList()) {
+                    TransitStopFacility stop = schedule.getFacilities().get(Id.create(ids.get(stringType, (int) rs.getStopFacilityId()), TransitStopFacility.class));
+                    TransitRouteStop routeStop = factory.createTransitRouteStop(stop, rs.getArrivalOffset(), rs.getDepartureOffset());
+                    routeStop.setAwaitDepartureTime(rs.getAwaitDeparture());
+                    stops.add(routeStop);
+                }
+
+                List<Id<Link>> links = new ArrayList<>(r.getRouteCount());
+                for (long link : r.getRouteList()) {
+                    links.add(Id.createLinkId(ids.get(linkType, (int) link)));
+                }
+                NetworkRoute networkRoute = links.isEmpty() ? null : RouteUtils.createNetworkRoute(links);
+
+                TransitRoute route = factory.createTransitRoute(Id.create(ids.get(stringType, (int) r.getId()), TransitRoute.class),
+                        networkRoute, stops, ids.get(stringType, (int) r.getTransportMode()));
+                for (TransitScheduleOuterClass.Departure d : r.getDeparturesList()) {
+                    Departure departure = factory.createDeparture(Id.create(ids.get(stringType, (int) d.getId()), Departure.class), d.getDepartureTime());
+                    departure.setVehicleId(Id.create(ids.get(vehicleType, (int) d.getVehicleId()), Vehicle.class));
+                    route.addDeparture(departure);
+                }
+                line.addRoute(route);
+                routes++;
+            }
+            schedule.addTransitLine(line);
+        }
+        log.info("Read {} stops, {} lines and {} routes", schedule.getFacilities().size(), schedule.getTransitLines().size(), routes);
+    }
+
+    private Path file(String name) {
+        return prefix.resolveSibling(prefix.getFileName() + "." + name + ".binpb");
+    }
+
+    /**
+     * @return the network of the converter, or else the single network partitioned by the Rust {@code convert-network}
+     * tool, {@code <prefix>.network.<partitions>.binpb}
+     */
+    private Path networkFile() {
+        Path path = file("network");
+        if (Files.exists(path)) {
+            return path;
+        }
+        String glob = prefix.getFileName() + ".network.*.binpb";
+        List<Path> partitioned = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.toAbsolutePath().getParent(), glob)) {
+            files.forEach(partitioned::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list " + path.toAbsolutePath().getParent(), e);
+        }
+        if (partitioned.size() != 1) {
+            throw new IllegalArgumentException("Expected " + path + " or exactly one file matching " + glob + ", found " + partitioned);
+        }
+        return partitioned.getFirst();
+    }
+
+    private static <T> void setAt(List<T> list, int index, T value) {
+        while (list.size() <= index) {
+            list.add(null);
+        }
+        list.set(index, value);
+    }
+}
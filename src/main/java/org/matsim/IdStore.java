@@ -0,0 +1,247 @@
+package org.matsim;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import ids.Ids;
+import net.jpountz.lz4.LZ4FrameInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Id store of the Rust simulation: for each id type, the external string ids in the order of their internal indices.
+ * <p>
+ * The file is memory-mapped and the types are decoded in parallel. The strings of a type are kept as UTF-8 in one byte
+ * arena with offsets, instead of millions of {@link String} objects. The lookup from external id to internal index uses
+ * an open addressing table over the arena, which is built on first use of {@link #indexOf}.
+ */
+public final class IdStore {
+
+    private final Map<Long, Strings> types;
+
+    private IdStore(Map<Long, Strings> types) {
+        this.types = types;
+    }
+
+    /**
+     * Reads a file of length-delimited {@link Ids.IdsWithType} messages.
+     */
+    public static IdStore load(Path path) {
+        List<Ids.IdsWithType> messages = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Id stores above 2 GB are not supported: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // the messages alias the mapped file, nothing is copied until the types are decoded
+            CodedInputStream input = CodedInputStream.newInstance(buffer);
+            input.enableAliasing(true);
+            input.setSizeLimit(Integer.MAX_VALUE);
+            while (!input.isAtEnd()) {
+                int length = input.readRawVarint32();
+                int limit = input.pushLimit(length);
+                messages.add(Ids.IdsWithType.parseFrom(input));
+                input.popLimit(limit);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the id store file: " + path, e);
+        }
+
+        Map<Long, Strings> types = messages.parallelStream()
+                .filter(m -> m.hasRaw() || m.hasLz4Data())
+                .collect(Collectors.toConcurrentMap(Ids.IdsWithType::getTypeId, IdStore::decode));
+        return new IdStore(new TreeMap<>(types));
+    }
+
+    public Set<Long> types() {
+        return types.keySet();
+    }
+
+    /**
+     * @return number of ids of a type, 0 if the type is not in the store
+     */
+    public int size(long type) {
+        Strings strings = types.get(type);
+        return strings == null ? 0 : strings.size();
+    }
+
+    /**
+     * @return the external id of an internal index
+     */
+    public String get(long type, int index) {
+        return strings(type).get(index);
+    }
+
+    /**
+     * @return the internal index of an external id, -1 if it is unknown
+     */
+    public int indexOf(long type, String externalId) {
+        Strings strings = types.get(type);
+        return strings == null ? -1 : strings.indexOf(externalId);
+    }
+
+    /**
+     * @return the external ids of a type as a list view, in the order of the internal indices
+     */
+    public List<String> asList(long type) {
+        Strings strings = types.get(type);
+        return strings == null ? List.of() : strings;
+    }
+
+    /**
+     * @return all types as list views, in the format of {@link IdStoreDeserializer#loadIdStore}
+     */
+    public Map<Long, List<String>> asMap() {
+        Map<Long, List<String>> res = new TreeMap<>();
+        types.forEach(res::put);
+        return res;
+    }
+
+    private Strings strings(long type) {
+        Strings strings = types.get(type);
+        if (strings == null) {
+            throw new IllegalArgumentException("Type " + type + " not in id store");
+        }
+        return strings;
+    }
+
+    private static Strings decode(Ids.IdsWithType message) {
+        ByteBuffer data;
+        if (message.hasRaw()) {
+            data = message.getRaw().asReadOnlyByteBuffer();
+        } else {
+            data = ByteBuffer.wrap(decompressLz4(message.getLz4Data()));
+        }
+
+        // the strings are at most as long as the data, which includes their length prefixes
+        byte[] arena = new byte[data.remaining()];
+        int[] offsets = new int[64];
+        int n = 0;
+        int pos = 0;
+        while (data.hasRemaining()) {
+            int length = readVarint(data);
+            data.get(arena, pos, length);
+            if (n + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            pos += length;
+            offsets[++n] = pos;
+        }
+        return new Strings(Arrays.copyOf(arena, pos), Arrays.copyOf(offsets, n + 1));
+    }
+
+    private static byte[] decompressLz4(ByteString compressed) {
+        try (InputStream in = new LZ4FrameInputStream(compressed.newInput())) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decompress ids", e);
+        }
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("Malformed string length in id store");
+    }
+
+    /**
+     * The ids of one type: UTF-8 bytes of all ids in one arena, id i spans offsets[i] until offsets[i + 1].
+     */
+    private static final class Strings extends AbstractList<String> implements RandomAccess {
+        private final byte[] arena;
+        private final int[] offsets;
+
+        // open addressing table of index + 1, 0 marks a free slot
+        private volatile int[] table;
+
+        Strings(byte[] arena, int[] offsets) {
+            this.arena = arena;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public int size() {
+            return offsets.length - 1;
+        }
+
+        @Override
+        public String get(int index) {
+            Objects.checkIndex(index, size());
+            return new String(arena, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            if (!(o instanceof String s)) {
+                return -1;
+            }
+            byte[] key = s.getBytes(StandardCharsets.UTF_8);
+            int[] t = table();
+            int mask = t.length - 1;
+            for (int slot = hash(key, 0, key.length) & mask; t[slot] != 0; slot = (slot + 1) & mask) {
+                int i = t[slot] - 1;
+                if (Arrays.equals(arena, offsets[i], offsets[i + 1], key, 0, key.length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+
+        private int[] table() {
+            int[] t = table;
+            if (t == null) {
+                synchronized (this) {
+                    t = table;
+                    if (t == null) {
+                        t = buildTable();
+                        table = t;
+                    }
+                }
+            }
+            return t;
+        }
+
+        private int[] buildTable() {
+            int[] t = new int[Integer.highestOneBit(Math.max(2, size() * 2 - 1)) << 1];
+            int mask = t.length - 1;
+            for (int i = 0; i < size(); i++) {
+                int slot = hash(arena, offsets[i], offsets[i + 1]) & mask;
+                while (t[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                t[slot] = i + 1;
+            }
+            return t;
+        }
+
+        private static int hash(byte[] bytes, int from, int to) {
+            int h = 1;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + bytes[i];
+            }
+            // spread the bits, since the table is indexed by the lower ones
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -1,15 +1,14 @@
 package org.matsim;
-import com.google.protobuf.CodedInputStream;
-import net.jpountz.lz4.LZ4FrameInputStream;
+import ids.Ids;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.vehicles.Vehicle;
 import org.matsim.vehicles.VehicleType;
 
-import java.io.*;
 import java.nio.file.Path;
-import java.util.*;
+import java.util.List;
+import java.util.Map;
 
 public class IdStoreDeserializer {
     public static final Map<Long, Class> TYPE_ID_TO_CLASS = Map.of(
@@ -25,62 +24,26 @@ public class IdStoreDeserializer {
             10L, Float.class
     );
 
-//    // This method reads a file containing serialized Ids.IdsWithType messages.
-//    // In Rust, all messages are written one after another, with a length prefix for each message.
-//    public static Map<Long, List<String>> loadIdStore(Path path) {
-//        Map<Long, List<String>> idStore = new HashMap<>();
-//
-//        File file = path.toFile();
-//        try (InputStream input = new FileInputStream(file)) {
-//            CodedInputStream protoInputStream = CodedInputStream.newInstance(input);
-//
-//            while (!protoInputStream.isAtEnd()) {
-//                // This line is important: it reads the length of the next message
-//                int length = protoInputStream.readRawVarint32();
-//
-//                // Read the raw bytes of the message based on the length
-//                byte[] messageBytes = protoInputStream.readRawBytes(length);
-//
-//                Ids.IdsWithType idsWithType = Ids.IdsWithType.parseFrom(messageBytes);
-//                long typeId = idsWithType.getTypeId();
-//
-//                byte[] data;
-//                if (idsWithType.hasRaw()) {
-//                    data = idsWithType.getRaw().toByteArray();
-//                } else if (idsWithType.hasLz4Data()) {
-//                    data = decompressLz4(idsWithType.getLz4Data().toByteArray());
-//                } else {
-//                    continue; // skip if no data
-//                }
-//
-//                List<String> externalIds = decodeStringsFromBytes(data);
-//                idStore.put(typeId, externalIds);
-//            }
-//        } catch (IOException e) {
-//            throw new RuntimeException("Failed to read or parse the id store file: " + path, e);
-//        }
-//
-//        return idStore;
-//    }
-//
-//    private static byte[] decompressLz4(byte[] compressed) throws IOException {
-//        try (InputStream in = new LZ4FrameInputStream(new ByteArrayInputStream(compressed));
-//             ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-//            in.transferTo(out);
-//            return out.toByteArray();
-//        }
-//    }
-//
-//    private static List<String> decodeStringsFromBytes(byte[] bytes) throws IOException {
-//        List<String> strings = new ArrayList<>();
-//        CodedInputStream cis = CodedInputStream.newInstance(bytes);
-//
-//        while (!cis.isAtEnd()) {
-//            strings.add(cis.readString());
-//        }
-//
-//        return strings;
-//    }
-//
+    /**
+     * Reads a file containing serialized {@link Ids.IdsWithType} messages. In Rust, all messages are written one after
+     * another, with a length prefix for each message. See {@link IdStore} for lookups in both directions.
+     *
+     * @return the external ids per type id, the index in the list is the internal id.
+     */
+    public static Map<Long, List<String>> loadIdStore(Path path) {
+        return IdStore.load(path).asMap();
+    }
+
+    /**
+     * @return the type id under which the Rust simulation stores ids of the given class.
+     */
+    public static long typeId(Class<?> type) {
+        return TYPE_ID_TO_CLASS.entrySet().stream()
+                .filter(e -> e.getValue().equals(type))
+                .mapToLong(Map.Entry::getKey)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No type id for " + type));
+    }
+
     private static class u32 {}
-}
\ No newline at end of file
+}
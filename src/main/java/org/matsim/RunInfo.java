@@ -0,0 +1,61 @@
+package org.matsim;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Commit, branch and JVM flags of a run. It is stored next to profiling output, so that profiles of different runs can be
+ * told apart when they are compared.
+ */
+public record RunInfo(String commit, String branch, List<String> jvmArgs) {
+
+    private static final String UNKNOWN = "unknown";
+
+    public static RunInfo current() {
+        return new RunInfo(GitInfo.commitHash(), GitInfo.branch(), JVMFlagsReader.getJVMArguments());
+    }
+
+    /**
+     * @return the file holding the run info of the given output file, i.e. {@code <name>.run.properties}.
+     */
+    public static Path sidecar(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return file.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".run.properties");
+    }
+
+    public void write(Path file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("commit", commit);
+        props.setProperty("branch", branch);
+        props.setProperty("jvmArgs", String.join(" ", jvmArgs));
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            props.store(writer, "Run info");
+        }
+    }
+
+    /**
+     * Reads the run info from a sidecar file. Output of older versions has no sidecar; then the commit is taken from the
+     * name of the folder, which is the commit hash, see {@code RoutingServicePH.profilingOutputFile}.
+     */
+    public static RunInfo read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            Path parent = file.toAbsolutePath().getParent();
+            return new RunInfo(parent == null ? UNKNOWN : parent.getFileName().toString(), UNKNOWN, List.of());
+        }
+
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            props.load(reader);
+        }
+        String args = props.getProperty("jvmArgs", "");
+        return new RunInfo(props.getProperty("commit", UNKNOWN), props.getProperty("branch", UNKNOWN),
+                args.isBlank() ? List.of() : Arrays.asList(args.split(" ")));
+    }
+}
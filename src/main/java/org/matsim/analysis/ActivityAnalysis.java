@@ -2,21 +2,43 @@ package org.matsim.analysis;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Leg;
 import org.matsim.api.core.v01.population.Person;
-import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PlanElement;
 import org.matsim.application.MATSimAppCommand;
-import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
 import picocli.CommandLine;
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
-
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the experienced plans of a Java and a Rust run. Both plan files are streamed in parallel and joined by person id
+ * and plan element index as the persons arrive, so only persons seen in one file but not yet in the other are kept, and only
+ * as a compact summary.
+ * <p>
+ * Next to the legs and activities of each run, the joined elements and per mode and per activity type statistics of the
+ * differences are written as gzipped CSV. {@code pandas.read_csv} reads them directly, for parquet see
+ * {@code src/main/python/scripts/convert_csv_parquet.py}.
+ */
 public class ActivityAnalysis implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(ActivityAnalysis.class);
+
     @CommandLine.Option(names = "--base", description = "Path to plans file")
     private String basePlans = "/Users/paulh/Documents/run-archive/20260213/output/10pct-no-pt/berlin-v6.4.output_experienced_plans.xml.gz";
 
@@ -26,97 +48,184 @@ public class ActivityAnalysis implements MATSimAppCommand {
     @CommandLine.Option(names = "--output")
     private String output = "/Users/paulh/Documents/run-archive/20260213/output/";
 
+    private final Map<Id<Person>, List<Element>> pendingBase = new HashMap<>();
+    private final Map<Id<Person>, List<Element>> pendingRust = new HashMap<>();
+    private final Map<String, DiffStats> stats = new TreeMap<>();
+    private int maxPending;
+    private long joined;
+    private long mismatchedElements;
+
     public static void main(String[] args) {
         new ActivityAnalysis().execute(args);
     }
 
     @Override
     public Integer call() throws Exception {
-        Population population = PopulationUtils.readPopulation(basePlans);
-        Population rustPopulation = PopulationUtils.readPopulation(rustPlans);
-
-//        if (population.getPersons().size() - 6 != rustPopulation.getPersons().size()) {
-//            throw new RuntimeException("Number of persons does not match number of rust plans.");
-//        }
-
-        List<LegEntry> baseLegs = new LinkedList<>();
-        List<LegEntry> rustLegs = new LinkedList<>();
-        List<ActivityEntry> baseActs = new LinkedList<>();
-        List<ActivityEntry> rustActs = new LinkedList<>();
-
-        fillEntries(population, baseLegs, baseActs);
-        fillEntries(rustPopulation, rustLegs, rustActs);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CompletionService<Void> readers = new ExecutorCompletionService<>(executor);
+        try (CSVPrinter legs = printer("comparison_legs.csv.gz", "personId", "index", "mode", "rustMode", "baseDepTime", "rustDepTime", "baseTravelTime", "rustTravelTime");
+             CSVPrinter acts = printer("comparison_activities.csv.gz", "personId", "index", "type", "rustType", "baseStartTime", "rustStartTime", "baseEndTime", "rustEndTime")) {
+
+            readers.submit(() -> read(basePlans, "base_", pendingBase, pendingRust, false, legs, acts));
+            readers.submit(() -> read(rustPlans, "rust_", pendingRust, pendingBase, true, legs, acts));
+            try {
+                // in order of completion, so that the first failure is seen while the other reader still runs
+                readers.take().get();
+                readers.take().get();
+            } finally {
+                // the other reader writes to the shared printers, it must stop before they are closed
+                executor.shutdownNow();
+                if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.warn("Plans reader did not stop within one minute");
+                }
+            }
+        }
 
-        writeLegCsv(baseLegs, "base_");
-        writeLegCsv(rustLegs, "rust_");
-        writeActivityCsv(baseActs, "base_");
-        writeActivityCsv(rustActs, "rust_");
+        try (CSVPrinter printer = printer("comparison_stats.csv", "kind", "label", "metric", "count", "mean", "meanAbs", "rmse", "min", "max")) {
+            for (Map.Entry<String, DiffStats> e : stats.entrySet()) {
+                DiffStats s = e.getValue();
+                String[] key = e.getKey().split("\t");
+                printer.printRecord(key[0], key[1], key[2], s.count, s.sum / s.count, s.sumAbs / s.count, Math.sqrt(s.sumSq / s.count), s.min, s.max);
+            }
+        }
 
+        log.info("Joined {} persons, {} elements differ in kind, mode or type. {} persons only in base, {} only in rust. At most {} persons were waiting for their match.",
+                joined, mismatchedElements, pendingBase.size(), pendingRust.size(), maxPending);
         return 0;
     }
 
-    private void writeLegCsv(List<LegEntry> baseLegs, String prefix) throws IOException {
+    private Void read(String plans, String prefix, Map<Id<Person>, List<Element>> own, Map<Id<Person>, List<Element>> other, boolean isRust,
+                      CSVPrinter legs, CSVPrinter acts) throws IOException {
+        StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
         try (CSVPrinter legsPrinter = new CSVPrinter(
                 new FileWriter(output + prefix + "legs.csv"),
                 CSVFormat.DEFAULT.builder()
                         .setHeader("personId", "index", "mode", "routingMode", "startTime", "baseTravelTime")
-                        .build())) {
-
-            for (LegEntry baseLeg : baseLegs) {
-                legsPrinter.printRecord(
-                        baseLeg.personId().toString(),
-                        baseLeg.elementIndex(),
-                        baseLeg.mode(),
-                        baseLeg.routingMode(),
-                        baseLeg.startTime(),
-                        baseLeg.travelTime()
-                );
-            }
+                        .build());
+             CSVPrinter actsPrinter = new CSVPrinter(
+                     new FileWriter(output + prefix + "activities.csv"),
+                     CSVFormat.DEFAULT.builder()
+                             .setHeader("personId", "index", "type", "maxDur", "startTime", "endTime")
+                             .build())) {
+
+            reader.addAlgorithm(person -> {
+                // the parser does not react to interrupts, stop at the next person
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Reading " + plans + " was cancelled");
+                }
+                try {
+                    List<Element> elements = summarize(person, legsPrinter, actsPrinter);
+                    join(person.getId(), elements, own, other, isRust, legs, acts);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            log.info("Reading {}", plans);
+            reader.readFile(plans);
         }
+        return null;
     }
 
-    private void writeActivityCsv(List<ActivityEntry> baseActs, String prefix) throws IOException {
-        try (CSVPrinter actsPrinter = new CSVPrinter(
-                new FileWriter(output + prefix + "activities.csv"),
-                CSVFormat.DEFAULT.builder()
-                        .setHeader("personId", "index", "type", "maxDur", "startTime", "endTime")
-                        .build())) {
-
-            for (ActivityEntry baseAct : baseActs) {
-                actsPrinter.printRecord(
-                        baseAct.personId().toString(),
-                        baseAct.elementIndex(),
-                        baseAct.type(),
-                        baseAct.max_dur(),
-                        baseAct.start(),
-                        baseAct.end()
-                );
+    private static List<Element> summarize(Person person, CSVPrinter legsPrinter, CSVPrinter actsPrinter) throws IOException {
+        List<PlanElement> planElements = person.getSelectedPlan().getPlanElements();
+        List<Element> res = new ArrayList<>(planElements.size());
+        for (int i = 0; i < planElements.size(); i++) {
+            if (planElements.get(i) instanceof Leg leg) {
+                double dep = leg.getDepartureTime().orElse(Double.NaN);
+                double travelTime = leg.getTravelTime().orElse(Double.NaN);
+                legsPrinter.printRecord(person.getId().toString(), i, leg.getMode(), leg.getRoutingMode(), dep, travelTime);
+                res.add(new Element(true, leg.getMode(), dep, travelTime));
+            } else if (planElements.get(i) instanceof Activity activity) {
+                double start = activity.getStartTime().orElse(Double.NaN);
+                double end = activity.getEndTime().orElse(Double.NaN);
+                actsPrinter.printRecord(person.getId().toString(), i, activity.getType(),
+                        activity.getMaximumDuration().orElse(Double.NaN), start, end);
+                res.add(new Element(false, activity.getType(), start, end));
             }
         }
+        return res;
     }
 
-    private static void fillEntries(Population population, List<LegEntry> baseLegs, List<ActivityEntry> baseActs) {
-        for (Person person : population.getPersons().values()) {
-            for (int i = 0; i < person.getSelectedPlan().getPlanElements().size(); i++) {
-                if (person.getSelectedPlan().getPlanElements().get(i) instanceof Leg leg) {
-                    var entry = new LegEntry(i, person.getId(), leg.getMode(), leg.getRoutingMode(),
-                            leg.getDepartureTime().seconds(), leg.getTravelTime().seconds());
-                    baseLegs.add(entry);
-                } else if (person.getSelectedPlan().getPlanElements().get(i) instanceof Activity activity) {
-                    var entry = new ActivityEntry(i, person.getId(), activity.getType(),
-                            activity.getMaximumDuration().orElse(Double.NaN),
-                            activity.getStartTime().orElse(Double.NaN),
-                            activity.getEndTime().orElse(Double.NaN));
-                    baseActs.add(entry);
+    /**
+     * Compares the person with its counterpart from the other file, if that has been read already. Otherwise, the person
+     * waits for it.
+     */
+    private synchronized void join(Id<Person> id, List<Element> elements, Map<Id<Person>, List<Element>> own,
+                                   Map<Id<Person>, List<Element>> other, boolean isRust, CSVPrinter legs, CSVPrinter acts) throws IOException {
+        List<Element> match = other.remove(id);
+        if (match == null) {
+            own.put(id, elements);
+            maxPending = Math.max(maxPending, own.size());
+            return;
+        }
+
+        List<Element> base = isRust ? match : elements;
+        List<Element> rust = isRust ? elements : match;
+        joined++;
+
+        int n = Math.min(base.size(), rust.size());
+        mismatchedElements += Math.max(base.size(), rust.size()) - n;
+        for (int i = 0; i < n; i++) {
+            Element b = base.get(i);
+            Element r = rust.get(i);
+            if (b.isLeg() != r.isLeg() || !b.label().equals(r.label())) {
+                mismatchedElements++;
+            }
+
+            if (b.isLeg() && r.isLeg()) {
+                legs.printRecord(id.toString(), i, b.label(), r.label(), b.start(), r.start(), b.value(), r.value());
+                if (b.label().equals(r.label())) {
+                    add("leg", b.label(), "departureTime", r.start() - b.start());
+                    add("leg", b.label(), "travelTime", r.value() - b.value());
+                }
+            } else if (!b.isLeg() && !r.isLeg()) {
+                acts.printRecord(id.toString(), i, b.label(), r.label(), b.start(), r.start(), b.value(), r.value());
+                if (b.label().equals(r.label())) {
+                    add("activity", b.label(), "startTime", r.start() - b.start());
+                    add("activity", b.label(), "endTime", r.value() - b.value());
+                    add("activity", b.label(), "duration", (r.value() - r.start()) - (b.value() - b.start()));
                 }
             }
         }
     }
 
-    record LegEntry(int elementIndex, Id<Person> personId, String mode, String routingMode, double startTime,
-                    double travelTime) {
+    private void add(String kind, String label, String metric, double diff) {
+        // first and last activities have no start or end time
+        if (Double.isNaN(diff)) {
+            return;
+        }
+        stats.computeIfAbsent(kind + "\t" + label + "\t" + metric, k -> new DiffStats()).add(diff);
+    }
+
+    private CSVPrinter printer(String file, String... header) throws IOException {
+        return new CSVPrinter(IOUtils.getBufferedWriter(output + file), CSVFormat.DEFAULT.builder().setHeader(header).build());
     }
 
-    record ActivityEntry(int elementIndex, Id<Person> personId, String type, double max_dur, double start, double end) {
+    /**
+     * Compact plan element: a leg with mode, departure and travel time, or an activity with type, start and end time.
+     */
+    record Element(boolean isLeg, String label, double start, double value) {
+    }
+
+    /**
+     * Running statistics of the differences rust - base.
+     */
+    private static final class DiffStats {
+        private long count;
+        private double sum;
+        private double sumAbs;
+        private double sumSq;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+
+        void add(double diff) {
+            count++;
+            sum += diff;
+            sumAbs += Math.abs(diff);
+            sumSq += diff * diff;
+            min = Math.min(min, diff);
+            max = Math.max(max, diff);
+        }
     }
 }
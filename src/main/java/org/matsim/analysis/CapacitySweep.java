@@ -0,0 +1,258 @@
+package org.matsim.analysis;
+
+import com.google.protobuf.Empty;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.replay.LatencyRecorder;
+import org.matsim.analysis.replay.OpenLoopReplay;
+import org.matsim.analysis.replay.RequestTrace;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.routing.ph.RoutingServerPH;
+import picocli.CommandLine;
+import routing.RoutingServiceGrpc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a local {@link RoutingServerPH} for every combination of thread count, JVM flags and server arguments, and replays
+ * a request trace against it at rising offered load. For each configuration, the highest throughput whose latency
+ * percentiles stay within the targets is reported in {@code capacity.csv}; all load steps are in {@code capacity-steps.csv}.
+ */
+@CommandLine.Command(name = "capacity-sweep", description = "Measure the routing capacity of server configurations.")
+public class CapacitySweep implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(CapacitySweep.class);
+
+    @CommandLine.Option(names = "--config", description = "Config of the routing server", required = true)
+    private String config;
+
+    @CommandLine.Option(names = "--localFiles", description = "Passed to the server: use local MATSim files instead of SVN")
+    private boolean localFiles = false;
+
+    @CommandLine.Option(names = "--requestsFile", description = "Request trace to replay, delimited or indexed", required = true)
+    private Path requestsFile;
+
+    @CommandLine.Option(names = "--output", description = "Output folder", defaultValue = "output/capacity-sweep")
+    private Path output;
+
+    @CommandLine.Option(names = "--threads", description = "Routing thread counts to sweep", split = ",", defaultValue = "24,48,96")
+    private List<Integer> threads;
+
+    @CommandLine.Option(names = "--jvm-args", description = "Alternative sets of JVM flags, separated by ';', e.g. '-XX:+UseG1GC;-XX:+UseNUMA'", split = ";", defaultValue = "-XX:+UseG1GC")
+    private List<String> jvmArgs;
+
+    @CommandLine.Option(names = "--server-args", description = "Alternative sets of further server arguments, separated by ';', e.g. '--concurrency FIXED;--concurrency AIMD'", split = ";", defaultValue = "")
+    private List<String> serverArgs;
+
+    @CommandLine.Option(names = "--memory", description = "Heap size of the server", defaultValue = "20G")
+    private String memory;
+
+    @CommandLine.Option(names = "--port", description = "Port of the local server", defaultValue = "50051")
+    private int port;
+
+    @CommandLine.Option(names = "--speedups", description = "Offered loads as multiples of the real time arrival rate of the trace, ascending", split = ",", defaultValue = "10,20,50,100,200,500,1000")
+    private List<Double> speedups;
+
+    @CommandLine.Option(names = "--from", description = "First simulated second of the replayed window", defaultValue = "25200")
+    private int from;
+
+    @CommandLine.Option(names = "--to", description = "Last simulated second of the replayed window (exclusive)", defaultValue = "28800")
+    private int to;
+
+    @CommandLine.Option(names = "--warmup", description = "Simulated seconds replayed at the lowest load before measuring", defaultValue = "600")
+    private int warmup;
+
+    @CommandLine.Option(names = "--p50", description = "Target p50 latency in ms", defaultValue = "5")
+    private double p50;
+
+    @CommandLine.Option(names = "--p90", description = "Target p90 latency in ms", defaultValue = "20")
+    private double p90;
+
+    @CommandLine.Option(names = "--p99", description = "Target p99 latency in ms", defaultValue = "100")
+    private double p99;
+
+    @CommandLine.Option(names = "--timeout", description = "Deadline of a single request in seconds. Requests exceeding it count as errors.", defaultValue = "30")
+    private int timeout;
+
+    public static void main(String[] args) {
+        new CapacitySweep().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        RequestTrace trace = RequestTrace.open(requestsFile);
+        long requestsInWindow = 0;
+        for (int s = from; s < Math.min(to, trace.endTime()); s++) {
+            requestsInWindow += trace.requestsAt(s).size();
+        }
+        log.info("Replaying {} requests between {} s and {} s per load step", requestsInWindow, from, to);
+
+        Files.createDirectories(output);
+        List<Step> steps = new ArrayList<>();
+        List<Step> best = new ArrayList<>();
+
+        for (int t : threads) {
+            for (int j = 0; j < jvmArgs.size(); j++) {
+                for (int a = 0; a < serverArgs.size(); a++) {
+                    ServerConfig server = new ServerConfig("t" + t + "_jvm" + j + "_args" + a, t, jvmArgs.get(j).trim(), serverArgs.get(a).trim());
+                    List<Step> result = sweep(server, trace, requestsInWindow);
+                    steps.addAll(result);
+                    result.stream().filter(Step::ok).reduce((x, y) -> y.throughput() > x.throughput() ? y : x)
+                            .ifPresentOrElse(best::add, () -> best.add(Step.none(server)));
+                    writeTable(output.resolve("capacity-steps.csv"), steps);
+                    writeTable(output.resolve("capacity.csv"), best);
+                }
+            }
+        }
+
+        for (Step step : best) {
+            log.info("{}: max throughput {} req/s (threads {}, jvm args '{}', server args '{}')", step.server().label(),
+                    String.format("%.1f", step.throughput()), step.server().threads(), step.server().jvmArgs(), step.server().args());
+        }
+        return 0;
+    }
+
+    /**
+     * Replays the trace at each offered load until the targets are missed for the first time.
+     */
+    private List<Step> sweep(ServerConfig server, RequestTrace trace, long requestsInWindow) throws Exception {
+        Path dir = output.resolve(server.label());
+        Files.createDirectories(dir);
+        log.info("Starting server {}", server.label());
+
+        Process process = start(server, dir);
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", port).usePlaintext().build();
+        List<Step> res = new ArrayList<>();
+        try {
+            waitForReady(channel, process, Duration.ofMinutes(30));
+            RoutingServiceGrpc.RoutingServiceFutureStub stub = RoutingServiceGrpc.newFutureStub(channel);
+
+            if (warmup > 0) {
+                log.info("Warming up {}", server.label());
+                new OpenLoopReplay(trace, 1 / speedups.getFirst(), from, from + warmup)
+                        .run(r -> stub.withDeadlineAfter(timeout, TimeUnit.SECONDS).getRoute(r));
+            }
+
+            for (double speedup : speedups) {
+                log.info("Replaying at {}x real time against {}", speedup, server.label());
+                long start = System.nanoTime();
+                LatencyRecorder recorder = new OpenLoopReplay(trace, 1 / speedup, from, to)
+                        .run(r -> stub.withDeadlineAfter(timeout, TimeUnit.SECONDS).getRoute(r));
+                double wall = (System.nanoTime() - start) / 1e9;
+                recorder.write(dir, "x" + speedup + "-");
+
+                Histogram h = recorder.getTotal();
+                double offered = requestsInWindow / ((to - from) / speedup);
+                Step step = new Step(server, speedup, offered, h.getTotalCount() / wall, h.getTotalCount(), recorder.getErrors(),
+                        ms(h, 50), ms(h, 90), ms(h, 99), false);
+                step = step.withOk(recorder.getErrors() == 0 && step.p50() <= p50 && step.p90() <= p90 && step.p99() <= p99);
+                res.add(step);
+                log.info("{} at {}x: {} req/s, p50 {} ms, p90 {} ms, p99 {} ms, errors {}, within targets: {}", server.label(), speedup,
+                        String.format("%.1f", step.throughput()), step.p50(), step.p90(), step.p99(), step.errors(), step.ok());
+                if (!step.ok()) {
+                    break;
+                }
+            }
+
+            RoutingServiceGrpc.newBlockingStub(channel).withDeadlineAfter(1, TimeUnit.MINUTES).shutdown(Empty.getDefaultInstance());
+            if (!process.waitFor(2, TimeUnit.MINUTES)) {
+                log.warn("Server {} did not stop after shutdown request", server.label());
+            }
+        } finally {
+            channel.shutdownNow();
+            if (process.isAlive()) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+        return res;
+    }
+
+    private Process start(ServerConfig server, Path dir) throws IOException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-Xmx" + memory);
+        cmd.addAll(split(server.jvmArgs()));
+        cmd.add("-Dmatsim.preferLocalDtds=true");
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(RoutingServerPH.class.getName());
+        cmd.addAll(List.of("--config", config, "--output", dir.resolve("server").toString(), "--threads", String.valueOf(server.threads()),
+                "--port", String.valueOf(port), "--no-profile"));
+        if (localFiles) {
+            cmd.add("--localFiles");
+        }
+        cmd.addAll(split(server.args()));
+
+        log.info("Server command: {}", String.join(" ", cmd));
+        return new ProcessBuilder(cmd)
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server.log").toFile())
+                .start();
+    }
+
+    private static void waitForReady(ManagedChannel channel, Process process, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        ConnectivityState state = channel.getState(true);
+        while (state != ConnectivityState.READY) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Server exited with code " + process.exitValue() + " before it was ready");
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Server did not become READY within " + timeout);
+            }
+            TimeUnit.SECONDS.sleep(1);
+            // the channel backs off after failed connection attempts, so keep asking it to connect
+            state = channel.getState(true);
+        }
+    }
+
+    private static List<String> split(String args) {
+        return args.isBlank() ? List.of() : Arrays.asList(args.trim().split("\\s+"));
+    }
+
+    private static double ms(Histogram h, double percentile) {
+        return h.getValueAtPercentile(percentile) / 1_000_000.;
+    }
+
+    private static void writeTable(Path file, List<Step> steps) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file);
+             CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("label", "threads", "jvm_args", "server_args",
+                     "speedup", "offered_rps", "throughput_rps", "count", "errors", "p50_ms", "p90_ms", "p99_ms", "within_targets").build())) {
+            for (Step s : steps) {
+                csv.printRecord(s.server().label(), s.server().threads(), s.server().jvmArgs(), s.server().args(),
+                        s.speedup(), String.format("%.1f", s.offered()), String.format("%.1f", s.throughput()), s.count(), s.errors(),
+                        String.format("%.3f", s.p50()), String.format("%.3f", s.p90()), String.format("%.3f", s.p99()), s.ok());
+            }
+        }
+    }
+
+    private record ServerConfig(String label, int threads, String jvmArgs, String args) {
+    }
+
+    private record Step(ServerConfig server, double speedup, double offered, double throughput, long count, long errors,
+                        double p50, double p90, double p99, boolean ok) {
+        /**
+         * Placeholder for a configuration that missed the targets already at the lowest load.
+         */
+        static Step none(ServerConfig server) {
+            return new Step(server, 0, 0, 0, 0, 0, Double.NaN, Double.NaN, Double.NaN, false);
+        }
+
+        Step withOk(boolean ok) {
+            return new Step(server, speedup, offered, throughput, count, errors, p50, p90, p99, ok);
+        }
+    }
+}
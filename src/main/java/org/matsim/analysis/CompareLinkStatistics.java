@@ -0,0 +1,187 @@
+package org.matsim.analysis;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.IdStoreDeserializer;
+import org.matsim.analysis.events.BinpbEventsReader;
+import org.matsim.analysis.events.LinkStatistics;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.utils.io.IOUtils;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares flows and travel times per link and time bin of two runs, typically the Java and the Rust QSim on the same
+ * scenario. Both event files are processed concurrently into {@link LinkStatistics}.
+ * <p>
+ * Flows are compared with the GEH statistic on hourly flows, which is commonly used for count comparisons: values above 5
+ * indicate a relevant difference. Travel time distributions are compared per link with the largest distance between the
+ * cumulative histograms (Kolmogorov-Smirnov statistic).
+ */
+public class CompareLinkStatistics implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(CompareLinkStatistics.class);
+
+    @CommandLine.Option(names = "--base", description = "Events of the base run, XML", required = true)
+    private Path baseEvents;
+
+    @CommandLine.Option(names = "--rust", description = "Events of the Rust run, XML or with --id-store a binpb file or folder with events.<rank>.binpb", required = true)
+    private Path rustEvents;
+
+    @CommandLine.Option(names = "--id-store", description = "Id store of the Rust run, to read its binary events")
+    private Path idStore;
+
+    @CommandLine.Option(names = "--bin-size", description = "Size of the time bins in s", defaultValue = "3600")
+    private double binSize;
+
+    @CommandLine.Option(names = "--end-time", description = "End of the last time bin in s", defaultValue = "108000")
+    private double endTime;
+
+    @CommandLine.Option(names = "--geh", description = "GEH above which a link and time bin counts as different", defaultValue = "5")
+    private double gehThreshold;
+
+    @CommandLine.Option(names = "--top", description = "Number of most different links to log", defaultValue = "10")
+    private int top;
+
+    @CommandLine.Option(names = "--output", description = "Folder for the comparison", defaultValue = "output/link-comparison")
+    private Path output;
+
+    public static void main(String[] args) {
+        new CompareLinkStatistics().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        LinkStatistics base = new LinkStatistics(binSize, endTime);
+        LinkStatistics rust = new LinkStatistics(binSize, endTime);
+
+        CompletableFuture<Void> readBase = CompletableFuture.runAsync(() -> read(base, baseEvents, null));
+        CompletableFuture<Void> readRust = CompletableFuture.runAsync(() -> read(rust, rustEvents, idStore));
+        CompletableFuture.allOf(readBase, readRust).join();
+
+        output.toFile().mkdirs();
+        List<LinkDiff> diffs = new ArrayList<>();
+        long differentBins = 0;
+        long bins = 0;
+
+        try (CSVPrinter binPrinter = new CSVPrinter(IOUtils.getBufferedWriter(output.resolve("link_bins.csv.gz").toString()),
+                CSVFormat.DEFAULT.builder().setHeader("link", "time", "baseFlow", "rustFlow", "geh", "baseTravelTime", "rustTravelTime").build());
+             CSVPrinter linkPrinter = new CSVPrinter(IOUtils.getBufferedWriter(output.resolve("links.csv.gz").toString()),
+                     CSVFormat.DEFAULT.builder().setHeader("link", "baseFlow", "rustFlow", "differentBins", "baseTravelTime", "rustTravelTime", "ks").build())) {
+
+            int links = Math.max(base.links(), rust.links());
+            for (int link = 0; link < links; link++) {
+                long baseFlow = 0;
+                long rustFlow = 0;
+                int linkDifferentBins = 0;
+                double baseSum = 0, rustSum = 0;
+                long baseCount = 0, rustCount = 0;
+
+                for (int bin = 0; bin < base.bins(); bin++) {
+                    int b = base.flow(link, bin);
+                    int r = rust.flow(link, bin);
+                    if (b == 0 && r == 0) {
+                        continue;
+                    }
+                    double geh = geh(b, r);
+                    if (geh > gehThreshold) {
+                        linkDifferentBins++;
+                    }
+                    binPrinter.printRecord(Id.get(link, Link.class), bin * binSize, b, r, geh,
+                            base.meanTravelTime(link, bin), rust.meanTravelTime(link, bin));
+
+                    baseFlow += b;
+                    rustFlow += r;
+                    baseSum += base.travelTimeSum(link, bin);
+                    rustSum += rust.travelTimeSum(link, bin);
+                    baseCount += base.travelTimeCount(link, bin);
+                    rustCount += rust.travelTimeCount(link, bin);
+                    bins++;
+                }
+
+                if (baseFlow == 0 && rustFlow == 0) {
+                    continue;
+                }
+                double ks = ks(base, rust, link);
+                linkPrinter.printRecord(Id.get(link, Link.class), baseFlow, rustFlow, linkDifferentBins,
+                        baseCount == 0 ? Double.NaN : baseSum / baseCount, rustCount == 0 ? Double.NaN : rustSum / rustCount, ks);
+                differentBins += linkDifferentBins;
+                diffs.add(new LinkDiff(link, Math.abs(baseFlow - rustFlow), linkDifferentBins, ks));
+            }
+        }
+
+        log.info("{} of {} link time bins have a GEH above {}", differentBins, bins, gehThreshold);
+        diffs.sort(Comparator.comparingInt(LinkDiff::differentBins).thenComparingLong(LinkDiff::flowDiff).reversed());
+        for (LinkDiff diff : diffs.subList(0, Math.min(top, diffs.size()))) {
+            log.info("Link {}: {} bins differ, flow differs by {}, KS of travel times {}",
+                    Id.get(diff.link(), Link.class), diff.differentBins(), diff.flowDiff(), String.format("%.3f", diff.ks()));
+        }
+        log.info("Wrote comparison to {}", output);
+        return 0;
+    }
+
+    private static void read(LinkStatistics stats, Path events, Path idStore) {
+        EventsManager eventsManager = EventsUtils.createEventsManager();
+        eventsManager.addHandler(stats);
+        eventsManager.initProcessing();
+        log.info("Reading events {}", events);
+        if (idStore != null) {
+            try {
+                new BinpbEventsReader(eventsManager, IdStoreDeserializer.loadIdStore(idStore)).readFile(events);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            new MatsimEventsReader(eventsManager).readFile(events.toString());
+        }
+        eventsManager.finishProcessing();
+    }
+
+    /**
+     * GEH statistic of two flows in a time bin, scaled to hourly flows.
+     */
+    private double geh(int base, int rust) {
+        double m = base * 3600 / binSize;
+        double c = rust * 3600 / binSize;
+        return Math.sqrt(2 * (m - c) * (m - c) / (m + c));
+    }
+
+    /**
+     * Largest difference between the cumulative travel time histograms of a link, NaN if one of them is empty.
+     */
+    private static double ks(LinkStatistics base, LinkStatistics rust, int link) {
+        long baseTotal = 0, rustTotal = 0;
+        for (int b = 0; b < LinkStatistics.HISTOGRAM_BUCKETS; b++) {
+            baseTotal += base.histogram(link, b);
+            rustTotal += rust.histogram(link, b);
+        }
+        if (baseTotal == 0 || rustTotal == 0) {
+            return Double.NaN;
+        }
+
+        double max = 0;
+        long baseCum = 0, rustCum = 0;
+        for (int b = 0; b < LinkStatistics.HISTOGRAM_BUCKETS; b++) {
+            baseCum += base.histogram(link, b);
+            rustCum += rust.histogram(link, b);
+            max = Math.max(max, Math.abs((double) baseCum / baseTotal - (double) rustCum / rustTotal));
+        }
+        return max;
+    }
+
+    private record LinkDiff(int link, long flowDiff, int differentBins, double ks) {
+    }
+}
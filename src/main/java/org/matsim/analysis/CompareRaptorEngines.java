@@ -0,0 +1,224 @@
+package org.matsim.analysis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.BinpbScenarioReader;
+import org.matsim.analysis.replay.RequestTrace;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.routing.ph.RoutingServerPH;
+import org.matsim.routing.ph.RoutingServicePH;
+import picocli.CommandLine;
+import routing.Routing;
+
+import java.io.BufferedWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.matsim.analysis.replay.RequestTrace.SIM_TIME;
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+
+/**
+ * Routes the requests of a trace with both {@link RoutingServicePH.Engine engines} and compares the results: arrival time,
+ * number of pt legs and sequence of lines, as well as the search time and the bytes allocated per request. Requests are routed
+ * one after the other on one thread, first warming up both engines, so that the timings are comparable. Both services load
+ * their own scenario.
+ * <p>
+ * Writes one row per request to {@code engine-comparison.csv} and logs a summary.
+ */
+@CommandLine.Command(name = "compare-raptor-engines", description = "Compare the primitive raptor engine with the Swiss Rail Raptor on a request trace.")
+public class CompareRaptorEngines implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(CompareRaptorEngines.class);
+
+    @CommandLine.Option(names = "--config", description = "Path to config", required = true)
+    private String config;
+
+    @CommandLine.Option(names = "--localFiles", description = "Use local MATSim files instead of SVN")
+    private boolean localFiles = false;
+
+    @CommandLine.Option(names = "--binpb", description = "Run id prefix of the binary inputs of the Rust converter, see the router")
+    private Path binpb;
+
+    @CommandLine.Option(names = "--requestsFile", description = "Path to requests file, delimited or indexed", defaultValue = "requests.pb")
+    private Path requestsFile;
+
+    @CommandLine.Option(names = "--every", description = "Compare only every n-th request of the trace", defaultValue = "1")
+    private int every;
+
+    @CommandLine.Option(names = "--warmup", description = "Number of requests routed by both engines before measuring", defaultValue = "1000")
+    private int warmup;
+
+    @CommandLine.Option(names = "--output", description = "Output folder", defaultValue = "output/raptor-comparison")
+    private Path output;
+
+    public static void main(String[] args) {
+        new CompareRaptorEngines().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        RequestTrace requests = RequestTrace.open(requestsFile);
+        Files.createDirectories(output);
+
+        RoutingServicePH matsim = create(RoutingServicePH.Engine.MATSIM);
+        RoutingServicePH primitive = create(RoutingServicePH.Engine.PRIMITIVE);
+
+        // thread names must end with a number, see RoutingServicePH.Stages
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("router-%d").build());
+        try {
+            return executor.submit(() -> compare(requests, matsim, primitive)).get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private RoutingServicePH create(RoutingServicePH.Engine engine) {
+        Config cfg = RoutingServerPH.loadRoutingConfig(config, output.toString(), localFiles);
+        Consumer<Scenario> loadInputs = binpb == null ? sc -> {
+        } : sc -> new BinpbScenarioReader(binpb).read(sc);
+        return RoutingServicePH.Factory.builder(cfg).loadInputs(loadInputs).engine(engine).build().create();
+    }
+
+    private int compare(RequestTrace requests, RoutingServicePH matsim, RoutingServicePH primitive) throws Exception {
+        matsim.init();
+        primitive.init();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        Stats stats = new Stats();
+        int index = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(output.resolve("engine-comparison.csv"));
+             CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("request_id", "departure_time",
+                     "matsim_arrival", "primitive_arrival", "matsim_pt_legs", "primitive_pt_legs", "matsim_lines", "primitive_lines",
+                     "matsim_ns", "primitive_ns", "matsim_bytes", "primitive_bytes").build())) {
+
+            for (int second = 0; second < Math.min(requests.endTime(), SIM_TIME); second++) {
+                for (Routing.Request request : requests.requestsAt(second)) {
+                    if (index++ % every != 0) {
+                        continue;
+                    }
+
+                    long bytes = threads.getCurrentThreadAllocatedBytes();
+                    long start = System.nanoTime();
+                    Routing.Response a = matsim.route(request);
+                    long matsimNs = System.nanoTime() - start;
+                    long matsimBytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+
+                    bytes = threads.getCurrentThreadAllocatedBytes();
+                    start = System.nanoTime();
+                    Routing.Response b = primitive.route(request);
+                    long primitiveNs = System.nanoTime() - start;
+                    long primitiveBytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+
+                    if (warmup > 0) {
+                        warmup--;
+                        continue;
+                    }
+
+                    int departure = nsToS(request.getDepartureTimeNs());
+                    int arrivalA = arrival(a, departure);
+                    int arrivalB = arrival(b, departure);
+                    String linesA = lines(a);
+                    String linesB = lines(b);
+                    stats.add(arrivalB - arrivalA, linesA.equals(linesB), ptLegs(a) == ptLegs(b), matsimNs, primitiveNs, matsimBytes, primitiveBytes);
+
+                    csv.printRecord(RoutingServicePH.requestIdToString(request.getRequestId()), departure, arrivalA, arrivalB,
+                            ptLegs(a), ptLegs(b), linesA, linesB, matsimNs, primitiveNs, matsimBytes, primitiveBytes);
+                }
+            }
+        }
+
+        stats.log();
+        return 0;
+    }
+
+    /**
+     * @return the arrival at the destination, in seconds
+     */
+    static int arrival(Routing.Response response, int departure) {
+        long time = departure;
+        for (Routing.Leg leg : response.getLegsList()) {
+            if (leg.hasDepTimeNs()) {
+                time = nsToS(leg.getDepTimeNs());
+            }
+            time += nsToS(leg.getTravTimeNs());
+        }
+        return (int) time;
+    }
+
+    static long ptLegs(Routing.Response response) {
+        return response.getLegsList().stream().filter(Routing.Leg::hasPtRoute).count();
+    }
+
+    static String lines(Routing.Response response) {
+        return response.getLegsList().stream()
+                .filter(Routing.Leg::hasPtRoute)
+                .map(l -> l.getPtRoute().getInformation().getTransitLineId())
+                .collect(Collectors.joining("|"));
+    }
+
+    private static final class Stats {
+        private long count;
+        private long sameLines;
+        private long samePtLegs;
+        private long earlier;
+        private long later;
+        private long arrivalDiff;
+        private long absArrivalDiff;
+        private long[] matsimNs = new long[1024];
+        private long[] primitiveNs = new long[1024];
+        private long matsimBytes;
+        private long primitiveBytes;
+
+        void add(int diff, boolean lines, boolean legs, long matsimTime, long primitiveTime, long matsimAlloc, long primitiveAlloc) {
+            if (count == matsimNs.length) {
+                matsimNs = Arrays.copyOf(matsimNs, matsimNs.length * 2);
+                primitiveNs = Arrays.copyOf(primitiveNs, primitiveNs.length * 2);
+            }
+            matsimNs[(int) count] = matsimTime;
+            primitiveNs[(int) count] = primitiveTime;
+            count++;
+            sameLines += lines ? 1 : 0;
+            samePtLegs += legs ? 1 : 0;
+            earlier += diff < 0 ? 1 : 0;
+            later += diff > 0 ? 1 : 0;
+            arrivalDiff += diff;
+            absArrivalDiff += Math.abs(diff);
+            matsimBytes += matsimAlloc;
+            primitiveBytes += primitiveAlloc;
+        }
+
+        void log() {
+            if (count == 0) {
+                log.warn("No requests compared");
+                return;
+            }
+            long[] a = Arrays.copyOf(matsimNs, (int) count);
+            long[] b = Arrays.copyOf(primitiveNs, (int) count);
+            Arrays.sort(a);
+            Arrays.sort(b);
+
+            log.info("Compared {} requests: same lines {}%, same number of pt legs {}%", count, percent(sameLines), percent(samePtLegs));
+            log.info("Primitive engine arrives earlier in {}%, later in {}%, mean difference {} s, mean absolute difference {} s",
+                    percent(earlier), percent(later), arrivalDiff / count, absArrivalDiff / count);
+            for (double p : CompareRoutingProfiles.PERCENTILES) {
+                log.info("p{}: matsim {} us, primitive {} us", p, CompareRoutingProfiles.quantile(a, p) / 1000,
+                        CompareRoutingProfiles.quantile(b, p) / 1000);
+            }
+            log.info("Allocated per request: matsim {} bytes, primitive {} bytes", matsimBytes / count, primitiveBytes / count);
+        }
+
+        private String percent(long n) {
+            return String.format("%.1f", 100. * n / count);
+        }
+    }
+}
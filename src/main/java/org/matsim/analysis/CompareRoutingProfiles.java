@@ -0,0 +1,264 @@
+package org.matsim.analysis;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.RunInfo;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.routing.ph.RoutingServicePH;
+import picocli.CommandLine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Compares two routing profiles ({@code routing-profiling-*.csv}, written by {@code RoutingServicePH}). Requests are aligned
+ * by request id, so both runs must have replayed the same requests. Latency percentiles of the aligned requests are compared
+ * overall and per simulated hour, with confidence intervals from a paired bootstrap. A percentile regresses if the candidate
+ * is slower by more than the threshold and the confidence interval of the difference excludes zero; then the command exits
+ * with 1.
+ */
+@CommandLine.Command(name = "compare-routing-profiles", description = "Compare the latencies of two routing profiles.")
+public class CompareRoutingProfiles implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(CompareRoutingProfiles.class);
+
+    static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final double NS_PER_MS = 1_000_000.;
+
+    @CommandLine.Option(names = "--baseline", description = "Profiling CSV of the baseline, or a folder with profiling CSVs (the newest is used)", required = true)
+    private Path baseline;
+
+    @CommandLine.Option(names = "--candidate", description = "Profiling CSV of the candidate, or a folder with profiling CSVs (the newest is used)", required = true)
+    private Path candidate;
+
+    @CommandLine.Option(names = "--output", description = "Output folder", defaultValue = "output/routing-comparison")
+    private Path output;
+
+    @CommandLine.Option(names = "--column", description = "Latency column to compare, e.g. duration_ns (service time), queue_ns or wait_ns", defaultValue = "duration_ns")
+    private String column;
+
+    @CommandLine.Option(names = "--threshold", description = "Relative slowdown of a percentile that counts as regression", defaultValue = "0.05")
+    private double threshold;
+
+    @CommandLine.Option(names = "--bootstrap", description = "Number of bootstrap samples", defaultValue = "200")
+    private int samples;
+
+    @CommandLine.Option(names = "--confidence", description = "Confidence level of the intervals", defaultValue = "0.95")
+    private double confidence;
+
+    public static void main(String[] args) {
+        new CompareRoutingProfiles().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        Path baseFile = resolve(baseline);
+        Path candFile = resolve(candidate);
+        log.info("Comparing baseline {} with candidate {}", baseFile, candFile);
+
+        Map<String, Sample> base = read(baseFile, column);
+        Map<String, Sample> cand = read(candFile, column);
+
+        List<Sample> baseMatched = new ArrayList<>();
+        List<Sample> candMatched = new ArrayList<>();
+        for (Map.Entry<String, Sample> e : base.entrySet()) {
+            Sample c = cand.get(e.getKey());
+            if (c != null) {
+                baseMatched.add(e.getValue());
+                candMatched.add(c);
+            }
+        }
+        log.info("Aligned {} requests, {} only in baseline, {} only in candidate", baseMatched.size(),
+                base.size() - baseMatched.size(), cand.size() - baseMatched.size());
+        if (baseMatched.isEmpty()) {
+            throw new IllegalArgumentException("The profiles have no request in common");
+        }
+
+        Files.createDirectories(output);
+        boolean regression = false;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(output.resolve("comparison.csv"));
+             CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("hour", "percentile", "count",
+                     "baseline_ms", "candidate_ms", "diff_ms", "ci_low_ms", "ci_high_ms", "rel_change", "regression").build())) {
+
+            List<Row> overall = compare(values(baseMatched), values(candMatched), new Random(4711));
+            for (Row row : overall) {
+                boolean regressed = row.regressed(threshold);
+                regression |= regressed;
+                print(csv, "all", row, regressed);
+                log.info("p{}: {} ms -> {} ms ({}%), CI of difference [{}, {}] ms{}", row.percentile(), ms(row.baseline()), ms(row.candidate()),
+                        String.format("%+.1f", row.relChange() * 100), ms(row.ciLow()), ms(row.ciHigh()), regressed ? " REGRESSION" : "");
+            }
+
+            // per simulated hour, regressions are only reported since a single hour has few samples
+            SortedMap<Integer, List<Integer>> byHour = new TreeMap<>();
+            for (int i = 0; i < baseMatched.size(); i++) {
+                byHour.computeIfAbsent(baseMatched.get(i).now() / 3600, h -> new ArrayList<>()).add(i);
+            }
+            for (Map.Entry<Integer, List<Integer>> e : byHour.entrySet()) {
+                long[] b = e.getValue().stream().mapToLong(i -> baseMatched.get(i).latency()).toArray();
+                long[] c = e.getValue().stream().mapToLong(i -> candMatched.get(i).latency()).toArray();
+                for (Row row : compare(b, c, new Random(4711 + e.getKey()))) {
+                    print(csv, String.valueOf(e.getKey()), row, row.regressed(threshold));
+                }
+            }
+        }
+
+        writeRunInfo(RunInfo.read(RunInfo.sidecar(baseFile)), RunInfo.read(RunInfo.sidecar(candFile)));
+
+        if (regression) {
+            log.warn("Candidate regressed by more than {}% in at least one percentile", threshold * 100);
+            return 1;
+        }
+        log.info("No regression above {}%", threshold * 100);
+        return 0;
+    }
+
+    /**
+     * Percentiles of both samples, their difference and a paired bootstrap confidence interval of the difference.
+     */
+    List<Row> compare(long[] base, long[] cand, Random random) {
+        int n = base.length;
+        double[][] diffs = new double[PERCENTILES.length][samples];
+
+        // seed each sample up front so that the samples can be evaluated in parallel and stay reproducible
+        long[] seeds = random.longs(samples).toArray();
+        IntStream.range(0, samples).parallel().forEach(s -> {
+            SplittableRandom r = new SplittableRandom(seeds[s]);
+            long[] b = new long[n];
+            long[] c = new long[n];
+            for (int i = 0; i < n; i++) {
+                int j = r.nextInt(n);
+                b[i] = base[j];
+                c[i] = cand[j];
+            }
+            Arrays.sort(b);
+            Arrays.sort(c);
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                diffs[p][s] = quantile(c, PERCENTILES[p]) - quantile(b, PERCENTILES[p]);
+            }
+        });
+
+        long[] sortedBase = base.clone();
+        long[] sortedCand = cand.clone();
+        Arrays.sort(sortedBase);
+        Arrays.sort(sortedCand);
+
+        double alpha = (1 - confidence) / 2;
+        List<Row> res = new ArrayList<>();
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            Arrays.sort(diffs[p]);
+            res.add(new Row(PERCENTILES[p], n, quantile(sortedBase, PERCENTILES[p]), quantile(sortedCand, PERCENTILES[p]),
+                    diffs[p][(int) Math.floor(alpha * (samples - 1))], diffs[p][(int) Math.ceil((1 - alpha) * (samples - 1))]));
+        }
+        return res;
+    }
+
+    /**
+     * Nearest-rank percentile of a sorted array.
+     */
+    static long quantile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.clamp(rank - 1, 0, sorted.length - 1)];
+    }
+
+    /**
+     * Reads a profile keyed by request id. Profiles written before request ids were set have id 0 everywhere; their requests
+     * are keyed by time and links instead. Answers from the route table are skipped, they took no search.
+     */
+    static Map<String, Sample> read(Path file, String column) throws IOException {
+        Map<String, Sample> res = new HashMap<>();
+        int duplicates = 0;
+        int table = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file);
+             CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build())) {
+            if (!parser.getHeaderMap().containsKey(column)) {
+                throw new IllegalArgumentException("Column " + column + " not in " + file);
+            }
+            boolean hasIds = parser.getHeaderMap().containsKey("request_id");
+            for (CSVRecord record : parser) {
+                if (!RoutingServicePH.isSearch(record)) {
+                    table++;
+                    continue;
+                }
+                String id = hasIds ? record.get("request_id") : "0";
+                String key = "0".equals(id) ? String.join("|", record.get("now"), record.get("departure_time"), record.get("from"), record.get("to")) : id;
+                if (res.putIfAbsent(key, new Sample(Integer.parseInt(record.get("now")), Long.parseLong(record.get(column)))) != null) {
+                    duplicates++;
+                }
+            }
+        }
+        if (duplicates > 0) {
+            log.warn("{} requests in {} have duplicate keys, only the first is compared", duplicates, file);
+        }
+        if (table > 0) {
+            log.info("Skipped {} requests in {} answered from the route table", table, file);
+        }
+        return res;
+    }
+
+    private void writeRunInfo(RunInfo base, RunInfo cand) throws IOException {
+        if (!base.branch().equals(cand.branch())) {
+            log.warn("Branches differ: {} vs. {}", base.branch(), cand.branch());
+        }
+        if (!base.jvmArgs().equals(cand.jvmArgs())) {
+            log.warn("JVM flags differ: {} vs. {}", base.jvmArgs(), cand.jvmArgs());
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(output.resolve("comparison-runs.csv"));
+             CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("property", "baseline", "candidate", "differs").build())) {
+            csv.printRecord("commit", base.commit(), cand.commit(), !base.commit().equals(cand.commit()));
+            csv.printRecord("branch", base.branch(), cand.branch(), !base.branch().equals(cand.branch()));
+            csv.printRecord("jvm_args", String.join(" ", base.jvmArgs()), String.join(" ", cand.jvmArgs()), !base.jvmArgs().equals(cand.jvmArgs()));
+        }
+    }
+
+    /**
+     * @return the file itself, or the newest routing profile in the folder.
+     */
+    private static Path resolve(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return path;
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(f -> f.getFileName().toString().startsWith("routing-profiling-") && f.getFileName().toString().endsWith(".csv"))
+                    .max(Comparator.comparing(f -> f.getFileName().toString()))
+                    .orElseThrow(() -> new IllegalArgumentException("No routing profile in " + path));
+        }
+    }
+
+    private static long[] values(List<Sample> samples) {
+        return samples.stream().mapToLong(Sample::latency).toArray();
+    }
+
+    private static void print(CSVPrinter csv, String hour, Row row, boolean regressed) throws IOException {
+        csv.printRecord(hour, row.percentile(), row.count(), ms(row.baseline()), ms(row.candidate()), ms(row.candidate() - row.baseline()),
+                ms(row.ciLow()), ms(row.ciHigh()), String.format("%.4f", row.relChange()), regressed);
+    }
+
+    private static String ms(double ns) {
+        return String.format("%.3f", ns / NS_PER_MS);
+    }
+
+    record Sample(int now, long latency) {
+    }
+
+    record Row(double percentile, int count, long baseline, long candidate, double ciLow, double ciHigh) {
+        double relChange() {
+            return baseline == 0 ? 0 : (double) (candidate - baseline) / baseline;
+        }
+
+        boolean regressed(double threshold) {
+            return relChange() > threshold && ciLow > 0;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.matsim.analysis;
+
+import org.matsim.analysis.events.BinpbEventsReader;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.GenericEvent;
+import org.matsim.api.core.v01.events.HasPersonId;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.api.experimental.events.TeleportationArrivalEvent;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+import org.matsim.core.api.experimental.events.VehicleDepartsAtFacilityEvent;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.StageActivityTypeIdentifier;
+import org.matsim.core.scoring.EventsToLegs;
+import org.matsim.core.scoring.PersonExperiencedLeg;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Builds the experienced plans of one shard of the agents and passes each plan on as soon as the agent has started the
+ * last main activity of its plan. Only agents that are currently on their day are held in memory.
+ * <p>
+ * Each collector is meant to run on its own thread of a parallel events manager: it sees all events, but ignores the ones
+ * of agents outside its shard. Vehicle events without a person are only passed on if an agent of the shard drives the
+ * vehicle (link events) or is in it (stop events). Legs are built by an {@link EventsToLegs} that is private to the
+ * collector.
+ */
+class ExperiencedDayCollector implements BasicEventHandler {
+
+    private final int shard;
+    private final int shards;
+    private final Map<Id<Person>, Integer> mainActivities;
+    private final Consumer<Person> sink;
+
+    private final EventsManager legEvents = EventsUtils.createEventsManager();
+    private final Map<Id<Person>, Day> days = new HashMap<>();
+    // vehicles in traffic with a driver of this shard, and number of agents of this shard in each vehicle
+    private final Set<Id<Vehicle>> driven = new HashSet<>();
+    private final Map<Id<Vehicle>, Integer> occupied = new HashMap<>();
+
+    /**
+     * @param mainActivities number of main (non stage) activities of each agent's selected plan. Agents not in the map are
+     *                       ignored.
+     */
+    ExperiencedDayCollector(Scenario scenario, Map<Id<Person>, Integer> mainActivities, int shard, int shards, Consumer<Person> sink) {
+        this.shard = shard;
+        this.shards = shards;
+        this.mainActivities = mainActivities;
+        this.sink = sink;
+
+        EventsToLegs eventsToLegs = new EventsToLegs(scenario);
+        eventsToLegs.addLegHandler(this::handleLeg);
+        legEvents.addHandler(eventsToLegs);
+        legEvents.initProcessing();
+    }
+
+    static int countMainActivities(Plan plan) {
+        return (int) plan.getPlanElements().stream()
+                .filter(e -> e instanceof Activity a && !StageActivityTypeIdentifier.isStageActivity(a.getType()))
+                .count();
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        if (event instanceof GenericEvent generic && BinpbEventsReader.TRAVELLED_WITH_PT.equals(generic.getEventType())) {
+            handleTravelledWithPt(generic);
+            return;
+        }
+
+        if (event instanceof HasPersonId e) {
+            if (!isTracked(e.getPersonId())) {
+                return;
+            }
+            trackVehicle(event);
+        } else if (!isTrackedVehicle(event)) {
+            // vehicle events reach all collectors, but only the one of the driver or a passenger knows the vehicle
+            return;
+        }
+
+        legEvents.processEvent(event);
+
+        if (event instanceof ActivityEndEvent e) {
+            handleActivityEnd(e);
+        } else if (event instanceof ActivityStartEvent e) {
+            handleActivityStart(e);
+        }
+    }
+
+    /**
+     * Passes on the agents that did not finish their day, e.g. because they got stuck.
+     *
+     * @return the number of unfinished agents
+     */
+    int finish() {
+        legEvents.finishProcessing();
+        int unfinished = days.size();
+        days.forEach((person, day) -> sink.accept(day.toPerson(person)));
+        days.clear();
+        return unfinished;
+    }
+
+    private void trackVehicle(Event event) {
+        if (event instanceof VehicleEntersTrafficEvent e) {
+            driven.add(e.getVehicleId());
+        } else if (event instanceof VehicleLeavesTrafficEvent e) {
+            driven.remove(e.getVehicleId());
+        } else if (event instanceof PersonEntersVehicleEvent e) {
+            occupied.merge(e.getVehicleId(), 1, Integer::sum);
+        } else if (event instanceof PersonLeavesVehicleEvent e) {
+            occupied.computeIfPresent(e.getVehicleId(), (k, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    /**
+     * Link events only matter for the route of the driver, stop events only for passengers.
+     */
+    private boolean isTrackedVehicle(Event event) {
+        if (event instanceof LinkEnterEvent e) {
+            return driven.contains(e.getVehicleId());
+        } else if (event instanceof LinkLeaveEvent e) {
+            return driven.contains(e.getVehicleId());
+        } else if (event instanceof VehicleArrivesAtFacilityEvent e) {
+            return occupied.containsKey(e.getVehicleId());
+        } else if (event instanceof VehicleDepartsAtFacilityEvent e) {
+            return occupied.containsKey(e.getVehicleId());
+        }
+        return true;
+    }
+
+    private boolean isTracked(Id<Person> person) {
+        return Math.floorMod(person.hashCode(), shards) == shard && mainActivities.containsKey(person);
+    }
+
+    private void handleTravelledWithPt(GenericEvent event) {
+        // keep line and route for the pt leg, which ends with the next arrival of the agent
+        Id<Person> person = Id.createPersonId(event.getAttributes().get("person"));
+        if (!isTracked(person)) {
+            return;
+        }
+
+        double distance = Double.parseDouble(event.getAttributes().get("distance"));
+        String mode = event.getAttributes().get("mode");
+        Day day = days.computeIfAbsent(person, k -> new Day());
+        day.pt = new ExperiencedPlansWriter.TravelledWithPt(event.getTime(), person, distance, mode, event.getAttributes().get("line"), event.getAttributes().get("route"));
+
+        legEvents.processEvent(new TeleportationArrivalEvent(event.getTime(), person, distance, mode));
+    }
+
+    private void handleLeg(PersonExperiencedLeg leg) {
+        Day day = days.computeIfAbsent(leg.getAgentId(), k -> new Day());
+        if (leg.getLeg().getMode().equals("pt")) {
+            if (day.pt == null) {
+                throw new RuntimeException("No travelled with pt event found for person " + leg.getAgentId());
+            }
+            leg.getLeg().getAttributes().putAttribute("route", day.pt.route());
+            leg.getLeg().getAttributes().putAttribute("line", day.pt.line());
+            day.pt = null;
+        }
+        day.plan.addLeg(leg.getLeg());
+    }
+
+    private void handleActivityEnd(ActivityEndEvent event) {
+        Day day = days.computeIfAbsent(event.getPersonId(), k -> new Day());
+        if (day.current == null) {
+            // first activity of the day, which has no start event
+            day.current = day.start(event.getActType(), event.getLinkId());
+            day.current.setFacilityId(event.getFacilityId());
+            day.current.setCoord(event.getCoord());
+        }
+        day.current.setEndTime(event.getTime());
+        day.current = null;
+    }
+
+    private void handleActivityStart(ActivityStartEvent event) {
+        Day day = days.computeIfAbsent(event.getPersonId(), k -> new Day());
+        day.current = day.start(event.getActType(), event.getLinkId());
+        day.current.setStartTime(event.getTime());
+        day.current.setFacilityId(event.getFacilityId());
+        day.current.setCoord(event.getCoord());
+
+        if (day.mainActivities == mainActivities.get(event.getPersonId())) {
+            days.remove(event.getPersonId());
+            sink.accept(day.toPerson(event.getPersonId()));
+        }
+    }
+
+    private static final class Day {
+        private final Plan plan = PopulationUtils.createPlan();
+        private Activity current;
+        private int mainActivities;
+        private ExperiencedPlansWriter.TravelledWithPt pt;
+
+        Activity start(String type, Id<Link> link) {
+            Activity activity = PopulationUtils.createActivityFromLinkId(type, link);
+            plan.addActivity(activity);
+            if (!StageActivityTypeIdentifier.isStageActivity(type)) {
+                mainActivities++;
+            }
+            return activity;
+        }
+
+        Person toPerson(Id<Person> id) {
+            Person person = PopulationUtils.getFactory().createPerson(id);
+            person.addPlan(plan);
+            person.setSelectedPlan(plan);
+            return person;
+        }
+    }
+}
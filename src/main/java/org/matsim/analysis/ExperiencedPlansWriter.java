@@ -3,6 +3,8 @@ package org.matsim.analysis;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.matsim.IdStoreDeserializer;
+import org.matsim.analysis.events.BinpbEventsReader;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.population.Person;
@@ -14,7 +16,10 @@ import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.events.EventsUtils;
 import org.matsim.core.events.MatsimEventsReader;
 import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
 import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.scoring.EventsToActivities;
 import org.matsim.core.scoring.EventsToLegs;
@@ -23,10 +28,11 @@ import org.matsim.core.scoring.ExperiencedPlansServiceFactory;
 import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
 import picocli.CommandLine;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Queue;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class ExperiencedPlansWriter implements MATSimAppCommand {
     private static final Logger log = LogManager.getLogger(ExperiencedPlansWriter.class);
@@ -40,18 +46,31 @@ public class ExperiencedPlansWriter implements MATSimAppCommand {
     @CommandLine.Option(names = "--transit-schedule", description = "Path to transit schedule")
     private String transitSchedule = "/Users/paulh/git/parallel-qsim-berlin/output/v6.4/0.1pct/berlin-v6.4-transitSchedule.xml.gz";
 
-    @CommandLine.Option(names = "--events", description = "Path to events file")
+    @CommandLine.Option(names = "--events", description = "Path to events file. With --id-store, a binpb events file or a folder with events.<rank>.binpb partitions of the Rust simulation")
     private Path eventsFile = Path.of("/Users/paulh/git/parallel-qsim-berlin/output/v6.4/0.1pct/test-min5/output_events.xml.gz");
 
+    @CommandLine.Option(names = "--id-store", description = "Id store of the Rust simulation. If set, the binary events are read instead of XML events")
+    private Path idStore;
+
     @CommandLine.Option(names = "--output", description = "Path to output experienced plans file")
     private String output = "/Users/paulh/git/parallel-qsim-berlin/output/v6.4/0.1pct/test-min5/output_experienced_plans.xml.gz";
 
+    @CommandLine.Option(names = "--streaming", description = "Write each plan as soon as the agent's day is finished, instead of keeping the population in memory")
+    private boolean streaming;
+
+    @CommandLine.Option(names = "--threads", description = "Streaming only: number of event handler threads, each building the plans of a share of the agents")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     public static void main(String[] args) {
         new ExperiencedPlansWriter().execute(args);
     }
 
     @Override
     public Integer call() throws Exception {
+        if (streaming) {
+            return writeStreaming();
+        }
+
         Config config = ConfigUtils.createConfig();
         config.eventsManager().setNumberOfThreads(1);
 
@@ -94,8 +113,14 @@ public class ExperiencedPlansWriter implements MATSimAppCommand {
         log.info("Reading events from file: {}", eventsFile);
         eventsManager.initProcessing();
 
-        MatsimEventsReader matsimEventsReader = getMatsimEventsReader(eventsManager, ptCache);
-        matsimEventsReader.readFile(eventsFile.toString());
+        if (idStore != null) {
+            new BinpbEventsReader(eventsManager, IdStoreDeserializer.loadIdStore(idStore))
+                    .addCustomEventMapper(BinpbEventsReader.TRAVELLED_WITH_PT, travelledWithPtMapper(ptCache))
+                    .readFile(eventsFile);
+        } else {
+            MatsimEventsReader matsimEventsReader = getMatsimEventsReader(eventsManager, ptCache);
+            matsimEventsReader.readFile(eventsFile.toString());
+        }
 
         eventsManager.finishProcessing();
 
@@ -109,11 +134,72 @@ public class ExperiencedPlansWriter implements MATSimAppCommand {
         return 0;
     }
 
+    /**
+     * Streams the population once to count the main activities of each agent, then streams the events through one
+     * {@link ExperiencedDayCollector} per thread. A plan is written once the agent has started its last main activity, so
+     * only agents on their way are kept in memory. The plans are written in the order the agents finish their day.
+     */
+    private Integer writeStreaming() throws IOException {
+        Config config = ConfigUtils.createConfig();
+        config.eventsManager().setNumberOfThreads(threads);
+        config.eventsManager().setOneThreadPerHandler(true);
+        config.eventsManager().setSynchronizeOnSimSteps(false);
+
+        Scenario scenario = ScenarioUtils.createScenario(config);
+        new MatsimNetworkReader(scenario.getNetwork()).readFile(network);
+        new TransitScheduleReader(scenario).readFile(transitSchedule);
+
+        log.info("Counting activities of {}", population);
+        Map<Id<Person>, Integer> mainActivities = new HashMap<>();
+        StreamingPopulationReader reader = new StreamingPopulationReader(scenario);
+        reader.addAlgorithm(person -> mainActivities.put(person.getId(), ExperiencedDayCollector.countMainActivities(person.getSelectedPlan())));
+        reader.readFile(population);
+
+        StreamingPopulationWriter writer = new StreamingPopulationWriter();
+        writer.startStreaming(output);
+        LongAdder written = new LongAdder();
+        Consumer<Person> sink = person -> {
+            synchronized (writer) {
+                writer.run(person);
+            }
+            written.increment();
+        };
+
+        EventsManager eventsManager = EventsUtils.createEventsManager(config);
+        List<ExperiencedDayCollector> collectors = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            ExperiencedDayCollector collector = new ExperiencedDayCollector(scenario, mainActivities, i, threads, sink);
+            collectors.add(collector);
+            eventsManager.addHandler(collector);
+        }
+
+        log.info("Reading events from file: {}", eventsFile);
+        eventsManager.initProcessing();
+        // travelled with pt events are handled by the collectors, no mapper needed
+        if (idStore != null) {
+            new BinpbEventsReader(eventsManager, IdStoreDeserializer.loadIdStore(idStore)).readFile(eventsFile);
+        } else {
+            new MatsimEventsReader(eventsManager).readFile(eventsFile.toString());
+        }
+        eventsManager.finishProcessing();
+
+        int unfinished = collectors.stream().mapToInt(ExperiencedDayCollector::finish).sum();
+        writer.closeStreaming();
+
+        log.info("Wrote {} experienced plans of {} agents to {}, {} agents did not finish their day", written.sum(), mainActivities.size(), output, unfinished);
+        return 0;
+    }
+
     @NotNull
     private static MatsimEventsReader getMatsimEventsReader(EventsManager eventsManager, Map<Id<Person>, Queue<TravelledWithPt>> ptCache) {
         MatsimEventsReader matsimEventsReader = new MatsimEventsReader(eventsManager);
+        matsimEventsReader.addCustomEventMapper(BinpbEventsReader.TRAVELLED_WITH_PT, travelledWithPtMapper(ptCache));
+        return matsimEventsReader;
+    }
+
+    private static MatsimEventsReader.CustomEventMapper travelledWithPtMapper(Map<Id<Person>, Queue<TravelledWithPt>> ptCache) {
         // convert special teleported pt events to normal teleportation events and cache the additional info for later use‚
-        matsimEventsReader.addCustomEventMapper("travelled with pt", event -> {
+        return event -> {
             String person = event.getAttributes().get("person");
             String distance = event.getAttributes().get("distance");
             String mode = event.getAttributes().get("mode");
@@ -124,8 +210,7 @@ public class ExperiencedPlansWriter implements MATSimAppCommand {
                     .add(new TravelledWithPt(event.getTime(), Id.createPersonId(person), Double.parseDouble(distance), mode, line, route));
 
             return new TeleportationArrivalEvent(event.getTime(), Id.createPersonId(person), Double.parseDouble(distance), mode);
-        });
-        return matsimEventsReader;
+        };
     }
 
     record TravelledWithPt(double time, Id<Person> person, double distance, String mode, String line, String route) {
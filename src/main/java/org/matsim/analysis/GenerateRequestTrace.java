@@ -0,0 +1,178 @@
+package org.matsim.analysis;
+
+import com.google.protobuf.ByteString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.replay.RequestTrace;
+import org.matsim.analysis.replay.RequestTraceWriter;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.prepare.PopulationPipeline;
+import org.matsim.prepare.PreparePopulation;
+import picocli.CommandLine;
+import routing.Routing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.matsim.routing.ph.RoutingServicePH.sToNs;
+
+/**
+ * Generates a request trace from a population, without running a simulation. Every trip with the given main mode becomes
+ * one request. The departure is the end time of the origin activity. The request is sent {@code preplanningHorizon} seconds
+ * earlier, but not before the agent started the origin activity. The horizon is read from the origin activity or the
+ * person, see {@link PreparePopulation#PREPLANNING_HORIZON_ATTRIBUTE}, and falls back to {@code --horizon}.
+ * <p>
+ * The population is streamed through a {@link PopulationPipeline} and persons are converted in parallel, so the size of the
+ * population is only limited by disk space. Requests are written in population order. Request ids are derived from person, copy and trip index, so generating a trace twice yields the same ids.
+ */
+@CommandLine.Command(name = "generate-request-trace", description = "Generate a routing request trace from plans.")
+public class GenerateRequestTrace implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(GenerateRequestTrace.class);
+
+    @CommandLine.Option(names = "--population", description = "Population to read, e.g. filtered or experienced plans", required = true)
+    private Path population;
+
+    @CommandLine.Option(names = "--output", description = "Trace file to write", defaultValue = "requests.trace")
+    private Path output;
+
+    @CommandLine.Option(names = "--format", description = "Trace format. Valid values: ${COMPLETION-CANDIDATES}", defaultValue = "INDEXED")
+    private RequestTrace.Format format;
+
+    @CommandLine.Option(names = "--mode", description = "Main mode of the trips to route", defaultValue = "pt")
+    private String mode;
+
+    @CommandLine.Option(names = "--horizon", description = "Preplanning horizon in seconds for persons without the attribute", defaultValue = "600")
+    private double horizon;
+
+    @CommandLine.Option(names = "--copies", description = "Emit every person this many times, to scale up the population", defaultValue = "1")
+    private int copies;
+
+    @CommandLine.Option(names = "--threads", description = "Number of threads converting persons")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final LongAdder persons = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    public static void main(String[] args) {
+        new GenerateRequestTrace().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        try (RequestTraceWriter writer = RequestTraceWriter.create(output, format)) {
+            log.info("Reading population {}", population);
+            PopulationPipeline.read(population.toString())
+                    .threads(threads)
+                    .run(this::convert, converted -> {
+                        try {
+                            for (Routing.Request request : converted) {
+                                writer.add(request);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        }
+
+        log.info("Wrote {} requests of {} persons to {}, skipped {} trips without end time, link or coordinate",
+                requests.sum(), persons.sum(), output, skipped.sum());
+        return 0;
+    }
+
+    private List<Routing.Request> convert(Person person) {
+        Plan plan = person.getSelectedPlan();
+        if (plan == null) {
+            return null;
+        }
+        persons.increment();
+
+        List<Routing.Request> res = new ArrayList<>();
+        List<TripStructureUtils.Trip> trips = TripStructureUtils.getTrips(plan);
+        for (int i = 0; i < trips.size(); i++) {
+            TripStructureUtils.Trip trip = trips.get(i);
+            if (!mode.equals(TripStructureUtils.identifyMainMode(trip.getLegsOnly()))) {
+                continue;
+            }
+
+            Activity origin = trip.getOriginActivity();
+            if (!routable(trip)) {
+                skipped.increment();
+                continue;
+            }
+
+            double departure = origin.getEndTime().seconds();
+            double now = Math.max(0, departure - horizon(person, origin));
+            if (origin.getStartTime().isDefined()) {
+                now = Math.max(now, origin.getStartTime().seconds());
+            }
+
+            for (int copy = 0; copy < copies; copy++) {
+                String personId = copy == 0 ? person.getId().toString() : person.getId() + "_" + copy;
+                res.add(request(personId, mode, trip, i, now));
+                requests.increment();
+            }
+        }
+        return res;
+    }
+
+    private double horizon(Person person, Activity origin) {
+        Object value = origin.getAttributes().getAttribute(PreparePopulation.PREPLANNING_HORIZON_ATTRIBUTE);
+        if (value == null) {
+            value = person.getAttributes().getAttribute(PreparePopulation.PREPLANNING_HORIZON_ATTRIBUTE);
+        }
+        return value instanceof Number n ? n.doubleValue() : horizon;
+    }
+
+    /**
+     * Request of the i-th trip of a person, sent at {@code now}. The departure is the end time of the origin activity, the
+     * request id is derived from person and trip index.
+     */
+    public static Routing.Request request(String personId, String mode, TripStructureUtils.Trip trip, int i, double now) {
+        Activity origin = trip.getOriginActivity();
+        Activity destination = trip.getDestinationActivity();
+        return Routing.Request.newBuilder()
+                .setPersonId(personId)
+                .setMode(mode)
+                .setFromLinkId(origin.getLinkId().toString())
+                .setFrom(coordinate(origin.getCoord()))
+                .setToLinkId(destination.getLinkId().toString())
+                .setTo(coordinate(destination.getCoord()))
+                .setDepartureTimeNs(sToNs(origin.getEndTime().seconds()))
+                .setNowNs(sToNs(now))
+                .setRequestId(requestId(personId, i))
+                .build();
+    }
+
+    /**
+     * @return whether a trip can be routed, i.e. its origin has an end time and both activities have link and coordinate
+     */
+    public static boolean routable(TripStructureUtils.Trip trip) {
+        return trip.getOriginActivity().getEndTime().isDefined() && located(trip.getOriginActivity()) && located(trip.getDestinationActivity());
+    }
+
+    private static boolean located(Activity activity) {
+        return activity.getLinkId() != null && activity.getCoord() != null;
+    }
+
+    private static Routing.Coordinate coordinate(Coord coord) {
+        return Routing.Coordinate.newBuilder().setX(coord.getX()).setY(coord.getY()).build();
+    }
+
+    private static ByteString requestId(String personId, int trip) {
+        UUID uuid = UUID.nameUUIDFromBytes((personId + "#" + trip).getBytes(StandardCharsets.UTF_8));
+        return ByteString.copyFrom(ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).flip());
+    }
+}
@@ -0,0 +1,98 @@
+package org.matsim.analysis;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.replay.ClosedLoopReplay;
+import org.matsim.analysis.replay.LatencyRecorder;
+import org.matsim.analysis.replay.OpenLoopReplay;
+import org.matsim.analysis.replay.RequestTrace;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.config.Config;
+import org.matsim.routing.ph.RoutingServerPH;
+import org.matsim.routing.ph.RoutingServicePH;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.matsim.analysis.replay.RequestTrace.SIM_TIME;
+
+/**
+ * Replays a request trace against a {@link RoutingServicePH} in the same JVM: requests are routed on a pool of routing
+ * threads, without server, channel or serialization. The latency report has the same format as the one of
+ * {@link MockRoutingClient}, so comparing both shows the cost of the transport.
+ */
+public class InProcessReplay implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(InProcessReplay.class);
+
+    @CommandLine.Option(names = "--config", description = "Path to config", required = true)
+    private String config;
+
+    @CommandLine.Option(names = "--localFiles", description = "Use local MATSim files instead of SVN")
+    private boolean localFiles = false;
+
+    @CommandLine.Option(names = "--requestsFile", description = "Path to requests file, delimited or indexed", defaultValue = "requests.pb")
+    private Path requestsFile;
+
+    @CommandLine.Option(names = "--threads", description = "Number of threads to use for routing")
+    private int numThreads = 1;
+
+    @CommandLine.Option(names = "--mode", description = "CLOSED waits for all responses of a second before continuing, like the simulation. OPEN sends on a wall clock schedule. Valid values: ${COMPLETION-CANDIDATES}", defaultValue = "CLOSED")
+    private MockRoutingClient.Mode mode;
+
+    @CommandLine.Option(names = "--dilation", description = "Open loop only: wall clock seconds per simulated second", defaultValue = "1.0")
+    private double dilation;
+
+    @CommandLine.Option(names = "--from", description = "First simulated second to replay", defaultValue = "0")
+    private int from;
+
+    @CommandLine.Option(names = "--to", description = "Last simulated second to replay (exclusive)", defaultValue = "" + SIM_TIME)
+    private int to;
+
+    @CommandLine.Option(names = "--output", description = "Folder for the latency reports", defaultValue = "output/in-process-replay")
+    private Path output;
+
+    public static void main(String[] args) {
+        new InProcessReplay().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        RequestTrace requests = RequestTrace.open(requestsFile);
+
+        Config cfg = RoutingServerPH.loadRoutingConfig(config, output.toString(), localFiles);
+        RoutingServicePH service = RoutingServicePH.Factory.builder(cfg).build().create();
+
+        // thread names must end with a number, see RoutingServicePH.Stages
+        ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder().setNameFormat("router-%d").build()));
+
+        log.info("Initializing {} threads", numThreads);
+        List<Future<?>> init = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            init.add(executor.submit(service::init));
+        }
+        for (Future<?> f : init) {
+            f.get();
+        }
+
+        LatencyRecorder recorder = switch (mode) {
+            case CLOSED -> new ClosedLoopReplay(requests, from, to).run(r -> executor.submit(() -> service.route(r)));
+            case OPEN -> new OpenLoopReplay(requests, dilation, from, to).run(r -> executor.submit(() -> service.route(r)));
+        };
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        recorder.logSummary();
+        recorder.write(output, "in-process-" + mode.name().toLowerCase() + "-");
+        return 0;
+    }
+}
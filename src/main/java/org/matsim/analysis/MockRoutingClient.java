@@ -5,26 +5,23 @@ import com.google.protobuf.Empty;
 import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import org.matsim.analysis.replay.ClosedLoopReplay;
+import org.matsim.analysis.replay.LatencyRecorder;
+import org.matsim.analysis.replay.OpenLoopReplay;
+import org.matsim.analysis.replay.RequestTrace;
 import org.matsim.application.MATSimAppCommand;
 import picocli.CommandLine;
-import routing.Routing;
 import routing.RoutingServiceGrpc;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import static org.matsim.analysis.replay.RequestTrace.SIM_TIME;
+
 public class MockRoutingClient implements MATSimAppCommand {
-    private final static int SIM_TIME = 36 * 60 * 60;
 
-    @CommandLine.Option(names = "--requestsFile", description = "Path to requests file", defaultValue = "requests.pb")
+    @CommandLine.Option(names = "--requestsFile", description = "Path to requests file, delimited or indexed", defaultValue = "requests.pb")
     private String requestsFile;
 
     @CommandLine.Option(names = "--ip", description = "IP Address of the routing server", defaultValue = "localhost")
@@ -33,13 +30,32 @@ public class MockRoutingClient implements MATSimAppCommand {
     @CommandLine.Option(names = "--port", description = "Port of the routing server", defaultValue = "50051")
     private int port;
 
+    @CommandLine.Option(names = "--mode", description = "CLOSED waits for all responses of a second before continuing, like the simulation. OPEN sends on a wall clock schedule. Valid values: ${COMPLETION-CANDIDATES}", defaultValue = "CLOSED")
+    private Mode mode;
+
+    @CommandLine.Option(names = "--dilation", description = "Open loop only: wall clock seconds per simulated second", defaultValue = "1.0")
+    private double dilation;
+
+    @CommandLine.Option(names = "--from", description = "First simulated second to replay", defaultValue = "0")
+    private int from;
+
+    @CommandLine.Option(names = "--to", description = "Last simulated second to replay (exclusive)", defaultValue = "" + SIM_TIME)
+    private int to;
+
+    @CommandLine.Option(names = "--output", description = "Folder for the latency reports", defaultValue = "output/mock-routing-client")
+    private Path output;
+
+    @CommandLine.Option(names = "--no-shutdown", description = "Do not shut down the server after the replay")
+    private boolean shutdownServer = true;
+
     public static void main(String[] args) {
         new MockRoutingClient().execute(args);
     }
 
     @Override
     public Integer call() throws Exception {
-        List<List<Routing.Request>> requests = readRequests(Path.of(requestsFile));
+        System.out.println("Reading requests from " + requestsFile);
+        RequestTrace requests = RequestTrace.open(Path.of(requestsFile));
 
         ManagedChannel channel = ManagedChannelBuilder.forAddress(ip, port).usePlaintext().build();
 
@@ -49,83 +65,23 @@ public class MockRoutingClient implements MATSimAppCommand {
 
         RoutingServiceGrpc.RoutingServiceFutureStub service = RoutingServiceGrpc.newFutureStub(channel);
 
-        List<List<ListenableFuture<Routing.Response>>> openFuturesByDeparture = new ArrayList<>(SIM_TIME);
-
-        for (int i = 0; i < SIM_TIME; i++) {
-            openFuturesByDeparture.add(new ArrayList<>(50));
-        }
-
-        int now = 0;
-        while (now < SIM_TIME) {
-            if (now % 3600 == 0) {
-                System.out.println("Processing now = " + now / 3600 + "h");
-            }
-
-            List<Routing.Request> currentRequests = requests.get(now);
-            for (Routing.Request currentRequest : currentRequests) {
-                int dep = currentRequest.getDepartureTime();
-                ListenableFuture<Routing.Response> future = service.getRoute(currentRequest);
-                openFuturesByDeparture.get(dep).add(future);
-            }
+        LatencyRecorder recorder = switch (mode) {
+            case CLOSED -> new ClosedLoopReplay(requests, from, to).run(service::getRoute);
+            case OPEN -> new OpenLoopReplay(requests, dilation, from, to).run(service::getRoute);
+        };
 
-            // process all open futures for now departures
-            for (ListenableFuture<Routing.Response> future : openFuturesByDeparture.get(now)) {
-                try {
-                    future.get();
-                    // process response if needed
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
+        recorder.logSummary();
+        recorder.write(output, mode.name().toLowerCase() + "-");
 
-            now++;
+        if (shutdownServer) {
+            ListenableFuture<Empty> shutdown = service.shutdown(Empty.newBuilder().build());
+            shutdown.get();
         }
-
-        ListenableFuture<Empty> shutdown = service.shutdown(Empty.newBuilder().build());
-        shutdown.get();
+        channel.shutdown();
 
         return 0;
     }
 
-    private static List<List<Routing.Request>> readRequests(Path path) {
-        System.out.println("Reading requests from " + path);
-        List<Routing.Request> messages = new LinkedList<>();
-
-        try (InputStream in = Files.newInputStream(path)) {
-            Routing.Request msg;
-            while ((msg = Routing.Request.parseDelimitedFrom(in)) != null) {
-                messages.add(msg);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        System.out.println("Read " + messages.size() + " requests");
-
-        messages.sort(Comparator.comparing(Routing.Request::getNow));
-
-        List<List<Routing.Request>> res = new ArrayList<>(SIM_TIME);
-
-        for (int i = 0; i < SIM_TIME; i++) {
-            res.add(new ArrayList<>(50));
-        }
-
-        int now = 0;
-        for (Routing.Request message : messages) {
-            if (message.getNow() < now) {
-                throw new IllegalStateException("Messages are not sorted by now");
-            } else if (message.getNow() == now) {
-                res.get(now).add(message);
-            } else {
-                now = message.getNow();
-                res.get(now).add(message);
-            }
-        }
-
-
-        return res;
-    }
-
     private static void waitForReady(ManagedChannel channel, Duration timeout) throws InterruptedException {
 
         long deadlineNanos = System.nanoTime() + timeout.toNanos();
@@ -146,4 +102,8 @@ public class MockRoutingClient implements MATSimAppCommand {
             state = channel.getState(false);
         }
     }
+
+    enum Mode {
+        CLOSED, OPEN
+    }
 }
@@ -9,6 +9,7 @@ import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.core.network.NetworkUtils;
+import org.matsim.routing.ph.RoutingServicePH;
 import picocli.CommandLine;
 import routing.Routing;
 import routing.RoutingServiceGrpc;
@@ -18,6 +19,8 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
+import static org.matsim.routing.ph.RoutingServicePH.sToNs;
+
 public class ProfileRouting implements MATSimAppCommand {
     private static final Logger log = LogManager.getLogger(ProfileRouting.class);
 
@@ -70,7 +73,7 @@ public class ProfileRouting implements MATSimAppCommand {
 
         Routing.Request request = Routing.Request.newBuilder()
                 .setMode("pt")
-                .setDepartureTime(36000)
+                .setDepartureTimeNs(sToNs(36000))
                 .setFromLinkId(from)
                 .setToLinkId(to)
                 .setPersonId("1")
@@ -78,7 +81,7 @@ public class ProfileRouting implements MATSimAppCommand {
 
         long startTime = System.nanoTime();
         Routing.Response response = routingService.getRoute(request);
-        int sum = response.getLegsList().stream().mapToInt(Routing.Leg::getTravTime).sum();
+        int sum = response.getLegsList().stream().mapToLong(Routing.Leg::getTravTimeNs).mapToInt(RoutingServicePH::nsToS).sum();
         long endTime = System.nanoTime();
         return new R(endTime - startTime, sum);
     }
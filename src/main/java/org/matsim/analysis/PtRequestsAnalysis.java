@@ -1,15 +1,14 @@
 package org.matsim.analysis;
 
-import org.matsim.api.core.v01.population.HasPlansAndId;
-import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
-import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.router.TripStructureUtils;
+import org.matsim.prepare.PopulationPipeline;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 public class PtRequestsAnalysis implements MATSimAppCommand {
     Logger log = LoggerFactory.getLogger(PtRequestsAnalysis.class);
@@ -23,24 +22,27 @@ public class PtRequestsAnalysis implements MATSimAppCommand {
 
     @Override
     public Integer call() throws Exception {
-        Population population = PopulationUtils.readPopulation(populationPath);
-
-        List<Double> endTimes = population.getPersons().values().stream()
-                .map(HasPlansAndId::getSelectedPlan)
-                .flatMap(p -> TripStructureUtils.getTrips(p).stream())
-                .filter(t -> TripStructureUtils.identifyMainMode(t.getLegsOnly()).equals("pt"))
-                .map(t -> t.getOriginActivity().getEndTime().orElseThrow(RuntimeException::new))
-                .toList();
-
         //write end times to file
         String outputFile = "output/times.txt";
         try (java.io.BufferedWriter writer = java.nio.file.Files.newBufferedWriter(java.nio.file.Paths.get(outputFile))) {
             writer.write("end_time");
             writer.newLine();
-            for (Double endTime : endTimes) {
-                writer.write(String.valueOf(endTime));
-                writer.newLine();
-            }
+
+            PopulationPipeline.read(populationPath).run(
+                    person -> TripStructureUtils.getTrips(person.getSelectedPlan()).stream()
+                            .filter(t -> TripStructureUtils.identifyMainMode(t.getLegsOnly()).equals("pt"))
+                            .map(t -> t.getOriginActivity().getEndTime().orElseThrow(RuntimeException::new))
+                            .toList(),
+                    endTimes -> {
+                        try {
+                            for (Double endTime : endTimes) {
+                                writer.write(String.valueOf(endTime));
+                                writer.newLine();
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
         }
 
         return 0;
@@ -2,28 +2,52 @@ package org.matsim.analysis;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
+import org.matsim.analysis.replay.RequestTrace;
+import org.matsim.analysis.replay.RequestTraceWriter;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
+import org.matsim.application.MATSimAppCommand;
 import org.matsim.core.network.NetworkUtils;
+import picocli.CommandLine;
 import routing.Routing;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
 import static org.matsim.routing.ph.RoutingServicePH.sToNs;
 
-public class RequestConverter {
+/**
+ * Rebuilds the routing requests of a run from the server side profiling CSV and writes them as a request trace.
+ */
+public class RequestConverter implements MATSimAppCommand {
+
+    @CommandLine.Option(names = "--network", description = "Network with pt links", defaultValue = "/Users/paulh/git/parallel-qsim-berlin/output/v6.4/10pct/berlin-v6.4-network-with-pt.xml.gz")
+    private String networkFile;
+
+    @CommandLine.Option(names = "--input", description = "Routing profiling CSV", defaultValue = "/Users/paulh/hlrn-cluster/rust-pt-routing/parallel-qsim-berlin/output/v6.4/10pct/routing-sim192_hor600_w4_r64_10pct/routing-profiling-2025-12-16_23-31-10.csv")
+    private Path input;
+
+    @CommandLine.Option(names = "--output", description = "Trace file to write", defaultValue = "requests.pb")
+    private Path output;
+
+    @CommandLine.Option(names = "--format", description = "Trace format. INDEXED can be memory-mapped by the replay. Valid values: ${COMPLETION-CANDIDATES}", defaultValue = "DELIMITED")
+    private RequestTrace.Format format;
+
     public static void main(String[] args) {
-        Network network = NetworkUtils.readNetwork("/Users/paulh/git/parallel-qsim-berlin/output/v6.4/10pct/berlin-v6.4-network-with-pt.xml.gz");
+        new RequestConverter().execute(args);
+    }
 
-        String csvFile = "/Users/paulh/hlrn-cluster/rust-pt-routing/parallel-qsim-berlin/output/v6.4/10pct/routing-sim192_hor600_w4_r64_10pct/routing-profiling-2025-12-16_23-31-10.csv";
+    @Override
+    public Integer call() throws Exception {
+        Network network = NetworkUtils.readNetwork(networkFile);
 
-        try (java.io.BufferedReader reader = java.nio.file.Files.newBufferedReader(java.nio.file.Paths.get(csvFile));
+        try (BufferedReader reader = Files.newBufferedReader(input);
              CSVParser csv = new CSVParser(reader, CSVFormat.DEFAULT.builder().setSkipHeaderRecord(true).build());
-             OutputStream outputStream = Files.newOutputStream(Path.of("requests.pb"))) {
+             RequestTraceWriter writer = RequestTraceWriter.create(output, format)) {
             csv.stream().skip(1).forEachOrdered(strings -> {
                 String now = strings.get(1);
                 String departureTime = strings.get(2);
@@ -49,17 +73,16 @@ public class RequestConverter {
                         .setNowNs(sToNs(entry.now()))
                         .build();
                 try {
-                    request.writeDelimitedTo(outputStream);
+                    writer.add(request);
                 } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    throw new UncheckedIOException(e);
                 }
             });
-        } catch (java.io.IOException e) {
-            throw new RuntimeException(e);
         }
+
+        return 0;
     }
 
     record Entry(int now, int departureTime, Id<Link> from, Id<Link> to) {
     }
 }
-
@@ -0,0 +1,281 @@
+package org.matsim.analysis.events;
+
+import events.Events;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.IdStoreDeserializer;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.api.experimental.events.TeleportationArrivalEvent;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Reads the binary protobuf events of the Rust simulation ({@code events.<rank>.binpb}, one file per partition) into an
+ * {@link EventsManager}, without the conversion to XML. Every partition is decoded on its own thread; the time steps of all
+ * partitions are merged by time on the calling thread, which also raises the events. Internal ids are resolved with the id
+ * store of the run.
+ * <p>
+ * Custom event mappers work as in {@link MatsimEventsReader}: they are applied to generic events, including the
+ * {@code travelled with pt} events of the simulation, and run on the calling thread in time order.
+ */
+public class BinpbEventsReader {
+    private static final Logger log = LogManager.getLogger(BinpbEventsReader.class);
+
+    public static final String TRAVELLED_WITH_PT = "travelled with pt";
+
+    private static final Pattern PARTITION = Pattern.compile("events\\.(\\d+)\\.binpb");
+
+    // time steps decoded ahead per partition
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final EventsManager events;
+    private final IdResolver ids;
+    private final Map<String, MatsimEventsReader.CustomEventMapper> customEventMappers = new HashMap<>();
+
+    public BinpbEventsReader(EventsManager events, Map<Long, List<String>> idStore) {
+        this.events = events;
+        this.ids = new IdResolver(idStore);
+    }
+
+    public BinpbEventsReader addCustomEventMapper(String eventType, MatsimEventsReader.CustomEventMapper mapper) {
+        customEventMappers.put(eventType, mapper);
+        return this;
+    }
+
+    /**
+     * @return the partition files {@code events.<rank>.binpb} in a folder ordered by rank, or the path itself if it is a file.
+     */
+    public static List<Path> partitions(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return List.of(path);
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            List<Path> res = files.filter(f -> PARTITION.matcher(f.getFileName().toString()).matches())
+                    .sorted(Comparator.comparingInt(BinpbEventsReader::rank))
+                    .toList();
+            if (res.isEmpty()) {
+                throw new IllegalArgumentException("No events.<rank>.binpb files in " + path);
+            }
+            return res;
+        }
+    }
+
+    public void readFile(Path path) throws IOException {
+        readFiles(partitions(path));
+    }
+
+    /**
+     * Reads all partitions and raises their events in time order.
+     */
+    public void readFiles(List<Path> files) {
+        log.info("Reading {} event partitions", files.size());
+
+        List<BlockingQueue<Batch>> queues = new ArrayList<>(files.size());
+        // one thread per partition, since each blocks when the merge falls behind
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path file : files) {
+                BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                queues.add(queue);
+                executor.execute(() -> decode(file, queue));
+            }
+
+            try {
+                long count = merge(queues);
+                log.info("Processed {} events", count);
+            } catch (RuntimeException e) {
+                // decoders blocked on full queues would otherwise keep the executor from closing
+                executor.shutdownNow();
+                throw e;
+            }
+        }
+    }
+
+    private long merge(List<BlockingQueue<Batch>> queues) {
+        PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparingDouble(Head::time).thenComparingInt(Head::partition));
+        for (int p = 0; p < queues.size(); p++) {
+            next(queues, p).ifPresent(heads::add);
+        }
+
+        long count = 0;
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            for (Event event : head.batch().events()) {
+                events.processEvent(map(event));
+                count++;
+            }
+            next(queues, head.partition()).ifPresent(heads::add);
+        }
+        return count;
+    }
+
+    private Optional<Head> next(List<BlockingQueue<Batch>> queues, int partition) {
+        Batch batch;
+        try {
+            batch = queues.get(partition).take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading events", e);
+        }
+        if (batch.error() != null) {
+            throw new IllegalStateException("Failed to read event partition " + partition, batch.error());
+        }
+        return batch.events() == null ? Optional.empty() : Optional.of(new Head(batch.time(), partition, batch));
+    }
+
+    private Event map(Event event) {
+        if (event instanceof GenericEvent generic) {
+            MatsimEventsReader.CustomEventMapper mapper = customEventMappers.get(generic.getEventType());
+            if (mapper != null) {
+                return mapper.apply(generic);
+            }
+        }
+        return event;
+    }
+
+    private void decode(Path file, BlockingQueue<Batch> queue) {
+        try {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 20)) {
+                Events.TimeStep step;
+                while ((step = Events.TimeStep.parseDelimitedFrom(in)) != null) {
+                    double time = step.getTime();
+                    List<Event> res = new ArrayList<>(step.getEventsCount());
+                    for (Events.Event event : step.getEventsList()) {
+                        res.add(convert(time, event));
+                    }
+                    queue.put(new Batch(time, res, null));
+                }
+            } catch (IOException e) {
+                queue.put(new Batch(0, null, new UncheckedIOException("Failed to read " + file, e)));
+                return;
+            } catch (RuntimeException e) {
+                queue.put(new Batch(0, null, e));
+                return;
+            }
+            queue.put(new Batch(0, null, null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Event convert(double time, Events.Event event) {
+        return switch (event.getTypeCase()) {
+            case ACT_START -> {
+                Events.ActivityStartEvent e = event.getActStart();
+                yield new ActivityStartEvent(time, ids.person(e.getPerson()), ids.link(e.getLink()), null, ids.string(e.getActType()), null);
+            }
+            case ACT_END -> {
+                Events.ActivityEndEvent e = event.getActEnd();
+                yield new ActivityEndEvent(time, ids.person(e.getPerson()), ids.link(e.getLink()), null, ids.string(e.getActType()), null);
+            }
+            case LINK_ENTER -> new LinkEnterEvent(time, ids.vehicle(event.getLinkEnter().getVehicle()), ids.link(event.getLinkEnter().getLink()));
+            case LINK_LEAVE -> new LinkLeaveEvent(time, ids.vehicle(event.getLinkLeave().getVehicle()), ids.link(event.getLinkLeave().getLink()));
+            case PERSON_ENTERS_VEH -> new PersonEntersVehicleEvent(time, ids.person(event.getPersonEntersVeh().getPerson()), ids.vehicle(event.getPersonEntersVeh().getVehicle()));
+            case PERSON_LEAVES_VEH -> new PersonLeavesVehicleEvent(time, ids.person(event.getPersonLeavesVeh().getPerson()), ids.vehicle(event.getPersonLeavesVeh().getVehicle()));
+            case DEPARTURE -> {
+                Events.PersonDepartureEvent e = event.getDeparture();
+                yield new PersonDepartureEvent(time, ids.person(e.getPerson()), ids.link(e.getLink()), ids.string(e.getMode()), ids.string(e.getRoutingMode()));
+            }
+            case ARRIVAL -> {
+                Events.PersonArrivalEvent e = event.getArrival();
+                yield new PersonArrivalEvent(time, ids.person(e.getPerson()), ids.link(e.getLink()), ids.string(e.getMode()));
+            }
+            case TRAVELLED -> {
+                Events.TravelledEvent e = event.getTravelled();
+                yield new TeleportationArrivalEvent(time, ids.person(e.getPerson()), e.getDistance(), ids.string(e.getMode()));
+            }
+            case TRAVELLED_WITH_PT -> {
+                // same attributes as in the XML events, so that mappers for XML events can be reused
+                Events.TravelledWithPtEvent e = event.getTravelledWithPt();
+                GenericEvent res = new GenericEvent(TRAVELLED_WITH_PT, time);
+                res.getAttributes().put("person", ids.person(e.getPerson()).toString());
+                res.getAttributes().put("distance", String.valueOf(e.getDistance()));
+                res.getAttributes().put("mode", ids.string(e.getMode()));
+                res.getAttributes().put("line", ids.string(e.getLine()));
+                res.getAttributes().put("route", ids.string(e.getRoute()));
+                yield res;
+            }
+            case GENERIC -> {
+                GenericEvent res = new GenericEvent(event.getGeneric().getType(), time);
+                res.getAttributes().putAll(event.getGeneric().getAttrsMap());
+                yield res;
+            }
+            case TYPE_NOT_SET -> throw new IllegalArgumentException("Event without type at time " + time);
+        };
+    }
+
+    private static int rank(Path file) {
+        Matcher m = PARTITION.matcher(file.getFileName().toString());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Not an event partition: " + file);
+        }
+        return Integer.parseInt(m.group(1));
+    }
+
+    /**
+     * Decoded events of one time step of a partition. The end of a partition is marked by a batch without events.
+     */
+    private record Batch(double time, List<Event> events, RuntimeException error) {
+    }
+
+    private record Head(double time, int partition, Batch batch) {
+    }
+
+    /**
+     * Maps internal ids of the id store to MATSim ids. The ids are created up front, so that the decoding threads only read.
+     */
+    static final class IdResolver {
+        private final List<Id<Person>> persons;
+        private final List<Id<Link>> links;
+        private final List<Id<Vehicle>> vehicles;
+        private final List<String> strings;
+
+        IdResolver(Map<Long, List<String>> idStore) {
+            this.persons = create(idStore, Person.class);
+            this.links = create(idStore, Link.class);
+            this.vehicles = create(idStore, Vehicle.class);
+            // copied, since the lists of the id store decode a new string on every access
+            this.strings = List.copyOf(idStore.getOrDefault(IdStoreDeserializer.typeId(String.class), List.of()));
+        }
+
+        Id<Person> person(long id) {
+            return persons.get((int) id);
+        }
+
+        Id<Link> link(long id) {
+            return links.get((int) id);
+        }
+
+        Id<Vehicle> vehicle(long id) {
+            return vehicles.get((int) id);
+        }
+
+        String string(long id) {
+            return strings.get((int) id);
+        }
+
+        private static <T> List<Id<T>> create(Map<Long, List<String>> idStore, Class<T> type) {
+            return idStore.getOrDefault(IdStoreDeserializer.typeId(type), List.of()).stream()
+                    .map(id -> Id.create(id, type))
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.matsim.analysis.events;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.events.handler.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+
+/**
+ * Work of the simulation per link over the day, kept in primitive arrays indexed by {@link Id#index()}: vehicles entering
+ * the link, persons entering or leaving vehicles on it (pt passengers at stops, drivers at their cars) and departures and
+ * arrivals of agents on it.
+ * <p>
+ * Persons entering or leaving a vehicle are counted on the link the vehicle last entered. Before a vehicle has entered any
+ * link, these events are not counted.
+ */
+public class LinkLoad implements LinkEnterEventHandler, VehicleEntersTrafficEventHandler, PersonEntersVehicleEventHandler,
+        PersonLeavesVehicleEventHandler, PersonDepartureEventHandler, PersonArrivalEventHandler {
+
+    private int[] vehicleLinks = new int[0];
+
+    private int links;
+    private int[] traversals = new int[0];
+    private int[] boardings = new int[0];
+    private int[] departures = new int[0];
+
+    public LinkLoad() {
+        ensureLinks(Id.getNumberOfIds(Link.class));
+    }
+
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
+        int link = event.getLinkId().index();
+        ensureLinks(link + 1);
+        traversals[link]++;
+        setVehicleLink(event.getVehicleId(), link);
+    }
+
+    @Override
+    public void handleEvent(VehicleEntersTrafficEvent event) {
+        setVehicleLink(event.getVehicleId(), event.getLinkId().index());
+    }
+
+    @Override
+    public void handleEvent(PersonEntersVehicleEvent event) {
+        board(event.getVehicleId());
+    }
+
+    @Override
+    public void handleEvent(PersonLeavesVehicleEvent event) {
+        board(event.getVehicleId());
+    }
+
+    @Override
+    public void handleEvent(PersonDepartureEvent event) {
+        depart(event.getLinkId());
+    }
+
+    @Override
+    public void handleEvent(PersonArrivalEvent event) {
+        depart(event.getLinkId());
+    }
+
+    @Override
+    public void reset(int iteration) {
+        Arrays.fill(vehicleLinks, -1);
+        Arrays.fill(traversals, 0);
+        Arrays.fill(boardings, 0);
+        Arrays.fill(departures, 0);
+    }
+
+    /**
+     * @return upper bound of the link indices with counts
+     */
+    public int links() {
+        return links;
+    }
+
+    public int traversals(int link) {
+        return link < links ? traversals[link] : 0;
+    }
+
+    public int boardings(int link) {
+        return link < links ? boardings[link] : 0;
+    }
+
+    public int departures(int link) {
+        return link < links ? departures[link] : 0;
+    }
+
+    private void board(Id<Vehicle> vehicleId) {
+        int vehicle = vehicleId.index();
+        if (vehicle >= vehicleLinks.length || vehicleLinks[vehicle] < 0) {
+            return;
+        }
+        boardings[vehicleLinks[vehicle]]++;
+    }
+
+    private void depart(Id<Link> linkId) {
+        if (linkId == null) {
+            return;
+        }
+        int link = linkId.index();
+        ensureLinks(link + 1);
+        departures[link]++;
+    }
+
+    private void setVehicleLink(Id<Vehicle> vehicleId, int link) {
+        ensureLinks(link + 1);
+        int vehicle = vehicleId.index();
+        if (vehicle >= vehicleLinks.length) {
+            int size = Math.max(vehicle + 1, vehicleLinks.length + vehicleLinks.length / 2);
+            int old = vehicleLinks.length;
+            vehicleLinks = Arrays.copyOf(vehicleLinks, size);
+            Arrays.fill(vehicleLinks, old, size, -1);
+        }
+        vehicleLinks[vehicle] = link;
+    }
+
+    private void ensureLinks(int n) {
+        if (n <= links) {
+            return;
+        }
+        int size = Math.max(n, links + links / 2);
+        traversals = Arrays.copyOf(traversals, size);
+        boardings = Arrays.copyOf(boardings, size);
+        departures = Arrays.copyOf(departures, size);
+        links = size;
+    }
+}
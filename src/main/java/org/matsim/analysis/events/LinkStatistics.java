@@ -0,0 +1,178 @@
+package org.matsim.analysis.events;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleEntersTrafficEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleLeavesTrafficEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+
+/**
+ * Flows and travel times per link and time bin, kept in primitive arrays indexed by {@link Id#index()}. Memory grows with the
+ * number of links times bins, not with the number of events, so full scenario event files can be processed.
+ * <p>
+ * Flows are counted when vehicles leave a link, like in MATSim's volumes analysis. Travel times are counted in the bin in
+ * which the vehicle entered the link, and only for vehicles that passed the whole link, i.e. not on the links where they
+ * enter or leave traffic. Per link, travel times are also collected in a histogram with logarithmic buckets, for comparing
+ * distributions and not only means.
+ */
+public class LinkStatistics implements LinkEnterEventHandler, LinkLeaveEventHandler, VehicleEntersTrafficEventHandler, VehicleLeavesTrafficEventHandler {
+
+    /**
+     * Buckets of travel times: [0, 1), [1, 2), [2, 4), ..., [2^14, 2^15), [2^15, inf) seconds.
+     */
+    public static final int HISTOGRAM_BUCKETS = 17;
+
+    private final double binSize;
+    private final int bins;
+
+    private double[] enterTimes = new double[0];
+
+    private int links;
+    private int[] flows = new int[0];
+    private int[] travelTimeCounts = new int[0];
+    private double[] travelTimeSums = new double[0];
+    private int[] histograms = new int[0];
+
+    /**
+     * @param binSize size of the time bins in seconds
+     * @param endTime end of the last bin. Later events are counted in the last bin.
+     */
+    public LinkStatistics(double binSize, double endTime) {
+        this.binSize = binSize;
+        this.bins = Math.max(1, (int) Math.ceil(endTime / binSize));
+        ensureLinks(Id.getNumberOfIds(Link.class));
+    }
+
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
+        setEnterTime(event.getVehicleId(), event.getTime());
+    }
+
+    @Override
+    public void handleEvent(VehicleEntersTrafficEvent event) {
+        // vehicles start somewhere on the link, which would shorten the travel time
+        setEnterTime(event.getVehicleId(), Double.NaN);
+    }
+
+    @Override
+    public void handleEvent(VehicleLeavesTrafficEvent event) {
+        setEnterTime(event.getVehicleId(), Double.NaN);
+    }
+
+    @Override
+    public void handleEvent(LinkLeaveEvent event) {
+        int link = event.getLinkId().index();
+        ensureLinks(link + 1);
+        flows[link * bins + bin(event.getTime())]++;
+
+        int vehicle = event.getVehicleId().index();
+        if (vehicle >= enterTimes.length || Double.isNaN(enterTimes[vehicle])) {
+            return;
+        }
+
+        double enter = enterTimes[vehicle];
+        double travelTime = event.getTime() - enter;
+        int i = link * bins + bin(enter);
+        travelTimeCounts[i]++;
+        travelTimeSums[i] += travelTime;
+        histograms[link * HISTOGRAM_BUCKETS + bucket(travelTime)]++;
+        enterTimes[vehicle] = Double.NaN;
+    }
+
+    @Override
+    public void reset(int iteration) {
+        Arrays.fill(enterTimes, Double.NaN);
+        Arrays.fill(flows, 0);
+        Arrays.fill(travelTimeCounts, 0);
+        Arrays.fill(travelTimeSums, 0);
+        Arrays.fill(histograms, 0);
+    }
+
+    /**
+     * @return upper bound of the link indices with statistics
+     */
+    public int links() {
+        return links;
+    }
+
+    public int bins() {
+        return bins;
+    }
+
+    public double binSize() {
+        return binSize;
+    }
+
+    public int flow(int link, int bin) {
+        return link < links ? flows[link * bins + bin] : 0;
+    }
+
+    public int travelTimeCount(int link, int bin) {
+        return link < links ? travelTimeCounts[link * bins + bin] : 0;
+    }
+
+    public double travelTimeSum(int link, int bin) {
+        return link < links ? travelTimeSums[link * bins + bin] : 0;
+    }
+
+    /**
+     * @return mean travel time of the vehicles that entered the link in the bin, NaN if there are none
+     */
+    public double meanTravelTime(int link, int bin) {
+        int count = travelTimeCount(link, bin);
+        return count == 0 ? Double.NaN : travelTimeSum(link, bin) / count;
+    }
+
+    public int histogram(int link, int bucket) {
+        return link < links ? histograms[link * HISTOGRAM_BUCKETS + bucket] : 0;
+    }
+
+    /**
+     * @return lower bound of a histogram bucket in seconds
+     */
+    public static double bucketLowerBound(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    static int bucket(double travelTime) {
+        if (travelTime < 1) {
+            return 0;
+        }
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros((long) travelTime));
+    }
+
+    private int bin(double time) {
+        return Math.min(bins - 1, (int) (time / binSize));
+    }
+
+    private void setEnterTime(Id<Vehicle> vehicleId, double time) {
+        int vehicle = vehicleId.index();
+        if (vehicle >= enterTimes.length) {
+            int size = Math.max(vehicle + 1, enterTimes.length + enterTimes.length / 2);
+            int old = enterTimes.length;
+            enterTimes = Arrays.copyOf(enterTimes, size);
+            Arrays.fill(enterTimes, old, size, Double.NaN);
+        }
+        enterTimes[vehicle] = time;
+    }
+
+    private void ensureLinks(int n) {
+        if (n <= links) {
+            return;
+        }
+        int size = Math.max(n, links + links / 2);
+        flows = Arrays.copyOf(flows, size * bins);
+        travelTimeCounts = Arrays.copyOf(travelTimeCounts, size * bins);
+        travelTimeSums = Arrays.copyOf(travelTimeSums, size * bins);
+        histograms = Arrays.copyOf(histograms, size * HISTOGRAM_BUCKETS);
+        links = size;
+    }
+}
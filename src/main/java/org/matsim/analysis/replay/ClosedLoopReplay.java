@@ -0,0 +1,103 @@
+package org.matsim.analysis.replay;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import routing.Routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import static org.matsim.analysis.replay.RequestTrace.SIM_TIME;
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+
+/**
+ * Replays a request trace like the simulation: the requests of each simulated second are sent, then the replay waits for
+ * all responses whose departure is in this second before it continues. Late responses thus stop the simulated time.
+ */
+public class ClosedLoopReplay {
+    private static final Logger log = LogManager.getLogger(ClosedLoopReplay.class);
+
+    private final RequestTrace trace;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param from first simulated second to replay
+     * @param to   (exclusive) last simulated second to replay
+     */
+    public ClosedLoopReplay(RequestTrace trace, int from, int to) {
+        this.trace = trace;
+        this.from = from;
+        this.to = Math.min(to, trace.endTime());
+    }
+
+    /**
+     * Sends all requests and waits for the outstanding responses.
+     *
+     * @param send issues one request asynchronously, e.g. {@code RoutingServiceFutureStub::getRoute}.
+     */
+    public LatencyRecorder run(Function<Routing.Request, ListenableFuture<?>> send) throws InterruptedException {
+        LatencyRecorder recorder = new LatencyRecorder();
+        List<List<ListenableFuture<?>>> openFuturesByDeparture = new ArrayList<>(SIM_TIME);
+
+        for (int i = 0; i < SIM_TIME; i++) {
+            openFuturesByDeparture.add(new ArrayList<>(50));
+        }
+
+        for (int now = from; now < to; now++) {
+            if (now % 3600 == 0) {
+                log.info("Replaying now = {}h", now / 3600);
+            }
+
+            for (Routing.Request request : trace.requestsAt(now)) {
+                int dep = nsToS(request.getDepartureTimeNs());
+                int sentAt = now;
+                long sent = System.nanoTime();
+                ListenableFuture<?> future = send.apply(request);
+                // failures are counted when the future is awaited
+                Futures.addCallback(future, new FutureCallback<Object>() {
+                    @Override
+                    public void onSuccess(Object result) {
+                        recorder.record(sentAt, System.nanoTime() - sent);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                    }
+                }, MoreExecutors.directExecutor());
+                openFuturesByDeparture.get(Math.min(Math.max(dep, now), SIM_TIME - 1)).add(future);
+            }
+
+            // wait for all responses of trips departing now
+            for (ListenableFuture<?> future : openFuturesByDeparture.get(now)) {
+                if (!future.isDone()) {
+                    recorder.recordLate();
+                }
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    recorder.recordError();
+                }
+            }
+            openFuturesByDeparture.set(now, List.of());
+        }
+
+        // responses departing after the replayed window
+        for (int second = to; second < SIM_TIME; second++) {
+            for (ListenableFuture<?> future : openFuturesByDeparture.get(second)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    recorder.recordError();
+                }
+            }
+        }
+        return recorder;
+    }
+}
@@ -0,0 +1,254 @@
+package org.matsim.analysis.replay;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import routing.Routing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+
+/**
+ * A request trace with an index of the requests per simulated second. The file is memory-mapped and the requests of a
+ * second are only decoded when {@link #requestsAt(int)} is called, so opening a trace is instant and the heap usage does not
+ * depend on the size of the trace.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * int    magic "RQTR"
+ * int    version
+ * int    number of seconds N
+ * long   number of requests
+ * long[] N + 1 offsets of the requests of each second, relative to the start of the data section
+ * data   length-delimited {@link Routing.Request} messages, grouped by second in ascending order
+ * </pre>
+ */
+public final class IndexedRequestTrace implements RequestTrace, AutoCloseable {
+    static final int MAGIC = 0x52515452;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    // a mapped buffer is limited to 2 GB, so large traces are mapped in several chunks
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final int seconds;
+    private final long count;
+    private final LongBuffer offsets;
+    private final MappedByteBuffer[] chunks;
+    private final long[] chunkStart;
+    private final int[] chunkOfSecond;
+
+    private IndexedRequestTrace(FileChannel channel) throws IOException {
+        this.channel = channel;
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not an indexed request trace");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported trace version " + version);
+        }
+        this.seconds = header.getInt();
+        this.count = header.getLong();
+
+        long indexSize = 8L * (seconds + 1);
+        this.offsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, indexSize).asLongBuffer();
+        long dataStart = HEADER_SIZE + indexSize;
+
+        // cut the data section into chunks at second boundaries
+        this.chunkOfSecond = new int[seconds];
+        List<Long> starts = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        long currentStart = 0;
+        for (int s = 0; s < seconds; s++) {
+            long end = offsets.get(s + 1);
+            if (end - currentStart > MAX_CHUNK_SIZE && offsets.get(s) > currentStart) {
+                starts.add(currentStart);
+                ends.add(offsets.get(s));
+                currentStart = offsets.get(s);
+            }
+            if (end - currentStart > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Requests of second " + s + " exceed 2 GB");
+            }
+            chunkOfSecond[s] = starts.size();
+        }
+        starts.add(currentStart);
+        ends.add(offsets.get(seconds));
+
+        this.chunks = new MappedByteBuffer[starts.size()];
+        this.chunkStart = new long[starts.size()];
+        for (int c = 0; c < chunks.length; c++) {
+            chunkStart[c] = starts.get(c);
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + starts.get(c), ends.get(c) - starts.get(c));
+        }
+    }
+
+    public static IndexedRequestTrace open(Path path) throws IOException {
+        return new IndexedRequestTrace(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    /**
+     * @return whether the file starts with the magic number of an indexed trace.
+     */
+    static boolean isIndexed(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] magic = in.readNBytes(4);
+            return magic.length == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }
+    }
+
+    @Override
+    public int endTime() {
+        return seconds;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    @Override
+    public List<Routing.Request> requestsAt(int second) {
+        if (second < 0 || second >= seconds) {
+            return List.of();
+        }
+        long start = offsets.get(second);
+        long end = offsets.get(second + 1);
+        if (start == end) {
+            return List.of();
+        }
+
+        int c = chunkOfSecond[second];
+        ByteBuffer slice = chunks[c].slice((int) (start - chunkStart[c]), (int) (end - start));
+        CodedInputStream in = CodedInputStream.newInstance(slice);
+
+        List<Routing.Request> res = new ArrayList<>();
+        try {
+            while (!in.isAtEnd()) {
+                res.add(in.readMessage(Routing.Request.parser(), ExtensionRegistryLite.getEmptyRegistry()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupt requests in second " + second, e);
+        }
+        return res;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes an indexed trace. Requests may be added in any order. They are spooled to a temporary file next to the output
+     * and sorted into their seconds on {@link #close()}, so the writer does not hold the requests in memory.
+     */
+    static final class Writer implements RequestTraceWriter {
+        private final Path path;
+        private final Path spool;
+        private final OutputStream spoolOut;
+
+        private long[] bytesPerSecond = new long[SIM_TIME];
+        private int lastSecond = -1;
+        private boolean sorted = true;
+        private long count = 0;
+
+        Writer(Path path) throws IOException {
+            this.path = path;
+            Path dir = path.toAbsolutePath().getParent();
+            this.spool = Files.createTempFile(dir, path.getFileName().toString(), ".spool");
+            this.spoolOut = new BufferedOutputStream(Files.newOutputStream(spool));
+        }
+
+        @Override
+        public synchronized void add(Routing.Request request) throws IOException {
+            int second = nsToS(request.getNowNs());
+            if (second >= bytesPerSecond.length) {
+                bytesPerSecond = Arrays.copyOf(bytesPerSecond, Math.max(second + 1, bytesPerSecond.length * 2));
+            }
+            int size = request.getSerializedSize();
+            bytesPerSecond[second] += CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+            sorted &= second >= lastSecond;
+            lastSecond = Math.max(lastSecond, second);
+            count++;
+            request.writeDelimitedTo(spoolOut);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            spoolOut.close();
+
+            int seconds = lastSecond + 1;
+            long[] offsets = new long[seconds + 1];
+            for (int s = 0; s < seconds; s++) {
+                offsets[s + 1] = offsets[s] + bytesPerSecond[s];
+            }
+
+            long dataStart = HEADER_SIZE + 8L * (seconds + 1);
+            try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate((int) dataStart);
+                header.putInt(MAGIC).putInt(VERSION).putInt(seconds).putLong(count);
+                for (long offset : offsets) {
+                    header.putLong(offset);
+                }
+                header.flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+
+                if (sorted) {
+                    // the spool file already has the final layout
+                    try (FileChannel in = FileChannel.open(spool, StandardOpenOption.READ)) {
+                        long size = in.size();
+                        long transferred = 0;
+                        while (transferred < size) {
+                            transferred += in.transferTo(transferred, size - transferred, out);
+                        }
+                    }
+                } else {
+                    long[] cursor = Arrays.copyOf(offsets, seconds);
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(spool))) {
+                        Routing.Request request;
+                        while ((request = Routing.Request.parseDelimitedFrom(in)) != null) {
+                            int second = nsToS(request.getNowNs());
+                            ByteBuffer bytes = delimited(request);
+                            long position = dataStart + cursor[second];
+                            cursor[second] += bytes.remaining();
+                            while (bytes.hasRemaining()) {
+                                position += out.write(bytes, position);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        }
+
+        private static ByteBuffer delimited(Routing.Request request) throws IOException {
+            int size = request.getSerializedSize();
+            byte[] bytes = new byte[CodedOutputStream.computeUInt32SizeNoTag(size) + size];
+            CodedOutputStream cos = CodedOutputStream.newInstance(bytes);
+            cos.writeUInt32NoTag(size);
+            request.writeTo(cos);
+            cos.checkNoSpaceLeft();
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+}
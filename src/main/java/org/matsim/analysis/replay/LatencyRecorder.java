@@ -0,0 +1,125 @@
+package org.matsim.analysis.replay;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-observed latencies of routing requests, recorded into HdrHistograms. There is one histogram per simulated hour
+ * in which the requests were sent plus one for the whole run. Recording is thread safe.
+ */
+public class LatencyRecorder {
+    private static final Logger log = LogManager.getLogger(LatencyRecorder.class);
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double NS_PER_MS = 1_000_000.;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Histogram total = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+    private final Histogram[] byHour = new Histogram[RequestTrace.SIM_TIME / 3600 + 1];
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    public LatencyRecorder() {
+        for (int i = 0; i < byHour.length; i++) {
+            byHour[i] = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+        }
+    }
+
+    /**
+     * @param now       simulated second in which the request was sent
+     * @param latencyNs wall clock time between sending the request and receiving the response
+     */
+    public void record(int now, long latencyNs) {
+        total.recordValue(latencyNs);
+        byHour[Math.min(now / 3600, byHour.length - 1)].recordValue(latencyNs);
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    /**
+     * Counts a response that arrived after the departure of the trip, i.e. the simulation would have had to wait for it.
+     */
+    public void recordLate() {
+        late.increment();
+    }
+
+    public Histogram getTotal() {
+        return total;
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getLate() {
+        return late.sum();
+    }
+
+    /**
+     * Writes the percentile distribution of all requests ({@code <prefix>latency.hgrm}, in milliseconds, readable by the
+     * HdrHistogram plotter) and a summary per simulated hour ({@code <prefix>latency-summary.csv}).
+     */
+    public void write(Path outputDir, String prefix) {
+        Path hgrm = outputDir.resolve(prefix + "latency.hgrm");
+        Path summary = outputDir.resolve(prefix + "latency-summary.csv");
+        log.info("Writing latency report to {} and {}", hgrm, summary);
+
+        try {
+            Files.createDirectories(outputDir);
+            try (PrintStream out = new PrintStream(Files.newOutputStream(hgrm))) {
+                total.outputPercentileDistribution(out, NS_PER_MS);
+            }
+
+            try (BufferedWriter writer = Files.newBufferedWriter(summary);
+                 CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("hour", "count", "mean_ms", "p50_ms", "p90_ms", "p99_ms", "p999_ms", "max_ms").build())) {
+                for (int hour = 0; hour < byHour.length; hour++) {
+                    if (byHour[hour].getTotalCount() > 0) {
+                        printRow(csv, String.valueOf(hour), byHour[hour]);
+                    }
+                }
+                printRow(csv, "all", total);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Logs count, errors and percentiles of all requests.
+     */
+    public void logSummary() {
+        log.info("Requests: {}, errors: {}, late: {}, mean: {} ms, p50: {} ms, p90: {} ms, p99: {} ms, p99.9: {} ms, max: {} ms",
+                total.getTotalCount(), getErrors(), getLate(),
+                String.format("%.3f", total.getMean() / NS_PER_MS),
+                ms(total, 50), ms(total, 90), ms(total, 99), ms(total, 99.9),
+                String.format("%.3f", total.getMaxValue() / NS_PER_MS));
+    }
+
+    private static void printRow(CSVPrinter csv, String label, Histogram h) throws IOException {
+        csv.print(label);
+        csv.print(h.getTotalCount());
+        csv.print(String.format("%.3f", h.getMean() / NS_PER_MS));
+        for (double p : PERCENTILES) {
+            csv.print(ms(h, p));
+        }
+        csv.print(String.format("%.3f", h.getMaxValue() / NS_PER_MS));
+        csv.println();
+    }
+
+    private static String ms(Histogram h, double percentile) {
+        return String.format("%.3f", h.getValueAtPercentile(percentile) / NS_PER_MS);
+    }
+}
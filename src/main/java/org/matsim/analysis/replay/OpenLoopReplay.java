@@ -0,0 +1,118 @@
+package org.matsim.analysis.replay;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import routing.Routing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+
+/**
+ * Replays a request trace on a wall clock schedule. The requests of simulated second {@code s} are sent at
+ * {@code (s - from) * dilation} wall clock seconds after the start, no matter whether earlier responses already arrived.
+ * This is an open-loop load: unlike the simulation, the replay never waits for the router, so the router sees the arrival
+ * rate of the trace scaled by {@code 1 / dilation}.
+ */
+public class OpenLoopReplay {
+    private static final Logger log = LogManager.getLogger(OpenLoopReplay.class);
+
+    private final RequestTrace trace;
+    private final double dilation;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param dilation wall clock seconds per simulated second, e.g. 1 replays in real time, 0.01 a hundred times faster.
+     * @param from     first simulated second to replay
+     * @param to       (exclusive) last simulated second to replay
+     */
+    public OpenLoopReplay(RequestTrace trace, double dilation, int from, int to) {
+        if (dilation <= 0) {
+            throw new IllegalArgumentException("Time dilation must be positive, but was " + dilation);
+        }
+        this.trace = trace;
+        this.dilation = dilation;
+        this.from = from;
+        this.to = Math.min(to, trace.endTime());
+    }
+
+    /**
+     * Sends all requests and waits for the outstanding responses.
+     *
+     * @param send issues one request asynchronously, e.g. {@code RoutingServiceFutureStub::getRoute}.
+     */
+    public LatencyRecorder run(Function<Routing.Request, ListenableFuture<?>> send) throws InterruptedException {
+        LatencyRecorder recorder = new LatencyRecorder();
+        AtomicLong outstanding = new AtomicLong();
+        Object monitor = new Object();
+
+        long start = System.nanoTime();
+        long maxLag = 0;
+
+        for (int second = from; second < to; second++) {
+            long scheduled = start + wallNs(second - from);
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            maxLag = Math.max(maxLag, -wait);
+
+            if (second % 3600 == 0) {
+                log.info("Replaying now = {}h, outstanding responses: {}, max schedule lag: {} ms", second / 3600, outstanding.get(), maxLag / 1_000_000);
+            }
+
+            for (Routing.Request request : trace.requestsAt(second)) {
+                int now = second;
+                long departure = start + wallNs(nsToS(request.getDepartureTimeNs()) - from);
+                outstanding.incrementAndGet();
+                long sent = System.nanoTime();
+
+                Futures.addCallback(send.apply(request), new FutureCallback<Object>() {
+                    @Override
+                    public void onSuccess(Object result) {
+                        long received = System.nanoTime();
+                        recorder.record(now, received - sent);
+                        if (received > departure) {
+                            recorder.recordLate();
+                        }
+                        done();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        recorder.recordError();
+                        done();
+                    }
+
+                    private void done() {
+                        if (outstanding.decrementAndGet() == 0) {
+                            synchronized (monitor) {
+                                monitor.notifyAll();
+                            }
+                        }
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+        }
+
+        log.info("All requests sent after {} s, waiting for {} outstanding responses", (System.nanoTime() - start) / 1_000_000_000, outstanding.get());
+        synchronized (monitor) {
+            while (outstanding.get() > 0) {
+                monitor.wait(100);
+            }
+        }
+
+        return recorder;
+    }
+
+    private long wallNs(int simSeconds) {
+        return (long) (simSeconds * dilation * 1e9);
+    }
+}
@@ -0,0 +1,91 @@
+package org.matsim.analysis.replay;
+
+import org.apache.logging.log4j.LogManager;
+import routing.Routing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+
+/**
+ * Routing requests of a simulation run, grouped by the simulated second in which they were sent.
+ */
+public interface RequestTrace {
+    /**
+     * 36 hours, the end time of the Berlin scenario.
+     */
+    int SIM_TIME = 36 * 60 * 60;
+
+    /**
+     * @return the (exclusive) last simulated second of the trace.
+     */
+    int endTime();
+
+    /**
+     * @return all requests whose {@code now_ns} falls into the given simulated second.
+     */
+    List<Routing.Request> requestsAt(int second);
+
+    /**
+     * Opens a trace in either format. Indexed traces are memory-mapped, delimited traces are read into memory.
+     */
+    static RequestTrace open(Path path) throws IOException {
+        if (IndexedRequestTrace.isIndexed(path)) {
+            IndexedRequestTrace trace = IndexedRequestTrace.open(path);
+            LogManager.getLogger(RequestTrace.class).info("Opened indexed trace {} with {} requests", path, trace.size());
+            return trace;
+        }
+        return readDelimited(path);
+    }
+
+    /**
+     * Reads a file of length-delimited {@link Routing.Request} messages, as written by {@code RequestConverter}, into memory.
+     */
+    static RequestTrace readDelimited(Path path) {
+        List<List<Routing.Request>> res = new ArrayList<>(SIM_TIME);
+        for (int i = 0; i < SIM_TIME; i++) {
+            res.add(new ArrayList<>(0));
+        }
+
+        int count = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            Routing.Request msg;
+            while ((msg = Routing.Request.parseDelimitedFrom(in)) != null) {
+                res.get(nsToS(msg.getNowNs())).add(msg);
+                count++;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        LogManager.getLogger(RequestTrace.class).info("Read {} requests from {}", count, path);
+
+        return new RequestTrace() {
+            @Override
+            public int endTime() {
+                return SIM_TIME;
+            }
+
+            @Override
+            public List<Routing.Request> requestsAt(int second) {
+                return res.get(second);
+            }
+        };
+    }
+
+    enum Format {
+        /**
+         * Length-delimited {@link Routing.Request} messages in arbitrary order.
+         */
+        DELIMITED,
+        /**
+         * Length-delimited messages sorted by second plus a per-second offset index, see {@link IndexedRequestTrace}.
+         */
+        INDEXED
+    }
+}
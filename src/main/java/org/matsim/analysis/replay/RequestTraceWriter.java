@@ -0,0 +1,37 @@
+package org.matsim.analysis.replay;
+
+import routing.Routing;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes routing requests to a trace file. Implementations are thread safe.
+ */
+public interface RequestTraceWriter extends Closeable {
+
+    void add(Routing.Request request) throws IOException;
+
+    static RequestTraceWriter create(Path path, RequestTrace.Format format) throws IOException {
+        return switch (format) {
+            case DELIMITED -> new RequestTraceWriter() {
+                private final OutputStream out = new BufferedOutputStream(Files.newOutputStream(path));
+
+                @Override
+                public synchronized void add(Routing.Request request) throws IOException {
+                    request.writeDelimitedTo(out);
+                }
+
+                @Override
+                public synchronized void close() throws IOException {
+                    out.close();
+                }
+            };
+            case INDEXED -> new IndexedRequestTrace.Writer(path);
+        };
+    }
+}
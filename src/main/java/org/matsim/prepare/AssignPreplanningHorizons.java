@@ -0,0 +1,277 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.GenerateRequestTrace;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.population.io.PopulationWriter;
+import org.matsim.core.router.TripStructureUtils;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.matsim.prepare.PreparePopulation.PREPLANNING_HORIZON_ATTRIBUTE;
+
+/**
+ * Gives every trip of a mode its own preplanning horizon, so that the routing requests do not arrive in the same peaks as
+ * the departures. With a fixed horizon, the request load of the router is the departure profile shifted by the horizon.
+ * Here, requests are moved from bins above the capacity of the router into earlier bins with spare capacity, as long as the
+ * horizon stays within {@code --min-horizon} and {@code --max-horizon} and the request is not sent before the agent started
+ * its origin activity.
+ * <p>
+ * The first pass over the population collects the windows of possible request times per trip, aggregated by time bin. The
+ * schedule fills the bins backwards in time, each with up to the capacity, and always takes the requests which can be moved
+ * least far back first. A trip is only moved earlier if its later bins are full; requests which cannot be placed within
+ * their window go to its earliest bin, above capacity. The second pass writes the horizons of the schedule as
+ * {@link PreparePopulation#PREPLANNING_HORIZON_ATTRIBUTE} of the origin activities, as read by the simulation and by
+ * {@link GenerateRequestTrace}.
+ */
+@CommandLine.Command(name = "assign-preplanning-horizons", description = "Assigns preplanning horizons per trip, to keep the routing requests per time bin below a capacity.")
+public class AssignPreplanningHorizons implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(AssignPreplanningHorizons.class);
+
+    @CommandLine.Option(names = "--input", description = "Path to population with activity end times", required = true)
+    private Path input;
+
+    @CommandLine.Option(names = "--output", description = "Path to the population with horizons. Defaults to the input with suffix -horizons.")
+    private String output;
+
+    @CommandLine.Option(names = "--mode", description = "Main mode of the trips which are routed", defaultValue = "pt")
+    private String mode;
+
+    @CommandLine.Option(names = "--capacity", description = "Routing requests per second the router should get at most, for this population", required = true)
+    private double capacity;
+
+    @CommandLine.Option(names = "--min-horizon", description = "Smallest horizon in seconds, used whenever the capacity allows", defaultValue = "600")
+    private int minHorizon;
+
+    @CommandLine.Option(names = "--max-horizon", description = "Largest horizon in seconds", defaultValue = "3600")
+    private int maxHorizon;
+
+    @CommandLine.Option(names = "--bin-size", description = "Size of the time bins in seconds in which the capacity holds", defaultValue = "60")
+    private int binSize;
+
+    @CommandLine.Option(names = "--threads", description = "Number of worker threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) {
+        new AssignPreplanningHorizons().execute(args);
+    }
+
+    @Override
+    public Integer call() {
+        if (minHorizon > maxHorizon) {
+            throw new IllegalArgumentException("--min-horizon must not be larger than --max-horizon");
+        }
+        int binCapacity = (int) Math.floor(capacity * binSize);
+        if (binCapacity < 1) {
+            throw new IllegalArgumentException("The capacity must allow at least one request per bin");
+        }
+
+        Schedule schedule = new Schedule(binCapacity);
+        log.info("Collecting request windows of {} trips from {}", mode, input);
+        PopulationPipeline.read(input.toString())
+                .threads(threads)
+                .run(this::windows, windows -> windows.forEach(schedule::add));
+
+        schedule.compute();
+        log.info("Peak of {} requests per {} s with a horizon of {} s, {} with the assigned horizons, capacity {}",
+                schedule.peakWithoutShift(), binSize, minHorizon, schedule.peak(), binCapacity);
+        log.info("Shifted {} of {} requests to earlier bins, {} requests exceed the capacity", schedule.shifted(), schedule.requests(), schedule.overflow());
+
+        String path = output != null ? output : input.toString().replace(".xml", "-horizons.xml");
+        log.info("Writing population to {}", path);
+        // not PopulationPipeline.write, whose map runs on the workers: the horizons are assigned on the single sink thread,
+        // so that the same input always yields the same horizons
+        PopulationWriter writer = new PopulationWriter(PopulationPipeline.readHeader(input.toString()));
+        writer.writeStartPlans(path);
+        try {
+            PopulationPipeline.read(input.toString())
+                    .threads(threads)
+                    .forEach(person -> {
+                        assign(person, schedule);
+                        writer.writePerson(person);
+                    });
+        } finally {
+            writer.writeEndPlans();
+        }
+
+        return 0;
+    }
+
+    private List<Window> windows(Person person) {
+        List<Window> res = new ArrayList<>();
+        for (TripStructureUtils.Trip trip : trips(person)) {
+            res.add(window(trip.getOriginActivity()).window());
+        }
+        return res;
+    }
+
+    private void assign(Person person, Schedule schedule) {
+        for (TripStructureUtils.Trip trip : trips(person)) {
+            Activity origin = trip.getOriginActivity();
+            Times times = window(origin);
+            int bin = schedule.next(times.window());
+
+            // keep the position within the bin of the latest request time, so that requests do not pile up at bin starts
+            double request = bin * (double) binSize + times.latest() % binSize;
+            request = Math.max(times.earliest(), Math.min(times.latest(), request));
+            int horizon = (int) Math.round(origin.getEndTime().seconds() - request);
+            origin.getAttributes().putAttribute(PREPLANNING_HORIZON_ATTRIBUTE, horizon);
+        }
+    }
+
+    /**
+     * Trips which are routed, in the same way as {@link GenerateRequestTrace} selects them.
+     */
+    private List<TripStructureUtils.Trip> trips(Person person) {
+        Plan plan = person.getSelectedPlan();
+        if (plan == null) {
+            return List.of();
+        }
+        return TripStructureUtils.getTrips(plan).stream()
+                .filter(t -> mode.equals(TripStructureUtils.identifyMainMode(t.getLegsOnly())))
+                .filter(GenerateRequestTrace::routable)
+                .toList();
+    }
+
+    /**
+     * Earliest and latest possible request time of a trip.
+     */
+    private Times window(Activity origin) {
+        double departure = origin.getEndTime().seconds();
+        double earliest = Math.max(0, departure - maxHorizon);
+        double latest = Math.max(0, departure - minHorizon);
+        if (origin.getStartTime().isDefined()) {
+            double start = origin.getStartTime().seconds();
+            earliest = Math.max(earliest, start);
+            latest = Math.max(latest, start);
+        }
+        return new Times(earliest, latest, new Window((int) (earliest / binSize), (int) (latest / binSize)));
+    }
+
+    private record Times(double earliest, double latest, Window window) {
+    }
+
+    /**
+     * Bins in which a request may be sent, both inclusive.
+     */
+    record Window(int earliest, int latest) {
+    }
+
+    /**
+     * Assignment of requests to time bins, aggregated by window.
+     */
+    static final class Schedule {
+        private final int capacity;
+        private final Map<Window, Integer> demand = new HashMap<>();
+        private final Map<Window, Deque<int[]>> allocations = new HashMap<>();
+        private int[] load = new int[0];
+        private int[] loadWithoutShift = new int[0];
+        private long requests;
+        private long shifted;
+        private long overflow;
+
+        Schedule(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(Window window) {
+            demand.merge(window, 1, Integer::sum);
+        }
+
+        /**
+         * Fills the bins from the last to the first. Open windows are served by their earliest bin, latest first, since these
+         * cannot be moved as far back as the others.
+         */
+        void compute() {
+            List<Window> windows = new ArrayList<>(demand.keySet());
+            windows.sort(Comparator.comparingInt(Window::latest).reversed());
+            int bins = windows.isEmpty() ? 0 : windows.getFirst().latest() + 1;
+            load = new int[bins];
+            loadWithoutShift = new int[bins];
+
+            PriorityQueue<int[]> open = new PriorityQueue<>(Comparator.comparingInt((int[] o) -> windows.get(o[0]).earliest()).reversed());
+            int next = 0;
+            for (int bin = bins - 1; bin >= 0; bin--) {
+                while (next < windows.size() && windows.get(next).latest() == bin) {
+                    int count = demand.get(windows.get(next));
+                    loadWithoutShift[bin] += count;
+                    requests += count;
+                    open.add(new int[]{next, count});
+                    next++;
+                }
+
+                int free = capacity;
+                while (!open.isEmpty() && free > 0) {
+                    int[] o = open.peek();
+                    int n = Math.min(free, o[1]);
+                    allocate(windows.get(o[0]), bin, n);
+                    o[1] -= n;
+                    free -= n;
+                    if (o[1] == 0) {
+                        open.poll();
+                    }
+                }
+
+                // windows starting in this bin cannot wait any longer
+                while (!open.isEmpty() && windows.get(open.peek()[0]).earliest() >= bin) {
+                    int[] o = open.poll();
+                    allocate(windows.get(o[0]), bin, o[1]);
+                    overflow += o[1];
+                }
+            }
+        }
+
+        /**
+         * @return the bin of the next request with the window
+         */
+        int next(Window window) {
+            Deque<int[]> allocation = allocations.get(window);
+            if (allocation == null || allocation.isEmpty()) {
+                throw new IllegalStateException("No request left in " + window + ", the population changed between the passes");
+            }
+            int[] a = allocation.peekFirst();
+            if (--a[1] == 0) {
+                allocation.pollFirst();
+            }
+            return a[0];
+        }
+
+        int peak() {
+            return Arrays.stream(load).max().orElse(0);
+        }
+
+        int peakWithoutShift() {
+            return Arrays.stream(loadWithoutShift).max().orElse(0);
+        }
+
+        int load(int bin) {
+            return bin < load.length ? load[bin] : 0;
+        }
+
+        long requests() {
+            return requests;
+        }
+
+        long shifted() {
+            return shifted;
+        }
+
+        long overflow() {
+            return overflow;
+        }
+
+        private void allocate(Window window, int bin, int count) {
+            allocations.computeIfAbsent(window, w -> new ArrayDeque<>()).addLast(new int[]{bin, count});
+            load[bin] += count;
+            if (bin < window.latest()) {
+                shifted += count;
+            }
+        }
+    }
+}
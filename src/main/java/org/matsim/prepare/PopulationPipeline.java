@@ -0,0 +1,258 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationWriter;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.utils.objectattributes.ObjectAttributesConverter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Streams a population through a chain of per person filters and transformations. Persons are parsed one by one,
+ * processed on a pool of worker threads and handed to the sink on a single thread in input order. Only a bounded number of
+ * persons is in flight at any time, so memory does not depend on the size of the population.
+ * <p>
+ * Example:
+ * <pre>{@code
+ * PopulationPipeline.read("plans.xml.gz")
+ *         .filter(p -> p.getSelectedPlan() != null)
+ *         .map(p -> { p.getAttributes().removeAttribute("income"); return p; })
+ *         .write("plans-filtered.xml.gz");
+ * }</pre>
+ */
+public final class PopulationPipeline {
+    private static final Logger log = LogManager.getLogger(PopulationPipeline.class);
+
+    // marks the end of the input in the queue of results
+    private static final Future<Object> END = CompletableFuture.completedFuture(null);
+
+    private final String input;
+    private final List<UnaryOperator<Person>> stages = new ArrayList<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private PopulationPipeline(String input) {
+        this.input = input;
+    }
+
+    public static PopulationPipeline read(String input) {
+        return new PopulationPipeline(input);
+    }
+
+    public PopulationPipeline threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Keeps only persons matching the predicate.
+     */
+    public PopulationPipeline filter(Predicate<Person> predicate) {
+        stages.add(p -> predicate.test(p) ? p : null);
+        return this;
+    }
+
+    /**
+     * Transforms persons. The function may modify the person and return it, return another person, or return null to drop
+     * it.
+     */
+    public PopulationPipeline map(UnaryOperator<Person> function) {
+        stages.add(function);
+        return this;
+    }
+
+    /**
+     * Writes the remaining persons to a plans file, together with the description and attributes of the input population,
+     * such as its coordinate reference system.
+     */
+    public Result write(String output) {
+        PopulationWriter writer = new PopulationWriter(readHeader(input));
+        writer.writeStartPlans(output);
+        try {
+            return run(p -> p, writer::writePerson);
+        } finally {
+            writer.writeEndPlans();
+        }
+    }
+
+    /**
+     * Passes the remaining persons to the sink, on one thread and in input order.
+     */
+    public Result forEach(Consumer<Person> sink) {
+        return run(p -> p, sink);
+    }
+
+    /**
+     * Converts the remaining persons on the worker threads and passes the results to the sink, on one thread and in input
+     * order. Null results are skipped.
+     */
+    public <T> Result run(Function<Person, T> task, Consumer<? super T> sink) {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ExecutorService consumer = Executors.newSingleThreadExecutor();
+
+        // bounds the persons in flight: the reader blocks when the sink falls behind
+        BlockingQueue<Future<?>> results = new ArrayBlockingQueue<>(threads * 64);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        LongAdder read = new LongAdder();
+        LongAdder written = new LongAdder();
+
+        Future<?> consuming = consumer.submit(() -> consume(results, sink, failure, written));
+
+        StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+        reader.addAlgorithm(person -> {
+            read.increment();
+            enqueue(results, workers.submit(() -> apply(person, task)));
+        });
+
+        try {
+            log.info("Streaming population {} on {} threads", input, threads);
+            reader.readFile(input);
+        } finally {
+            enqueue(results, END);
+            try {
+                consuming.get();
+            } catch (InterruptedException | ExecutionException e) {
+                failure.compareAndSet(null, e);
+            }
+            workers.shutdown();
+            consumer.shutdown();
+        }
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("Failed to process population " + input, failure.get());
+        }
+
+        Result result = new Result(read.sum(), written.sum());
+        log.info("Processed {} persons of {}, passed on {}", result.read(), input, result.written());
+        return result;
+    }
+
+    /**
+     * Reads the description and attributes of a population file, which precede the first person. The streaming reader
+     * does not pass them on, writers of streamed persons start with them instead.
+     */
+    static Population readHeader(String input) {
+        Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+        ObjectAttributesConverter converter = new ObjectAttributesConverter();
+
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try (InputStream in = IOUtils.getInputStream(IOUtils.resolveFileOrResource(input))) {
+            XMLStreamReader xml = factory.createXMLStreamReader(in);
+            int depth = 0;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                } else if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                String element = xml.getLocalName();
+                if (element.equals("person")) {
+                    break;
+                } else if (element.equals("population") && xml.getAttributeValue(null, "desc") != null) {
+                    population.setName(xml.getAttributeValue(null, "desc"));
+                } else if (element.equals("attribute") && depth == 3) {
+                    // <population><attributes><attribute>
+                    String name = xml.getAttributeValue(null, "name");
+                    String type = xml.getAttributeValue(null, "class");
+                    population.getAttributes().putAttribute(name, converter.convert(type, xml.getElementText()));
+                    depth--;
+                }
+            }
+            xml.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + input, e);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Failed to read the header of " + input, e);
+        }
+        return population;
+    }
+
+    private <T> T apply(Person person, Function<Person, T> task) {
+        Person p = person;
+        for (UnaryOperator<Person> stage : stages) {
+            p = stage.apply(p);
+            if (p == null) {
+                return null;
+            }
+        }
+        return task.apply(p);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void consume(BlockingQueue<Future<?>> results, Consumer<? super T> sink, AtomicReference<Throwable> failure, LongAdder written) {
+        while (true) {
+            Future<?> next;
+            try {
+                next = results.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+                return;
+            }
+            if (next == END) {
+                return;
+            }
+            // after a failure, keep draining so that the reader does not block
+            if (failure.get() != null) {
+                continue;
+            }
+            try {
+                T result = (T) next.get();
+                if (result != null) {
+                    sink.accept(result);
+                    written.increment();
+                }
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, e.getCause());
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+                return;
+            }
+        }
+    }
+
+    private static void enqueue(BlockingQueue<Future<?>> results, Future<?> result) {
+        try {
+            results.put(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading population", e);
+        }
+    }
+
+    /**
+     * @param read    persons read from the input
+     * @param written results passed on to the sink
+     */
+    public record Result(long read, long written) {
+    }
+}
@@ -0,0 +1,120 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.IdStoreDeserializer;
+import org.matsim.analysis.events.BinpbEventsReader;
+import org.matsim.analysis.events.LinkLoad;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.network.NetworkUtils;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Derives load weights for the partitioning of the network from the events of an earlier run, so that the parts of the
+ * parallel simulation do similar amounts of work and not only have similar numbers of links.
+ * <p>
+ * A link weighs its base weight plus the vehicles entering it, the persons entering or leaving vehicles on it and the
+ * departures and arrivals on it, each count multiplied with its factor. A node weighs the sum of its in-links, since the
+ * simulation moves vehicles over a node when handling its in-links. The weights are written as integer attributes
+ * {@value #LOAD_WEIGHT_ATTRIBUTE} of links and nodes: node weights balance the work of the parts, link weights make cuts
+ * through busy links, which exchange many vehicles between parts, expensive.
+ */
+@CommandLine.Command(name = "prepare-partition-weights", description = "Writes load weights per link and node from the events of a run as network attributes.")
+public class PreparePartitionWeights implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(PreparePartitionWeights.class);
+
+    public static final String LOAD_WEIGHT_ATTRIBUTE = "load_weight";
+
+    @CommandLine.Option(names = "--network", description = "Path to the network of the run", required = true)
+    private String input;
+
+    @CommandLine.Option(names = "--events", description = "Events of the run, XML or with --id-store a binpb file or folder with events.<rank>.binpb", required = true)
+    private Path events;
+
+    @CommandLine.Option(names = "--id-store", description = "Id store of the Rust run, to read its binary events")
+    private Path idStore;
+
+    @CommandLine.Option(names = "--output", description = "Path to the weighted network. Defaults to the network with suffix -weighted.")
+    private String output;
+
+    @CommandLine.Option(names = "--base-weight", description = "Weight of a link without any events", defaultValue = "1")
+    private double baseWeight;
+
+    @CommandLine.Option(names = "--traversal-factor", description = "Weight of a vehicle entering a link", defaultValue = "1")
+    private double traversalFactor;
+
+    @CommandLine.Option(names = "--boarding-factor", description = "Weight of a person entering or leaving a vehicle", defaultValue = "1")
+    private double boardingFactor;
+
+    @CommandLine.Option(names = "--departure-factor", description = "Weight of a departure or arrival", defaultValue = "1")
+    private double departureFactor;
+
+    public static void main(String[] args) {
+        new PreparePartitionWeights().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        // read first, so that the link ids of the events resolve to the indices of the network
+        Network network = NetworkUtils.readNetwork(input);
+
+        LinkLoad load = new LinkLoad();
+        EventsManager eventsManager = EventsUtils.createEventsManager();
+        eventsManager.addHandler(load);
+        eventsManager.initProcessing();
+        log.info("Reading events {}", events);
+        if (idStore != null) {
+            new BinpbEventsReader(eventsManager, IdStoreDeserializer.loadIdStore(idStore)).readFile(events);
+        } else {
+            new MatsimEventsReader(eventsManager).readFile(events.toString());
+        }
+        eventsManager.finishProcessing();
+
+        long total = 0;
+        for (Link link : network.getLinks().values()) {
+            int l = link.getId().index();
+            int weight = (int) Math.round(baseWeight
+                    + traversalFactor * load.traversals(l)
+                    + boardingFactor * load.boardings(l)
+                    + departureFactor * load.departures(l));
+            link.getAttributes().putAttribute(LOAD_WEIGHT_ATTRIBUTE, Math.max(1, weight));
+        }
+
+        int[] nodeWeights = new int[network.getNodes().size()];
+        int i = 0;
+        for (Node node : network.getNodes().values()) {
+            int weight = 0;
+            for (Link link : node.getInLinks().values()) {
+                weight += (int) link.getAttributes().getAttribute(LOAD_WEIGHT_ATTRIBUTE);
+            }
+            // nodes without in-links still cost something per time step
+            weight = Math.max(1, weight);
+            node.getAttributes().putAttribute(LOAD_WEIGHT_ATTRIBUTE, weight);
+            nodeWeights[i++] = weight;
+            total += weight;
+        }
+
+        Arrays.sort(nodeWeights);
+        long top = 0;
+        int topCount = Math.max(1, nodeWeights.length / 100);
+        for (int n = nodeWeights.length - topCount; n < nodeWeights.length; n++) {
+            top += nodeWeights[n];
+        }
+        log.info("Total node weight {}, the 1% heaviest nodes carry {}%", total, total == 0 ? 0 : 100 * top / total);
+
+        String path = output != null ? output : input.replace(".xml", "-weighted.xml");
+        log.info("Writing weighted network to {}", path);
+        NetworkUtils.writeNetwork(network, path);
+
+        return 0;
+    }
+}
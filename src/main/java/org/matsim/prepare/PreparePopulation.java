@@ -7,55 +7,173 @@ import org.matsim.api.core.v01.population.*;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.prepare.population.CleanPopulation;
 import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationWriter;
 import org.matsim.core.router.TripStructureUtils;
+import org.matsim.utils.objectattributes.attributable.AttributesUtils;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 @CommandLine.Command(
         name = "prepare-population",
-        description = "Filters population by a given set of modes. Preserves all agents using only these modes.")
+        description = {"Filters population by a given set of modes. Preserves all agents using only these modes.",
+                "Optionally writes sub-samples and versions with different preplanning horizons of pt trips, all from one pass over the input."})
 public class PreparePopulation implements MATSimAppCommand {
     public static final Logger log = LogManager.getLogger(PreparePopulation.class);
     public static final String PREPLANNING_HORIZON_ATTRIBUTE = "preplanningHorizon";
 
+    // persons queued per output before the pipeline blocks
+    private static final int QUEUE_CAPACITY = 1024;
+
     @CommandLine.Option(names = "--input", description = "Path to population", required = true)
     private Path input;
 
     @CommandLine.Option(names = "--modes", split = ",", description = "Positive set of modes that the population is allowed to use")
     private Set<String> modes;
 
+    @CommandLine.Option(names = "--input-pct", description = "Sample size of the input in percent, required for --samples")
+    private Double inputPct;
+
+    @CommandLine.Option(names = "--samples", split = ",", description = "Sample sizes in percent to write, e.g. 0.1,1,10. Smaller samples are subsets of larger ones.")
+    private List<Double> samples = new ArrayList<>();
+
+    @CommandLine.Option(names = "--horizons", split = ",", description = "Preplanning horizons in seconds, set on the origin activities of pt trips. One output per horizon.")
+    private List<Integer> horizons = new ArrayList<>();
+
+    @CommandLine.Option(names = "--threads", description = "Number of worker threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     @Override
     public Integer call() {
-        Population inputPopulation = PopulationUtils.readPopulation(input.toString());
-        log.info("Read population with {} agents", inputPopulation.getPersons().size());
         log.info("Filtering population with the following modes: {}", modes);
 
-        List<Id<Person>> filteredPersons = inputPopulation.getPersons().values().stream()
-                .map(HasPlansAndId::getSelectedPlan)
-                .filter(p -> TripStructureUtils.getLegs(p).stream().anyMatch(l -> !modes.contains(l.getMode())) || !allActivityLinksSet(p))
-                .map(p -> p.getPerson().getId()).toList();
+        List<Output> outputs = outputs(PopulationPipeline.readHeader(input.toString()));
+        for (Output output : outputs) {
+            log.info("Writing filtered population to {}", output.path);
+            output.start();
+        }
 
-        log.info("Removing {} agents from population", filteredPersons.size());
+        PopulationPipeline.Result result;
+        try {
+            result = PopulationPipeline.read(input.toString())
+                    .threads(threads)
+                    .filter(person -> keep(person.getSelectedPlan()))
+                    .map(person -> {
+                        CleanPopulation.removeUnselectedPlans(person);
+                        return person;
+                    })
+                    .run(this::variants, variants -> {
+                        double draw = draw(variants[0]);
+                        for (Output output : outputs) {
+                            if (draw < output.fraction) {
+                                output.put(variants[output.horizon]);
+                            }
+                        }
+                    });
+        } finally {
+            outputs.forEach(Output::finish);
+        }
 
-        for (Id<Person> id : filteredPersons) {
-            inputPopulation.removePerson(id);
+        log.info("Removed {} agents from population", result.read() - result.written());
+        log.info("Filtered population contains {} agents", result.written());
+        for (Output output : outputs) {
+            log.info("Wrote {} agents to {}", output.written, output.path);
         }
 
-        for (Person person : inputPopulation.getPersons().values()) {
-            CleanPopulation.removeUnselectedPlans(person);
+        return 0;
+    }
+
+    /**
+     * Sets the preplanning horizon on the origin activities of all pt trips of a plan.
+     */
+    public static void setPreplanningHorizon(Plan plan, int horizon) {
+        TripStructureUtils.getTrips(plan).stream()
+                .filter(t -> TripStructureUtils.identifyMainMode(t.getTripElements()).equals("pt"))
+                .forEach(t -> t.getOriginActivity().getAttributes().putAttribute(PREPLANNING_HORIZON_ATTRIBUTE, horizon));
+    }
+
+    private List<Output> outputs(Population header) {
+        List<Double> fractions = new ArrayList<>();
+        List<String> sampleSuffixes = new ArrayList<>();
+        if (samples.isEmpty()) {
+            fractions.add(1.0);
+            sampleSuffixes.add("");
+        } else {
+            if (inputPct == null) {
+                throw new IllegalArgumentException("--input-pct is required to write samples");
+            }
+            for (double pct : samples) {
+                if (pct > inputPct) {
+                    throw new IllegalArgumentException("Sample of " + pct + " pct is larger than the input of " + inputPct + " pct");
+                }
+                fractions.add(pct / inputPct);
+                sampleSuffixes.add("-" + format(pct) + "pct");
+            }
         }
 
-        log.info("Filtered population contains {} agents", inputPopulation.getPersons().size());
+        List<Output> res = new ArrayList<>();
+        for (int s = 0; s < fractions.size(); s++) {
+            if (horizons.isEmpty()) {
+                res.add(new Output(path(sampleSuffixes.get(s)), header, fractions.get(s), 0));
+            }
+            for (int h = 0; h < horizons.size(); h++) {
+                res.add(new Output(path(sampleSuffixes.get(s) + "-horizon" + horizons.get(h)), header, fractions.get(s), h));
+            }
+        }
+        return res;
+    }
 
-        String output = input.toString().replace(".xml", "-filtered" + ".xml");
-        log.info("Writing filtered population to {}", output);
+    private String path(String suffix) {
+        return input.toString().replace(".xml", "-filtered" + suffix + ".xml");
+    }
 
-        PopulationUtils.writePopulation(inputPopulation, output);
+    private static String format(double pct) {
+        return pct == Math.rint(pct) ? String.valueOf((long) pct) : String.valueOf(pct);
+    }
 
-        return 0;
+    /**
+     * One person per horizon, runs on the worker threads. The outputs write on their own threads, so that every horizon
+     * needs its own copy.
+     */
+    private Person[] variants(Person person) {
+        if (horizons.isEmpty()) {
+            return new Person[]{person};
+        }
+        Person[] res = new Person[horizons.size()];
+        for (int h = 0; h < res.length; h++) {
+            Person p = h == 0 ? person : copy(person);
+            setPreplanningHorizon(p.getSelectedPlan(), horizons.get(h));
+            res[h] = p;
+        }
+        return res;
+    }
+
+    private static Person copy(Person person) {
+        Person copy = PopulationUtils.getFactory().createPerson(person.getId());
+        AttributesUtils.copyAttributesFromTo(person, copy);
+        Plan plan = PopulationUtils.createPlan(copy);
+        PopulationUtils.copyFromTo(person.getSelectedPlan(), plan);
+        copy.addPlan(plan);
+        copy.setSelectedPlan(plan);
+        return copy;
+    }
+
+    /**
+     * Uniform draw in [0, 1) which depends only on the person id, so that a person is in the same samples on every run and
+     * the smaller samples are subsets of the larger ones.
+     */
+    private static double draw(Person person) {
+        return new SplittableRandom(person.getId().toString().hashCode()).nextDouble();
+    }
+
+    private boolean keep(Plan plan) {
+        return TripStructureUtils.getLegs(plan).stream().allMatch(l -> modes.contains(l.getMode())) && allActivityLinksSet(plan);
     }
 
     private static boolean allActivityLinksSet(Plan plan) {
@@ -67,4 +185,92 @@ public class PreparePopulation implements MATSimAppCommand {
         }
         return true;
     }
+
+    /**
+     * A plans file written on its own thread, since writing and compressing the XML takes about as long as parsing it. It
+     * starts with the description and attributes of the input population.
+     */
+    private static final class Output implements Runnable {
+        // marks the end of the population in the queue
+        private static final Person END = PopulationUtils.getFactory().createPerson(Id.createPersonId("end of population"));
+
+        private final String path;
+        private final Population header;
+        private final double fraction;
+        private final int horizon;
+        private final BlockingQueue<Person> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread thread = new Thread(this);
+        private volatile RuntimeException failure;
+        private long written;
+
+        Output(String path, Population header, double fraction, int horizon) {
+            this.path = path;
+            this.header = header;
+            this.fraction = fraction;
+            this.horizon = horizon;
+        }
+
+        void start() {
+            thread.setName("write-" + Path.of(path).getFileName());
+            thread.start();
+        }
+
+        void put(Person person) {
+            if (failure != null) {
+                throw new IllegalStateException("Failed to write " + path, failure);
+            }
+            try {
+                queue.put(person);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while writing " + path, e);
+            }
+        }
+
+        void finish() {
+            try {
+                queue.put(END);
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while writing " + path, e);
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Failed to write " + path, failure);
+            }
+        }
+
+        @Override
+        public void run() {
+            PopulationWriter writer = new PopulationWriter(header);
+            boolean started = false;
+            try {
+                writer.writeStartPlans(path);
+                started = true;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            try {
+                Person person;
+                while ((person = queue.take()) != END) {
+                    // after a failure, keep draining so that the pipeline does not block
+                    if (failure != null) {
+                        continue;
+                    }
+                    try {
+                        writer.writePerson(person);
+                        written++;
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (started) {
+                    writer.writeEndPlans();
+                }
+            }
+        }
+    }
 }
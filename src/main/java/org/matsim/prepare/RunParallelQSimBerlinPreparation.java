@@ -4,7 +4,7 @@ import org.matsim.application.MATSimApplication;
 import picocli.CommandLine;
 
 @CommandLine.Command(header = ":: ParallelQSimBerlinPreparation ::", version = "1.0", mixinStandardHelpOptions = true)
-@MATSimApplication.Prepare({PreparePopulation.class, AdaptVehicleTypes.class, PrepareNetwork.class})
+@MATSimApplication.Prepare({PreparePopulation.class, AdaptVehicleTypes.class, PrepareNetwork.class, PreparePartitionWeights.class, AssignPreplanningHorizons.class})
 public class RunParallelQSimBerlinPreparation extends MATSimApplication {
     public static void main(String[] args) {
         MATSimApplication.run(RunParallelQSimBerlinPreparation.class, args);
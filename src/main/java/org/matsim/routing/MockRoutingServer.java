@@ -1,39 +1,173 @@
 package org.matsim.routing;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Empty;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.protobuf.services.ProtoReflectionService;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.matsim.BinpbScenarioReader;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
+import picocli.CommandLine;
 import routing.Routing;
 import routing.RoutingServiceGrpc;
 
-import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
-public class MockRoutingServer {
-    private static final int PORT = 50051;
+/**
+ * Routing server without a router. Each request occupies one of the routing threads for a service time drawn from a
+ * {@link ServiceTimeModel} and is answered with an empty response or a synthetic pt response on the stops and lines of a
+ * transit schedule. This allows testing the client side under realistic router delays and payload sizes without the memory
+ * and startup cost of the Raptor.
+ */
+public class MockRoutingServer implements MATSimAppCommand {
     private static final Logger log = LogManager.getLogger(MockRoutingServer.class);
 
-    public static void main(String[] args) throws IOException, InterruptedException {
-        MockRoutingService routingService = new MockRoutingService();
-        Server server = ServerBuilder.forPort(PORT)
-                .addService(routingService)
+    @CommandLine.Option(names = "--port", description = "Port to listen on", defaultValue = "50051")
+    private int port;
+
+    @CommandLine.Option(names = "--threads", description = "Number of routing threads. A request occupies a thread for its service time.")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(names = "--latency", description = "Service time model. Valid values: ${COMPLETION-CANDIDATES}", defaultValue = "NONE")
+    private ServiceTimeModel.Type latency;
+
+    @CommandLine.Option(names = "--profile", description = "EMPIRICAL only: routing profile to draw service times from")
+    private Path profile;
+
+    @CommandLine.Option(names = "--profile-column", description = "EMPIRICAL only: column of the service times in ns", defaultValue = "duration_ns")
+    private String profileColumn;
+
+    @CommandLine.Option(names = "--latency-ms", description = "CONSTANT: service time, LOGNORMAL: median service time in ms", defaultValue = "3")
+    private double latencyMs;
+
+    @CommandLine.Option(names = "--sigma", description = "LOGNORMAL only: standard deviation of the log service time", defaultValue = "1.0")
+    private double sigma;
+
+    @CommandLine.Option(names = "--spin", description = "Busy-wait instead of sleeping during the service time, to also simulate CPU load")
+    private boolean spin;
+
+    @CommandLine.Option(names = "--empty-responses", description = "Answer with empty responses instead of synthetic pt routes")
+    private boolean emptyResponses;
+
+    @CommandLine.Option(names = "--transit-schedule", description = "Transit schedule whose stops, lines and routes are used in synthetic routes")
+    private String transitSchedule;
+
+    @CommandLine.Option(names = "--binpb", description = "Run id prefix of the binary inputs of the Rust converter, alternative to --transit-schedule")
+    private Path binpb;
+
+    @CommandLine.Option(names = "--transfers", description = "Mean number of transfers of synthetic routes", defaultValue = "0.8")
+    private double meanTransfers;
+
+    @CommandLine.Option(names = "--wait", description = "Mean waiting time at stops of synthetic routes in s", defaultValue = "180")
+    private double meanWait;
+
+    public static void main(String[] args) {
+        new MockRoutingServer().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        ServiceTimeModel model = switch (latency) {
+            case NONE -> ServiceTimeModel.none();
+            case CONSTANT -> ServiceTimeModel.constant(latencyMs);
+            case LOGNORMAL -> ServiceTimeModel.logNormal(latencyMs, sigma);
+            case EMPIRICAL -> {
+                if (profile == null) {
+                    throw new IllegalArgumentException("EMPIRICAL latency requires --profile");
+                }
+                yield ServiceTimeModel.empirical(profile, profileColumn);
+            }
+        };
+        SyntheticResponses responses = emptyResponses ? null : new SyntheticResponses(meanTransfers, meanWait, readTransitSchedule());
+
+        log.info("Starting mock server with {} threads, latency model {}, {} responses", threads, latency, emptyResponses ? "empty" : "synthetic");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("mock-router-%d").build());
+        AtomicReference<Server> serverRef = new AtomicReference<>();
+        Server server = ServerBuilder.forPort(port)
+                .addService(new MockRoutingService(model, responses, spin, () -> serverRef.get().shutdown()))
                 .addService(ProtoReflectionService.newInstance())
+                .executor(executor)
                 .build()
                 .start();
+        serverRef.set(server);
 
-        log.info("Server started on port {}", PORT);
+        log.info("Server started on port {}", port);
         server.awaitTermination();
+        executor.shutdown();
+        log.info("Server stopped");
+        return 0;
+    }
+
+    private TransitSchedule readTransitSchedule() {
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        if (binpb != null) {
+            new BinpbScenarioReader(binpb).readTransitSchedule(scenario.getTransitSchedule());
+        } else if (transitSchedule != null) {
+            new TransitScheduleReader(scenario).readFile(transitSchedule);
+        } else {
+            throw new IllegalArgumentException("Synthetic responses require --transit-schedule or --binpb");
+        }
+        return scenario.getTransitSchedule();
     }
 
     private static class MockRoutingService extends RoutingServiceGrpc.RoutingServiceImplBase {
+        private final ServiceTimeModel model;
+        private final SyntheticResponses responses;
+        private final boolean spin;
+        private final Runnable shutdown;
+
+        MockRoutingService(ServiceTimeModel model, SyntheticResponses responses, boolean spin, Runnable shutdown) {
+            this.model = model;
+            this.responses = responses;
+            this.spin = spin;
+            this.shutdown = shutdown;
+        }
+
         @Override
         public void getRoute(Routing.Request request, StreamObserver<Routing.Response> responseObserver) {
-            log.info("Received request {}", request);
-            Routing.Response response = Routing.Response.newBuilder().build();
+            log.debug("Received request {}", request);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            long deadline = System.nanoTime() + model.sampleNs(random);
+            Routing.Response response = responses == null ? Routing.Response.newBuilder().setRequestId(request.getRequestId()).build() : responses.create(request, random);
+            waitUntil(deadline);
+
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
+
+        @Override
+        public void shutdown(Empty request, StreamObserver<Empty> responseObserver) {
+            log.info("Received shutdown request");
+            responseObserver.onNext(Empty.getDefaultInstance());
+            responseObserver.onCompleted();
+            new Thread(shutdown).start();
+        }
+
+        private void waitUntil(long deadline) {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                if (spin) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(remaining);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,63 @@
+package org.matsim.routing;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.matsim.routing.ph.RoutingServicePH;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Service time of a mocked routing request in nanoseconds.
+ */
+interface ServiceTimeModel {
+
+    long sampleNs(RandomGenerator random);
+
+    static ServiceTimeModel none() {
+        return random -> 0;
+    }
+
+    static ServiceTimeModel constant(double ms) {
+        long ns = (long) (ms * 1_000_000);
+        return random -> ns;
+    }
+
+    /**
+     * Log-normal distribution with the given median. Routing times are heavily right skewed, which the log-normal captures
+     * reasonably well.
+     */
+    static ServiceTimeModel logNormal(double medianMs, double sigma) {
+        double mu = Math.log(medianMs * 1_000_000);
+        return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+
+    /**
+     * Draws from the observed service times of a routing profile ({@code routing-profiling-*.csv}).
+     */
+    static ServiceTimeModel empirical(Path profile, String column) throws IOException {
+        long[] samples;
+        try (BufferedReader reader = Files.newBufferedReader(profile);
+             CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build())) {
+            if (!parser.getHeaderMap().containsKey(column)) {
+                throw new IllegalArgumentException("Column " + column + " not in " + profile);
+            }
+            // answers from the route table took no search
+            samples = parser.stream().filter(RoutingServicePH::isSearch).map(r -> r.get(column)).mapToLong(Long::parseLong).toArray();
+        }
+        if (samples.length == 0) {
+            throw new IllegalArgumentException("No service times in " + profile);
+        }
+        Arrays.sort(samples);
+        return random -> samples[random.nextInt(samples.length)];
+    }
+
+    enum Type {
+        NONE, CONSTANT, LOGNORMAL, EMPIRICAL
+    }
+}
@@ -0,0 +1,240 @@
+package org.matsim.routing;
+
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import routing.Routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+import static org.matsim.routing.ph.RoutingServicePH.sToNs;
+
+/**
+ * Builds pt responses that look like the ones of the Raptor: an access walk, one or more pt legs connected by transfer
+ * walks, and an egress walk, with a {@code pt interaction} activity between each two legs.
+ * <p>
+ * All ids are real ids of the transit schedule, so that the client resolves them like the ones of real responses: walks
+ * start and end at the links of the request and of the stops, and every pt leg rides a transit route of the schedule
+ * between two of its stops. The first leg boards at the stop closest to the origin; every leg alights at the stop of its
+ * route closest to the next waypoint on the beeline to the destination, and the next leg boards another route close to
+ * it. Distances and travel times follow the beelines between these stops.
+ */
+class SyntheticResponses {
+    private static final String INTERACTION = "pt interaction";
+
+    private static final double DETOUR_FACTOR = 1.3;
+    private static final double WALK_SPEED = 1.34;
+    private static final double PT_SPEED = 8.;
+    // radius in which a transfer looks for a stop of another route
+    private static final double TRANSFER_RADIUS = 300;
+
+    private final double meanTransfers;
+    private final double meanWait;
+
+    // stops of route r are routeStops[routeStart[r]] until routeStops[routeStart[r + 1]]
+    private final List<String> lineIds = new ArrayList<>();
+    private final List<String> routeIds = new ArrayList<>();
+    private final int[] routeStart;
+    private final List<TransitStopFacility> routeStops = new ArrayList<>();
+    private final int[] routeOf;
+    // route stops from which a later stop of the route can be reached
+    private final QuadTree<Integer> boardings;
+
+    /**
+     * @param meanTransfers mean number of transfers, drawn from a Poisson distribution
+     * @param meanWait      mean waiting time at a stop in s, exponentially distributed
+     * @param schedule      schedule of which the stops, lines and routes are used
+     */
+    SyntheticResponses(double meanTransfers, double meanWait, TransitSchedule schedule) {
+        this.meanTransfers = meanTransfers;
+        this.meanWait = meanWait;
+
+        List<Integer> starts = new ArrayList<>();
+        for (TransitLine line : schedule.getTransitLines().values()) {
+            for (TransitRoute route : line.getRoutes().values()) {
+                List<TransitStopFacility> stops = route.getStops().stream()
+                        .map(TransitRouteStop::getStopFacility)
+                        .filter(s -> s.getLinkId() != null)
+                        .toList();
+                if (stops.size() < 2) {
+                    continue;
+                }
+                starts.add(routeStops.size());
+                lineIds.add(line.getId().toString());
+                routeIds.add(route.getId().toString());
+                routeStops.addAll(stops);
+            }
+        }
+        if (lineIds.isEmpty()) {
+            throw new IllegalArgumentException("The transit schedule has no route with at least two stops on links");
+        }
+        starts.add(routeStops.size());
+        this.routeStart = starts.stream().mapToInt(Integer::intValue).toArray();
+        this.routeOf = new int[routeStops.size()];
+        for (int r = 0; r < lineIds.size(); r++) {
+            for (int i = routeStart[r]; i < routeStart[r + 1]; i++) {
+                routeOf[i] = r;
+            }
+        }
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (TransitStopFacility stop : routeStops) {
+            minX = Math.min(minX, stop.getCoord().getX());
+            minY = Math.min(minY, stop.getCoord().getY());
+            maxX = Math.max(maxX, stop.getCoord().getX());
+            maxY = Math.max(maxY, stop.getCoord().getY());
+        }
+        this.boardings = new QuadTree<>(minX, minY, maxX, maxY);
+        for (int r = 0; r < lineIds.size(); r++) {
+            for (int i = routeStart[r]; i < routeStart[r + 1] - 1; i++) {
+                boardings.put(x(i), y(i), i);
+            }
+        }
+    }
+
+    Routing.Response create(Routing.Request request, RandomGenerator random) {
+        Routing.Response.Builder response = Routing.Response.newBuilder().setRequestId(request.getRequestId());
+
+        double fromX = request.getFrom().getX();
+        double fromY = request.getFrom().getY();
+        double toX = request.getTo().getX();
+        double toY = request.getTo().getY();
+
+        int ptLegs = 1 + poisson(meanTransfers, random);
+        double time = nsToS(request.getDepartureTimeNs());
+
+        int board = boardings.getClosest(fromX, fromY);
+        time = addWalk(response, request.getFromLinkId(), link(board), Math.hypot(x(board) - fromX, y(board) - fromY), time);
+
+        int alight = -1;
+        for (int i = 0; i < ptLegs; i++) {
+            if (i > 0) {
+                board = transfer(alight);
+                addInteraction(response, alight);
+                time = addWalk(response, link(alight), link(board), Math.hypot(x(board) - x(alight), y(board) - y(alight)), time);
+            }
+            addInteraction(response, board);
+
+            double end = (double) (i + 1) / ptLegs;
+            alight = alight(board, fromX + end * (toX - fromX), fromY + end * (toY - fromY));
+
+            double boarding = time + random.nextExponential() * meanWait;
+            double distance = Math.hypot(x(alight) - x(board), y(alight) - y(board)) * DETOUR_FACTOR;
+            double arrival = boarding + distance / PT_SPEED;
+            int route = routeOf[board];
+
+            Routing.GenericRoute delegate = Routing.GenericRoute.newBuilder()
+                    .setStartLink(link(board))
+                    .setEndLink(link(alight))
+                    .setDistance(distance)
+                    .setTravTimeNs(sToNs(arrival - time))
+                    .build();
+            Routing.PtRouteDescription description = Routing.PtRouteDescription.newBuilder()
+                    .setTransitLineId(lineIds.get(route))
+                    .setTransitRouteId(routeIds.get(route))
+                    .setAccessFacilityId(routeStops.get(board).getId().toString())
+                    .setEgressFacilityId(routeStops.get(alight).getId().toString())
+                    .setBoardingTimeNs(sToNs(boarding))
+                    .build();
+            response.addLegs(Routing.Leg.newBuilder()
+                    .setMode("pt")
+                    .setRoutingMode("pt")
+                    .setDepTimeNs(sToNs(time))
+                    .setTravTimeNs(sToNs(arrival - time))
+                    .setPtRoute(Routing.PtRoute.newBuilder().setDelegate(delegate).setInformation(description)));
+            time = arrival;
+        }
+
+        addInteraction(response, alight);
+        addWalk(response, link(alight), request.getToLinkId(), Math.hypot(toX - x(alight), toY - y(alight)), time);
+
+        return response.build();
+    }
+
+    /**
+     * @return the stop after the boarding stop of its route that is closest to the point
+     */
+    private int alight(int board, double x, double y) {
+        int res = board + 1;
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = board + 1; i < routeStart[routeOf[board] + 1]; i++) {
+            double d = Math.hypot(x(i) - x, y(i) - y);
+            if (d < best) {
+                best = d;
+                res = i;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return a boarding stop of another route near the stop, or the closest boarding stop if there is none
+     */
+    private int transfer(int alight) {
+        Collection<Integer> near = boardings.getDisk(x(alight), y(alight), TRANSFER_RADIUS);
+        for (int i : near) {
+            if (routeOf[i] != routeOf[alight]) {
+                return i;
+            }
+        }
+        return boardings.getClosest(x(alight), y(alight));
+    }
+
+    private double x(int routeStop) {
+        return routeStops.get(routeStop).getCoord().getX();
+    }
+
+    private double y(int routeStop) {
+        return routeStops.get(routeStop).getCoord().getY();
+    }
+
+    private String link(int routeStop) {
+        return routeStops.get(routeStop).getLinkId().toString();
+    }
+
+    private static double addWalk(Routing.Response.Builder response, String from, String to, double beeline, double time) {
+        double distance = beeline * DETOUR_FACTOR;
+        double travelTime = distance / WALK_SPEED;
+        response.addLegs(Routing.Leg.newBuilder()
+                .setMode("walk")
+                .setRoutingMode("pt")
+                .setDepTimeNs(sToNs(time))
+                .setTravTimeNs(sToNs(travelTime))
+                .setGenericRoute(Routing.GenericRoute.newBuilder()
+                        .setStartLink(from)
+                        .setEndLink(to)
+                        .setDistance(distance)
+                        .setTravTimeNs(sToNs(travelTime))));
+        return time + travelTime;
+    }
+
+    private void addInteraction(Routing.Response.Builder response, int routeStop) {
+        response.addActivities(Routing.Activity.newBuilder()
+                .setActType(INTERACTION)
+                .setLinkId(link(routeStop))
+                .setCoordinate(Routing.Coordinate.newBuilder().setX(x(routeStop)).setY(y(routeStop)))
+                .setMaxDurNs(0));
+    }
+
+    private static int poisson(double mean, RandomGenerator random) {
+        // Knuth's method, fine for the small means used here
+        double l = Math.exp(-mean);
+        int k = 0;
+        double p = random.nextDouble();
+        while (p > l) {
+            k++;
+            p *= random.nextDouble();
+        }
+        return k;
+    }
+}
@@ -0,0 +1,201 @@
+package org.matsim.routing.ph;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Limits how many requests may run the Raptor at the same time. Requests above the limit wait until a slot becomes free.
+ * In {@link Mode#FIXED} mode the limiter never blocks, i.e. the number of router threads is the limit. The adaptive modes
+ * change the limit between a lower bound and the number of router threads based on the observed compute latency, so that
+ * the server finds a good degree of parallelism for the hardware it runs on.
+ * <p>
+ * Single Raptor queries vary a lot in their compute time. Therefore, the adaptive algorithms only look at the average
+ * latency of a window of samples, not at single samples.
+ */
+public final class ConcurrencyLimiter {
+    private static final Logger log = LogManager.getLogger(ConcurrencyLimiter.class);
+
+    static final int WINDOW_SIZE = 100;
+
+    public enum Mode {
+        /**
+         * The number of router threads is the limit.
+         */
+        FIXED,
+        /**
+         * Additive increase, multiplicative decrease: grows the limit by one per window as long as the average latency stays
+         * close to the best latency seen so far, and cuts it by 10% otherwise.
+         */
+        AIMD,
+        /**
+         * Scales the limit by the ratio of the long-term to the short-term average latency, similar to Netflix'
+         * Gradient2 limiter.
+         */
+        GRADIENT
+    }
+
+    private final Mode mode;
+    private final Algorithm algorithm;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private int limit;
+    private int inFlight;
+    private int maxInFlight;
+    private long windowSum;
+    private int windowCount;
+
+    public ConcurrencyLimiter(Mode mode, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid concurrency bounds: min=" + minLimit + ", max=" + maxLimit);
+        }
+        this.mode = mode;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.algorithm = switch (mode) {
+            case FIXED -> null;
+            case AIMD -> new Aimd();
+            case GRADIENT -> new Gradient(minLimit, maxLimit);
+        };
+        // start in the middle, the algorithms quickly move away from there
+        this.limit = mode == Mode.FIXED ? maxLimit : Math.max(minLimit, maxLimit / 2);
+    }
+
+    /**
+     * A limiter that never blocks.
+     */
+    public static ConcurrencyLimiter fixed() {
+        return new ConcurrencyLimiter(Mode.FIXED, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Waits until the number of running requests is below the current limit and reserves a slot.
+     */
+    public void acquire() throws InterruptedException {
+        if (mode == Mode.FIXED) {
+            return;
+        }
+        synchronized (this) {
+            while (inFlight >= limit) {
+                wait();
+            }
+            inFlight++;
+            maxInFlight = Math.max(maxInFlight, inFlight);
+        }
+    }
+
+    /**
+     * Frees the slot reserved by {@link #acquire()} and feeds the compute latency of the request into the limit algorithm.
+     */
+    public void release(long latencyNs) {
+        if (mode == Mode.FIXED) {
+            return;
+        }
+        synchronized (this) {
+            inFlight--;
+            windowSum += latencyNs;
+            windowCount++;
+            if (windowCount >= WINDOW_SIZE) {
+                int newLimit = clamp(algorithm.update((double) windowSum / windowCount, maxInFlight, limit));
+                if (newLimit != limit) {
+                    log.debug("Changing concurrency limit from {} to {}", limit, newLimit);
+                    limit = newLimit;
+                }
+                windowSum = 0;
+                windowCount = 0;
+                maxInFlight = inFlight;
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    private int clamp(int l) {
+        return Math.max(minLimit, Math.min(maxLimit, l));
+    }
+
+    interface Algorithm {
+        /**
+         * @param avgLatencyNs average latency of the last window
+         * @param maxInFlight  maximum number of concurrent requests during the last window
+         * @param limit        current limit
+         * @return the new (unclamped) limit
+         */
+        int update(double avgLatencyNs, int maxInFlight, int limit);
+    }
+
+    static final class Aimd implements Algorithm {
+        private static final double TOLERANCE = 1.5;
+        private static final double BACKOFF = 0.9;
+        // lets the baseline recover if the request mix becomes more expensive
+        private static final double BASELINE_DRIFT = 1.01;
+
+        private double baseline = Double.MAX_VALUE;
+
+        @Override
+        public int update(double avgLatencyNs, int maxInFlight, int limit) {
+            baseline = Math.min(baseline * BASELINE_DRIFT, avgLatencyNs);
+
+            if (avgLatencyNs > baseline * TOLERANCE) {
+                return Math.min(limit - 1, (int) (limit * BACKOFF));
+            }
+            // only grow if the current limit is actually used
+            if (maxInFlight * 2 >= limit) {
+                return limit + 1;
+            }
+            return limit;
+        }
+    }
+
+    static final class Gradient implements Algorithm {
+        private static final double TOLERANCE = 1.5;
+        private static final double SMOOTHING = 0.2;
+        private static final int LONG_WINDOW = 20;
+
+        private final int minLimit;
+        private final int maxLimit;
+
+        private double longLatency = -1;
+        // the limit is kept as double, otherwise rounding would stop the growth of small limits
+        private double estimate = -1;
+
+        Gradient(int minLimit, int maxLimit) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        @Override
+        public int update(double avgLatencyNs, int maxInFlight, int limit) {
+            if (longLatency < 0) {
+                longLatency = avgLatencyNs;
+                estimate = limit;
+            } else {
+                longLatency = longLatency * (1 - 1. / LONG_WINDOW) + avgLatencyNs / LONG_WINDOW;
+            }
+
+            // recover quickly if the long-term average drifted far above the current latency
+            if (longLatency / avgLatencyNs > 2) {
+                longLatency *= 0.95;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / avgLatencyNs));
+
+            // do not grow an unused limit
+            if (gradient == 1.0 && maxInFlight * 2 < limit) {
+                return limit;
+            }
+
+            double newEstimate = estimate * gradient + Math.sqrt(estimate);
+            estimate = estimate * (1 - SMOOTHING) + newEstimate * SMOOTHING;
+            estimate = Math.max(minLimit, Math.min(maxLimit, estimate));
+            return (int) estimate;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.matsim.routing.ph;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.BinpbScenarioReader;
+import org.matsim.analysis.GenerateRequestTrace;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.config.Config;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.prepare.PopulationPipeline;
+import picocli.CommandLine;
+import routing.PlannedRoutes;
+import routing.Routing;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Routes all trips of a mode of a population before the simulation and writes the results to a {@link RouteTable}. The
+ * routing server answers requests of these trips from the table, see {@code --route-table} of {@link RoutingServerPH},
+ * and only runs the Raptor for trips which deviate from the plan.
+ * <p>
+ * The population is streamed through a {@link PopulationPipeline}. The trips are routed on a fork-join pool, every worker
+ * thread holds its own Raptor, as the routing threads of the server. The requests are the ones of
+ * {@link GenerateRequestTrace}; the Raptor only depends on the departure time, so the routes equal the ones the server
+ * would compute during the simulation.
+ */
+@CommandLine.Command(name = "preroute-trips", description = "Routes the trips of a population in advance and writes them to a route table.")
+public class PrerouteTrips implements MATSimAppCommand {
+    private static final Logger log = LogManager.getLogger(PrerouteTrips.class);
+
+    @CommandLine.Option(names = "--config", description = "Path to config", required = true)
+    private String config;
+
+    @CommandLine.Option(names = "--localFiles", description = "Use local MATSim files instead of SVN")
+    private boolean localFiles = false;
+
+    @CommandLine.Option(names = "--binpb", description = "Run id prefix of the binary inputs of the Rust converter, see the option of the routing server")
+    private Path binpb;
+
+    @CommandLine.Option(names = "--population", description = "Population to route, e.g. filtered plans", required = true)
+    private Path population;
+
+    @CommandLine.Option(names = "--mode", description = "Main mode of the trips to route", defaultValue = "pt")
+    private String mode;
+
+    @CommandLine.Option(names = "--output", description = "Route table to write", defaultValue = "routes.table")
+    private Path output;
+
+    @CommandLine.Option(names = "--threads", description = "Number of routing threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final LongAdder routed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public static void main(String[] args) {
+        new PrerouteTrips().execute(args);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        Config cfg = RoutingServerPH.loadRoutingConfig(config, output.toAbsolutePath().getParent().toString(), localFiles);
+        if (binpb != null) {
+            cfg.network().setInputFile(null);
+            cfg.transit().setTransitScheduleFile(null);
+        }
+        Consumer<Scenario> loadInputs = binpb == null ? sc -> {
+        } : sc -> new BinpbScenarioReader(binpb).read(sc);
+        RoutingServicePH service = RoutingServicePH.Factory.builder(cfg).loadInputs(loadInputs).build().create();
+
+        // the worker names end with a number, as needed by RoutingServicePH
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        // bounds the trips in flight, so that the reader does not run ahead of the routing
+        Semaphore inFlight = new Semaphore(threads * 64);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        long start = System.nanoTime();
+        try (RouteTable.Writer writer = RouteTable.writer(output)) {
+            PopulationPipeline.read(population.toString())
+                    .run(this::trips, trips -> {
+                        for (PlannedTrip trip : trips) {
+                            inFlight.acquireUninterruptibly();
+                            pool.execute(() -> {
+                                try {
+                                    writer.add(route(service, trip));
+                                    routed.increment();
+                                } catch (Exception e) {
+                                    if (failed.sum() == 0) {
+                                        log.warn("Failed to route trip {} of person {}", trip.index(), trip.request().getPersonId(), e);
+                                    }
+                                    failed.increment();
+                                    failure.compareAndSet(null, e);
+                                } finally {
+                                    inFlight.release();
+                                }
+                            });
+                        }
+                    });
+
+            pool.shutdown();
+            if (!pool.awaitTermination(1, TimeUnit.HOURS)) {
+                throw new IllegalStateException("Routing did not finish");
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info("Routed {} trips in {} s ({} trips/s) on {} threads, {} failed", routed.sum(), String.format("%.1f", seconds),
+                String.format("%.0f", routed.sum() / seconds), threads, failed.sum());
+        if (routed.sum() == 0 && failure.get() != null) {
+            throw new IllegalStateException("No trip could be routed", failure.get());
+        }
+        log.info("Wrote route table {}", output);
+        return 0;
+    }
+
+    private List<PlannedTrip> trips(Person person) {
+        Plan plan = person.getSelectedPlan();
+        if (plan == null) {
+            return null;
+        }
+        List<PlannedTrip> res = new ArrayList<>();
+        List<TripStructureUtils.Trip> trips = TripStructureUtils.getTrips(plan);
+        for (int i = 0; i < trips.size(); i++) {
+            TripStructureUtils.Trip trip = trips.get(i);
+            if (!mode.equals(TripStructureUtils.identifyMainMode(trip.getLegsOnly())) || !GenerateRequestTrace.routable(trip)) {
+                continue;
+            }
+            double departure = trip.getOriginActivity().getEndTime().seconds();
+            res.add(new PlannedTrip(i, GenerateRequestTrace.request(person.getId().toString(), mode, trip, i, departure)));
+        }
+        return res;
+    }
+
+    private static PlannedRoutes.PlannedRoute route(RoutingServicePH service, PlannedTrip trip) {
+        Routing.Request request = trip.request();
+        Routing.Response response = service.route(request).toBuilder().clearRequestId().build();
+        return PlannedRoutes.PlannedRoute.newBuilder()
+                .setPersonId(request.getPersonId())
+                .setTripIndex(trip.index())
+                .setDepartureTimeNs(request.getDepartureTimeNs())
+                .setFromLinkId(request.getFromLinkId())
+                .setToLinkId(request.getToLinkId())
+                .setResponse(response)
+                .build();
+    }
+
+    private record PlannedTrip(int index, Routing.Request request) {
+    }
+}
@@ -0,0 +1,45 @@
+package org.matsim.routing.ph;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executor wrapper that remembers, for the task currently running on a thread, when it was handed to the executor and
+ * when a worker picked it up. {@link RequestTimingInterceptor} reads these timestamps to derive the queue wait of a call.
+ * <p>
+ * Note that gRPC serializes the callbacks of one call through its own queue, so a single task may deliver several
+ * callbacks (e.g. message and half close). The timestamps then belong to the task that delivered them.
+ */
+final class QueueTimingExecutor implements Executor {
+    private static final ThreadLocal<long[]> CURRENT = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final Executor delegate;
+
+    QueueTimingExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        long enqueued = System.nanoTime();
+        delegate.execute(() -> {
+            long[] current = CURRENT.get();
+            current[0] = enqueued;
+            current[1] = System.nanoTime();
+            command.run();
+        });
+    }
+
+    /**
+     * @return the instant at which the task running on this thread was submitted.
+     */
+    static long enqueuedNs() {
+        return CURRENT.get()[0];
+    }
+
+    /**
+     * @return the instant at which the task running on this thread was started by a worker.
+     */
+    static long dequeuedNs() {
+        return CURRENT.get()[1];
+    }
+}
@@ -0,0 +1,142 @@
+package org.matsim.routing.ph;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import routing.Routing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records the transport side of every routing call. The {@code duration_ns} column of the routing profiling only covers
+ * the service method itself. This interceptor additionally timestamps
+ * <ul>
+ *     <li>the arrival of the call at the executor,</li>
+ *     <li>the point where a worker picked up the request message (queue wait),</li>
+ *     <li>the delivery of the parsed message to the service (protobuf parsing),</li>
+ *     <li>the call of the service method and the response handed to {@code sendMessage} (compute),</li>
+ *     <li>the return of {@code sendMessage} (serialization and write to the transport buffer) and</li>
+ *     <li>the closing of the call.</li>
+ * </ul>
+ * Queue timestamps are only available if the server runs on a {@link QueueTimingExecutor}. Its {@code queue_ns} is the
+ * wait for the I/O executor only.
+ * <p>
+ * Since the service hands the search to the routing threads, {@code compute_ns} is end-to-end: it spans decoding, the
+ * wait for a routing thread and for the concurrency limiter, the search, the hand-off back to the I/O executor and the
+ * conversion of the response. The breakdown is in the routing profiling, {@code queue_ns} for the routing thread,
+ * {@code wait_ns} for the limiter and the hand-off and {@code duration_ns} for the rest. Both files are joined by
+ * {@code request_id}.
+ */
+final class RequestTimingInterceptor implements ServerInterceptor {
+    private static final Logger log = LogManager.getLogger(RequestTimingInterceptor.class);
+
+    private final Queue<RequestTiming> timings = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        RequestTiming timing = new RequestTiming();
+        timing.arrival = QueueTimingExecutor.enqueuedNs();
+
+        ServerCall<ReqT, RespT> timedCall = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                // called on the I/O executor once the routing thread has handed back the result
+                timing.computeEnd = System.nanoTime();
+                super.sendMessage(message);
+                timing.written = System.nanoTime();
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                super.close(status, trailers);
+                timing.closed = System.nanoTime();
+                timing.status = status.getCode();
+                // only routing requests are of interest, not the shutdown call
+                if (timing.requestId != null) {
+                    timings.add(timing);
+                }
+            }
+        };
+
+        ServerCall.Listener<ReqT> listener = next.startCall(timedCall, headers);
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                // gRPC parses the message in the same executor task right before handing it to the listener
+                timing.dequeue = QueueTimingExecutor.dequeuedNs();
+                timing.parsed = System.nanoTime();
+                if (message instanceof Routing.Request request) {
+                    timing.requestId = request.getRequestId();
+                    timing.now = RoutingServicePH.nsToS(request.getNowNs());
+                }
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onHalfClose() {
+                // the unary handler invokes the service method on half close, which only submits the search
+                timing.computeStart = System.nanoTime();
+                super.onHalfClose();
+            }
+        };
+    }
+
+    /**
+     * Writes all recorded timings as CSV, ordered by arrival. Durations are in nanoseconds.
+     */
+    void write(Path outputFile) {
+        log.info("Writing request timings to file: {}", outputFile);
+
+        List<RequestTiming> all = timings.stream().sorted(Comparator.comparingLong(t -> t.arrival)).toList();
+        try (BufferedWriter writer = Files.newBufferedWriter(outputFile);
+             CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("request_id", "now", "arrival", "queue_ns", "parse_ns",
+                     "dispatch_ns", "compute_ns", "write_ns", "close_ns", "status").build())) {
+            for (RequestTiming t : all) {
+                csv.printRecord(
+                        RoutingServicePH.requestIdToString(t.requestId),
+                        t.now,
+                        t.arrival,
+                        t.dequeue - t.arrival,
+                        t.parsed - t.dequeue,
+                        t.computeStart - t.parsed,
+                        t.computeEnd - t.computeStart,
+                        t.written - t.computeEnd,
+                        t.closed - t.written,
+                        t.status
+                );
+            }
+        } catch (IOException e) {
+            log.error("Error writing to file: {}", outputFile, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class RequestTiming {
+        private ByteString requestId;
+        private int now;
+        private long arrival;
+        private long dequeue;
+        private long parsed;
+        private long computeStart;
+        private long computeEnd;
+        private long written;
+        private long closed;
+        private Status.Code status;
+    }
+}
@@ -0,0 +1,259 @@
+package org.matsim.routing.ph;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import routing.PlannedRoutes;
+import routing.Routing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+
+/**
+ * Routes of planned trips, computed before the simulation by {@link PrerouteTrips}, in a hash table keyed by person and
+ * departure second. A request is answered from the table if person, departure second, from link and to link match a
+ * planned trip. The file is memory-mapped and only the entries of the bucket of a request are decoded, so opening a table
+ * is instant and the heap usage does not depend on its size.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * int    magic "RTBL"
+ * int    version
+ * int    number of buckets N, a power of two
+ * long   number of routes
+ * long[] N + 1 offsets of the routes of each bucket, relative to the start of the data section
+ * data   length-delimited {@link PlannedRoutes.PlannedRoute} messages, grouped by bucket
+ * </pre>
+ */
+public final class RouteTable implements AutoCloseable {
+    static final int MAGIC = 0x5254424c;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    // a mapped buffer is limited to 2 GB, so large tables are mapped in several chunks
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final int buckets;
+    private final long count;
+    private final LongBuffer offsets;
+    private final MappedByteBuffer[] chunks;
+    private final long[] chunkStart;
+    private final int[] chunkOfBucket;
+
+    private RouteTable(FileChannel channel) throws IOException {
+        this.channel = channel;
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a route table");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported route table version " + version);
+        }
+        this.buckets = header.getInt();
+        this.count = header.getLong();
+
+        long indexSize = 8L * (buckets + 1);
+        this.offsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, indexSize).asLongBuffer();
+        long dataStart = HEADER_SIZE + indexSize;
+
+        // cut the data section into chunks at bucket boundaries
+        this.chunkOfBucket = new int[buckets];
+        List<Long> starts = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        long currentStart = 0;
+        for (int b = 0; b < buckets; b++) {
+            long end = offsets.get(b + 1);
+            if (end - currentStart > MAX_CHUNK_SIZE && offsets.get(b) > currentStart) {
+                starts.add(currentStart);
+                ends.add(offsets.get(b));
+                currentStart = offsets.get(b);
+            }
+            chunkOfBucket[b] = starts.size();
+        }
+        starts.add(currentStart);
+        ends.add(offsets.get(buckets));
+
+        this.chunks = new MappedByteBuffer[starts.size()];
+        this.chunkStart = new long[starts.size()];
+        for (int c = 0; c < chunks.length; c++) {
+            chunkStart[c] = starts.get(c);
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + starts.get(c), ends.get(c) - starts.get(c));
+        }
+    }
+
+    public static RouteTable open(Path path) throws IOException {
+        return new RouteTable(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    static Writer writer(Path path) throws IOException {
+        return new Writer(path);
+    }
+
+    public long size() {
+        return count;
+    }
+
+    /**
+     * @return the planned route of the request, or null if the request does not match a planned trip. The response carries
+     * the request id of the request.
+     */
+    public Routing.Response lookup(Routing.Request request) {
+        PlannedRoutes.PlannedRoute route = find(request.getPersonId(), nsToS(request.getDepartureTimeNs()), request.getFromLinkId(), request.getToLinkId());
+        if (route == null) {
+            return null;
+        }
+        return route.getResponse().toBuilder().setRequestId(request.getRequestId()).build();
+    }
+
+    /**
+     * @return the planned route of a trip, or null if there is none
+     */
+    public PlannedRoutes.PlannedRoute find(String personId, int departure, String fromLinkId, String toLinkId) {
+        int b = bucket(personId, departure, buckets);
+        long start = offsets.get(b);
+        long end = offsets.get(b + 1);
+        if (start == end) {
+            return null;
+        }
+
+        int c = chunkOfBucket[b];
+        ByteBuffer slice = chunks[c].slice((int) (start - chunkStart[c]), (int) (end - start));
+        CodedInputStream in = CodedInputStream.newInstance(slice);
+        try {
+            while (!in.isAtEnd()) {
+                PlannedRoutes.PlannedRoute route = in.readMessage(PlannedRoutes.PlannedRoute.parser(), ExtensionRegistryLite.getEmptyRegistry());
+                if (nsToS(route.getDepartureTimeNs()) == departure && route.getPersonId().equals(personId)
+                        && route.getFromLinkId().equals(fromLinkId) && route.getToLinkId().equals(toLinkId)) {
+                    return route;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupt routes in bucket " + b, e);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static int bucket(String personId, int departure, int buckets) {
+        int h = personId.hashCode() * 31 + departure;
+        // spread the bits, since the bucket is taken from the lower ones
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & (buckets - 1);
+    }
+
+    /**
+     * Writes a route table. Routes may be added in any order and from any thread. They are spooled to a temporary file next
+     * to the output and sorted into their buckets on {@link #close()}, once the number of routes and thus of buckets is
+     * known.
+     */
+    static final class Writer implements Closeable {
+        private final Path path;
+        private final Path spool;
+        private final OutputStream spoolOut;
+        private long count = 0;
+
+        private Writer(Path path) throws IOException {
+            this.path = path;
+            Path dir = path.toAbsolutePath().getParent();
+            this.spool = Files.createTempFile(dir, path.getFileName().toString(), ".spool");
+            this.spoolOut = new BufferedOutputStream(Files.newOutputStream(spool));
+        }
+
+        synchronized void add(PlannedRoutes.PlannedRoute route) throws IOException {
+            route.writeDelimitedTo(spoolOut);
+            count++;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            spoolOut.close();
+
+            // on average at most one route per bucket
+            int buckets = Integer.highestOneBit((int) Math.max(1, Math.min(count, 1 << 30)));
+            if (buckets < count) {
+                buckets <<= 1;
+            }
+
+            long[] offsets = new long[buckets + 1];
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(spool))) {
+                PlannedRoutes.PlannedRoute route;
+                while ((route = PlannedRoutes.PlannedRoute.parseDelimitedFrom(in)) != null) {
+                    int size = route.getSerializedSize();
+                    offsets[bucket(route, buckets) + 1] += CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+                }
+            }
+            for (int b = 0; b < buckets; b++) {
+                offsets[b + 1] += offsets[b];
+            }
+
+            long dataStart = HEADER_SIZE + 8L * (buckets + 1);
+            try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate((int) dataStart);
+                header.putInt(MAGIC).putInt(VERSION).putInt(buckets).putLong(count);
+                for (long offset : offsets) {
+                    header.putLong(offset);
+                }
+                header.flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+
+                long[] cursor = new long[buckets];
+                System.arraycopy(offsets, 0, cursor, 0, buckets);
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(spool))) {
+                    PlannedRoutes.PlannedRoute route;
+                    while ((route = PlannedRoutes.PlannedRoute.parseDelimitedFrom(in)) != null) {
+                        int b = bucket(route, buckets);
+                        ByteBuffer bytes = delimited(route);
+                        long position = dataStart + cursor[b];
+                        cursor[b] += bytes.remaining();
+                        while (bytes.hasRemaining()) {
+                            position += out.write(bytes, position);
+                        }
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        }
+
+        private static int bucket(PlannedRoutes.PlannedRoute route, int buckets) {
+            return RouteTable.bucket(route.getPersonId(), nsToS(route.getDepartureTimeNs()), buckets);
+        }
+
+        private static ByteBuffer delimited(PlannedRoutes.PlannedRoute route) throws IOException {
+            int size = route.getSerializedSize();
+            byte[] bytes = new byte[CodedOutputStream.computeUInt32SizeNoTag(size) + size];
+            CodedOutputStream cos = CodedOutputStream.newInstance(bytes);
+            cos.writeUInt32NoTag(size);
+            route.writeTo(cos);
+            cos.checkNoSpaceLeft();
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.matsim.routing.ph;
+
+import com.google.protobuf.ByteString;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Custom JFR events for the phases of one request in {@link RoutingServicePH#getRoute}. Unlike the CSV profiling, these
+ * are cheap enough to stay enabled in production runs. Start the router with
+ * {@code -XX:StartFlightRecording=settings=profile,filename=router.jfr} and open the recording in JDK Mission Control to
+ * see the routing phases next to GC, safepoint and lock events.
+ */
+public final class RoutingEvents {
+    private RoutingEvents() {
+    }
+
+    @Category({"MATSim", "Routing"})
+    @StackTrace(false)
+    public abstract static class RoutingPhaseEvent extends Event {
+        @Label("Simulation Time")
+        @Description("Simulation clock in seconds at which the request was issued")
+        int simulationNow;
+
+        @Label("Request Id")
+        String requestId;
+
+        /**
+         * Ends the event and commits it if the recording is interested in it. The request id is only converted to a string
+         * if the event is actually written.
+         */
+        void finish(int simulationNow, ByteString requestId) {
+            end();
+            if (shouldCommit()) {
+                this.simulationNow = simulationNow;
+                this.requestId = RoutingServicePH.requestIdToString(requestId);
+                commit();
+            }
+        }
+    }
+
+    @Name("org.matsim.routing.Decode")
+    @Label("Request Decoding")
+    @Description("Conversion of the protobuf request into a MATSim routing request")
+    public static final class Decode extends RoutingPhaseEvent {
+    }
+
+    @Name("org.matsim.routing.Search")
+    @Label("Raptor Search")
+    @Description("Route calculation of the pt routing module")
+    public static final class Search extends RoutingPhaseEvent {
+    }
+
+    @Name("org.matsim.routing.Convert")
+    @Label("Response Conversion")
+    @Description("Conversion of the plan elements into the protobuf response")
+    public static final class Convert extends RoutingPhaseEvent {
+    }
+
+    @Name("org.matsim.routing.Respond")
+    @Label("Response Write")
+    @Description("Handing the response to gRPC via onNext and onCompleted")
+    public static final class Respond extends RoutingPhaseEvent {
+    }
+}
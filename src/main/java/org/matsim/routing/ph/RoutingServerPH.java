@@ -3,26 +3,30 @@ package org.matsim.routing.ph;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import io.grpc.protobuf.services.ProtoReflectionService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.matsim.BinpbScenarioReader;
 import org.matsim.JVMFlagsReader;
+import org.matsim.api.core.v01.Scenario;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import picocli.CommandLine;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 public class RoutingServerPH implements MATSimAppCommand {
-    private static final int PORT = 50051;
     private static final Logger log = LogManager.getLogger(RoutingServerPH.class);
 
     private static final Pattern PATTERN = Pattern.compile("\\d+pct");
@@ -36,11 +40,36 @@ public class RoutingServerPH implements MATSimAppCommand {
     @CommandLine.Option(names = "--output", description = "Base output directory for the server", required = true)
     private String output;
 
+    @CommandLine.Option(names = "--binpb", description = "Run id prefix of the binary inputs of the Rust converter, e.g. output/v6.4/1pct/binpb/berlin-v6.4-1pct. If set, network and transit schedule are read from <prefix>.network.binpb, or a partitioned <prefix>.network.<N>.binpb, and <prefix>.transit-schedule.binpb instead of the XML files of the config. Ids are resolved with <prefix>.ids.binpb.")
+    private Path binpb;
+
+    @CommandLine.Option(names = "--route-table", description = "Route table of the planned trips, see preroute-trips. Matching requests are answered from the table without search.")
+    private Path routeTable;
+
+    @CommandLine.Option(names = "--engine", description = "Router of the pt requests. MATSIM is the Swiss Rail Raptor, PRIMITIVE the raptor on primitive arrays. Valid values: ${COMPLETION-CANDIDATES}", defaultValue = "MATSIM")
+    private RoutingServicePH.Engine engine;
+
+    @CommandLine.Option(names = "--port", description = "Port to listen on", defaultValue = "50051")
+    private int port;
+
     @CommandLine.Option(names = "--threads", description = "Number of threads to use for routing")
     private int numThreads = 1;
 
-    @CommandLine.Option(names = "--no-profile", description = "Enable profiling")
-    private boolean profile = true;
+    @CommandLine.Option(names = "--profile", negatable = true, defaultValue = "true", fallbackValue = "true",
+            description = "Write routing profiles and timings on shutdown. Enabled by default, --no-profile disables it.")
+    private boolean profile;
+
+    @CommandLine.Option(names = "--concurrency", description = "How many requests may run the Raptor at once. FIXED uses all threads, AIMD and GRADIENT adapt the limit to the observed compute latency. Valid values: ${COMPLETION-CANDIDATES}", defaultValue = "FIXED")
+    private ConcurrencyLimiter.Mode concurrency;
+
+    @CommandLine.Option(names = "--min-concurrency", description = "Lower bound of the adaptive concurrency limit. The upper bound is the number of threads.", defaultValue = "1")
+    private int minConcurrency;
+
+    @CommandLine.Option(names = "--io-threads", description = "Number of threads for gRPC transport, request decoding and response serialization. 0 uses one virtual thread per task.", defaultValue = "0")
+    private int ioThreads;
+
+    @CommandLine.Option(names = "--compute-queue", description = "Maximum number of requests waiting for a routing thread. Further requests are rejected. 0 means unbounded.", defaultValue = "0")
+    private int computeQueue;
 
     public static void main(String[] args) throws IOException, InterruptedException {
         new RoutingServerPH().execute(args);
@@ -49,47 +78,57 @@ public class RoutingServerPH implements MATSimAppCommand {
     @Override
     public Integer call() throws Exception {
         //log args
-        log.info("Starting server with config: {}, output: {}, threads: {}, profile: {}", config, output, numThreads, profile);
+        log.info("Starting server with config: {}, output: {}, threads: {}, io threads: {}, profile: {}, concurrency: {}, engine: {}", config, output, numThreads, ioThreads, profile, concurrency, engine);
 
         log.info("Started with JVM args: {}", JVMFlagsReader.getJVMArguments());
 
-        Files.createDirectories(Path.of(output));
-
-        Config config = ConfigUtils.loadConfig(this.config);
-        config.controller().setOutputDirectory(output);
-        config.global().setNumberOfThreads(1); // MATSim internally there should only one thread be used to not mess up with thread local variables
-
-        // we do not need plans and counts on the server side
-        config.plans().setInputFile(null);
-        config.counts().setInputFile(null);
-
-        if (localFiles) {
-            adaptToLocalFileNames(config);
+        Config config = loadRoutingConfig(this.config, output, localFiles);
+        if (binpb != null) {
+            config.network().setInputFile(null);
+            config.transit().setTransitScheduleFile(null);
         }
 
-        AtomicReference<Server> serverRef = new AtomicReference<>();
-        RoutingServicePH routingServicePH = getRoutingService(serverRef, config);
+        // Requests pass two stages: gRPC transport, decoding and serialization run on the I/O executor, while the routing
+        // threads only run Raptor searches. This way, routing threads never wait for the network.
+        ExecutorService ioExecutor = getIoExecutor();
+        ExecutorService computeExecutor = getComputeExecutor();
+        RoutingServicePH.Stages stages = new RoutingServicePH.Stages(ioExecutor, computeExecutor);
 
-        ExecutorService executor = getExecutorService(routingServicePH);
-        Server server = ServerBuilder.forPort(PORT)
-                .addService(routingServicePH)
-                .addService(ProtoReflectionService.newInstance())
-                .executor(executor)
+        AtomicReference<Server> serverRef = new AtomicReference<>();
+        RequestTimingInterceptor timingInterceptor = new RequestTimingInterceptor();
+        RoutingServicePH routingServicePH = getRoutingService(serverRef, config, stages);
+
+        initComputeThreads(computeExecutor, routingServicePH);
+        ServerBuilder<?> serverBuilder = ServerBuilder.forPort(port)
+                .addService(ProtoReflectionService.newInstance());
+        if (profile) {
+            // measure queue wait, parsing and serialization in addition to the compute time measured by the service
+            serverBuilder.addService(ServerInterceptors.intercept(routingServicePH, timingInterceptor))
+                    .executor(new QueueTimingExecutor(ioExecutor));
+        } else {
+            serverBuilder.addService(routingServicePH)
+                    .executor(ioExecutor);
+        }
+        Server server = serverBuilder
                 .build()
                 .start();
 
         serverRef.set(server);
 
-        log.info("Server started on port {}", PORT);
+        log.info("Server started on port {}", port);
         server.awaitTermination();
 
         log.info("Server stopped");
+        // on this thread, since the shutdown thread may still run when System.exit ends the JVM
+        if (profile) {
+            timingInterceptor.write(RoutingServicePH.profilingOutputFile(config, "routing-timing"));
+        }
         System.exit(0);
         return 0;
     }
 
     @NotNull
-    private RoutingServicePH getRoutingService(AtomicReference<Server> serverRef, Config config) {
+    private RoutingServicePH getRoutingService(AtomicReference<Server> serverRef, Config config, RoutingServicePH.Stages stages) {
         // use a shutdown hook to stop the server gracefully when it gets a shutdown signal
         Runnable shutdown = () -> {
             log.info("Running shutdown hook");
@@ -106,27 +145,82 @@ public class RoutingServerPH implements MATSimAppCommand {
             }
         };
 
-        return new RoutingServicePH.Factory(config, shutdown, profile).create();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(concurrency, Math.min(minConcurrency, numThreads), numThreads);
+        Consumer<Scenario> loadInputs = binpb == null ? sc -> {
+        } : sc -> new BinpbScenarioReader(binpb).read(sc);
+        RouteTable routes = null;
+        if (routeTable != null) {
+            try {
+                routes = RouteTable.open(routeTable);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open route table " + routeTable, e);
+            }
+            log.info("Answering planned trips from route table {} with {} routes", routeTable, routes.size());
+        }
+        return RoutingServicePH.Factory.builder(config)
+                .shutdown(shutdown)
+                .profile(profile)
+                .limiter(limiter)
+                .stages(stages)
+                .loadInputs(loadInputs)
+                .routes(routes)
+                .engine(engine)
+                .build()
+                .create();
+    }
+
+    @NotNull
+    private ExecutorService getIoExecutor() {
+        if (ioThreads <= 0) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("grpc-io-%d").build();
+        return Executors.newFixedThreadPool(ioThreads, factory);
     }
 
     @NotNull
-    private ExecutorService getExecutorService(RoutingServicePH routingServicePH) throws InterruptedException, ExecutionException {
+    private ExecutorService getComputeExecutor() {
+        BlockingQueue<Runnable> queue = computeQueue > 0 ? new LinkedBlockingQueue<>(computeQueue) : new LinkedBlockingQueue<>();
+        ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("router-%d").build();
+        return new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, queue, factory);
+    }
+
+    private void initComputeThreads(ExecutorService executor, RoutingServicePH routingServicePH) throws InterruptedException, ExecutionException {
         log.info("Initializing {} threads", numThreads);
 
-        // Create a thread pool with threads initialized with the routing service. This works because the routing service has thread local variables.
+        // Initialize the routing threads with the routing service. This works because the routing service has thread local variables.
+        // The pool starts a new thread for each task until the core size is reached.
         // (Ahhh, this implicit threading in java is crap... :( paul, sep '25)
-        ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("router-%d").build();
-        var executor = Executors.newFixedThreadPool(numThreads, factory);
         var futures = new ArrayList<Future<?>>();
         for (int i = 0; i < numThreads; i++) {
             // Eagerly initialize ThreadLocals for all threads
             futures.add(executor.submit(routingServicePH::init));
         }
         for (var f : futures) f.get();
-        return executor;
     }
 
-    private void adaptToLocalFileNames(Config config) {
+    /**
+     * Loads a config for routing: plans and counts are not needed and MATSim itself must only use one thread, because the
+     * routing threads hold thread local Raptors.
+     */
+    public static Config loadRoutingConfig(String configPath, String output, boolean localFiles) throws IOException {
+        Files.createDirectories(Path.of(output));
+
+        Config config = ConfigUtils.loadConfig(configPath);
+        config.controller().setOutputDirectory(output);
+        config.global().setNumberOfThreads(1); // MATSim internally there should only one thread be used to not mess up with thread local variables
+
+        // we do not need plans and counts on the server side
+        config.plans().setInputFile(null);
+        config.counts().setInputFile(null);
+
+        if (localFiles) {
+            adaptToLocalFileNames(config);
+        }
+        return config;
+    }
+
+    private static void adaptToLocalFileNames(Config config) {
         config.network().setInputFile(fileNameFromUrl(config.network().getInputFile()));
         config.transit().setTransitScheduleFile(fileNameFromUrl(config.transit().getTransitScheduleFile()));
         config.transit().setVehiclesFile(fileNameFromUrl(config.transit().getVehiclesFile()));
@@ -134,7 +228,7 @@ public class RoutingServerPH implements MATSimAppCommand {
         config.facilities().setInputFile(fileNameFromUrl(config.facilities().getInputFile()));
     }
 
-    private String fileNameFromUrl(String url) {
+    private static String fileNameFromUrl(String url) {
         return url.substring(url.lastIndexOf('/') + 1);
     }
 }
@@ -5,14 +5,17 @@ import com.google.inject.Key;
 import com.google.inject.name.Names;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.matsim.GitInfo;
 import org.matsim.JVMFlagsReader;
+import org.matsim.RunInfo;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
@@ -32,6 +35,9 @@ import org.matsim.facilities.ActivityFacilitiesFactoryImpl;
 import org.matsim.facilities.ActivityFacility;
 import org.matsim.facilities.Facility;
 import org.matsim.pt.routes.DefaultTransitPassengerRoute;
+import org.matsim.routing.raptor.RaptorData;
+import org.matsim.routing.raptor.RaptorParameters;
+import org.matsim.routing.raptor.RaptorRouter;
 import org.matsim.utils.objectattributes.attributable.Attributes;
 import routing.Routing;
 import routing.RoutingServiceGrpc;
@@ -43,43 +49,78 @@ import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class RoutingServicePH extends RoutingServiceGrpc.RoutingServiceImplBase {
     private static final int NANO_SEC_PER_SEC = 1_000_000_000;
 
+    /**
+     * Values of the {@code source} column of the profiling output: answered by a search or from the route table.
+     */
+    public static final String SOURCE_SEARCH = "search";
+    public static final String SOURCE_TABLE = "table";
+
     private static final Logger log = LogManager.getLogger(RoutingServicePH.class);
     private final ThreadLocal<RoutingModule> swissRailRaptor;
+    // router on primitive arrays, replaces the Swiss Rail Raptor if not null
+    private final RaptorRouter primitive;
     private final Runnable shutdown;
     private final Config config;
     private final boolean profile;
+    private final ConcurrencyLimiter limiter;
+    private final Stages stages;
+    // routes of planned trips, computed before the simulation, may be null
+    private final RouteTable routes;
+    private final LongAdder tableHits = new LongAdder();
+    private final LongAdder tableMisses = new LongAdder();
     private final ThreadLocal<Integer> threadNum = ThreadLocal.withInitial(() -> {
         String threadName = Thread.currentThread().getName();
         return Integer.valueOf(threadName.substring(threadName.lastIndexOf('-') + 1));
     });
-    private final ConcurrentMap<Integer, List<ProfilingEntry>> profilingEntries = new ConcurrentHashMap<>(600_000);
+    // entries are added by the response stage, which may run on arbitrary threads
+    private final Queue<ProfilingEntry> profilingEntries = new ConcurrentLinkedQueue<>();
     private int lastNow = -1;
 
-    private RoutingServicePH(ThreadLocal<RoutingModule> raptor, Runnable shutdown, Config config, boolean profile) {
+    private RoutingServicePH(ThreadLocal<RoutingModule> raptor, RaptorRouter primitive, Runnable shutdown, Config config, boolean profile, ConcurrencyLimiter limiter, Stages stages, RouteTable routes) {
         this.swissRailRaptor = raptor;
+        this.primitive = primitive;
         this.shutdown = shutdown;
         this.config = config;
         this.profile = profile;
+        this.limiter = limiter;
+        this.stages = stages;
+        this.routes = routes;
     }
 
     /**
      * Initializes the service by loading the Swiss Rail Raptor and scenario.
-     * This method should be called before any routing requests are processed.
+     * This method should be called on every compute thread before any routing requests are processed.
      */
     public void init() {
         threadNum.get();
-        swissRailRaptor.get();
+        if (primitive == null) {
+            swissRailRaptor.get();
+        }
+    }
+
+    /**
+     * @return the Raptor of the calling thread.
+     */
+    RoutingModule raptor() {
+        return swissRailRaptor.get();
     }
 
     @Override
     public void shutdown(Empty request, StreamObserver<Empty> responseObserver) {
         log.info("Received shutdown request");
+        if (routes != null) {
+            log.info("Answered {} requests from the route table, routed {} deviating requests", tableHits.sum(), tableMisses.sum());
+        }
         writeProfilingEntries();
 
         log.info("Shutting down routing service");
@@ -90,33 +131,154 @@ public class RoutingServicePH extends RoutingServiceGrpc.RoutingServiceImplBase
 
     @Override
     public void getRoute(Routing.Request request, StreamObserver<Routing.Response> responseObserver) {
+        long startTime = System.nanoTime();
         int now = nsToS(request.getNowNs());
+        ByteString requestId = request.getRequestId();
+
+        Routing.Response planned = lookup(request);
+        if (planned != null) {
+            responseObserver.onNext(planned);
+            responseObserver.onCompleted();
+            if (profile) {
+                addProfilingEntry(request, planned, SOURCE_TABLE, -1, startTime, System.nanoTime() - startTime, 0, 0);
+            }
+            return;
+        }
+
+        RoutingEvents.Decode decode = new RoutingEvents.Decode();
+        decode.begin();
+        RoutingRequest raptorRequest = primitive == null ? createRaptorRequest(request) : null;
+        decode.finish(now, requestId);
+
+        long enqueued = System.nanoTime();
+        long decodeTime = enqueued - startTime;
+        CompletableFuture<SearchResult> search;
+        try {
+            search = CompletableFuture.supplyAsync(() -> search(request, raptorRequest, now, requestId, enqueued), stages.compute());
+        } catch (RejectedExecutionException e) {
+            responseObserver.onError(Status.RESOURCE_EXHAUSTED.withDescription("Routing queue is full").asRuntimeException());
+            return;
+        }
+
+        search.whenCompleteAsync((result, error) -> {
+            if (error != null) {
+                log.error("Routing request {} failed", requestIdToString(requestId), error);
+                responseObserver.onError(Status.fromThrowable(error).asRuntimeException());
+                return;
+            }
+            respond(request, result, responseObserver, startTime, decodeTime);
+        }, stages.io());
+    }
+
+    /**
+     * Routes a request synchronously on the calling thread, without the executors of the {@link Stages}. The thread must be
+     * named like a compute thread, see {@link Stages}.
+     */
+    public Routing.Response route(Routing.Request request) {
+        Routing.Response planned = lookup(request);
+        if (planned != null) {
+            return planned;
+        }
+        int now = nsToS(request.getNowNs());
+        ByteString requestId = request.getRequestId();
+        RoutingRequest raptorRequest = primitive == null ? createRaptorRequest(request) : null;
+        SearchResult result = search(request, raptorRequest, now, requestId, System.nanoTime());
+        return result.response() != null ? result.response() : convertToProtoResponse(result.planElements(), requestId);
+    }
+
+    /**
+     * Compute stage: runs the Raptor search on a routing thread. The primitive engine answers the proto request directly, the
+     * Swiss Rail Raptor the converted request.
+     */
+    private SearchResult search(Routing.Request request, RoutingRequest raptorRequest, int now, ByteString requestId, long enqueued) {
+        long dequeued = System.nanoTime();
         if (threadNum.get() == 0 && lastNow < now && lastNow / 3600 != now / 3600) {
-            log.info("Received route request for simulation hour {}:00", String.format("%02d", now / 3600));
+            if (limiter.getMode() == ConcurrencyLimiter.Mode.FIXED) {
+                log.info("Received route request for simulation hour {}:00", String.format("%02d", now / 3600));
+            } else {
+                log.info("Received route request for simulation hour {}:00, concurrency limit is {}", String.format("%02d", now / 3600), limiter.getLimit());
+            }
             lastNow = now;
         }
 
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withDescription("Interrupted while waiting for a routing slot").asRuntimeException();
+        }
+
+        RoutingEvents.Search search = new RoutingEvents.Search();
+        search.begin();
+        long searchStart = System.nanoTime();
+        List<? extends PlanElement> planElements = null;
+        Routing.Response response = null;
+        try {
+            if (primitive != null) {
+                response = primitive.route(request);
+            } else {
+                planElements = swissRailRaptor.get().calcRoute(raptorRequest);
+            }
+        } finally {
+            limiter.release(System.nanoTime() - searchStart);
+        }
+        search.finish(now, requestId);
+
+        long searchEnd = System.nanoTime();
+        return new SearchResult(planElements, response, threadNum.get(), dequeued - enqueued, searchStart - dequeued, searchEnd - searchStart, searchEnd);
+    }
+
+    /**
+     * Response stage: converts the search result and writes it to the client.
+     */
+    private void respond(Routing.Request request, SearchResult result, StreamObserver<Routing.Response> responseObserver, long startTime, long decodeTime) {
+        long respondStart = System.nanoTime();
+        int now = nsToS(request.getNowNs());
         ByteString requestId = request.getRequestId();
 
-        long startTime = System.nanoTime();
-        RoutingRequest raptorRequest = createRaptorRequest(request);
-        List<? extends PlanElement> planElements = swissRailRaptor.get().calcRoute(raptorRequest);
+        RoutingEvents.Convert convert = new RoutingEvents.Convert();
+        convert.begin();
+        Routing.Response response = result.response() != null ? result.response() : convertToProtoResponse(result.planElements(), requestId);
+        convert.finish(now, requestId);
 
-        Routing.Response response = convertToProtoResponse(planElements, requestId);
+        RoutingEvents.Respond respond = new RoutingEvents.Respond();
+        respond.begin();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
+        respond.finish(now, requestId);
 
         if (profile) {
-            List<ProfilingEntry> pe = profilingEntries.computeIfAbsent(threadNum.get(), s -> new ArrayList<>());
-            long endTime = System.nanoTime();
+            // service time of the stages, without waiting for the limiter and for the hand-off back to the I/O executor
+            long serviceTime = decodeTime + result.searchTime() + System.nanoTime() - respondStart;
+            long waitTime = result.limiterTime() + respondStart - result.searchEnd();
+            addProfilingEntry(request, response, SOURCE_SEARCH, result.thread(), startTime, serviceTime, result.queueTime(), waitTime);
+        }
+    }
 
-            int travelTime = response.getLegsList().stream().mapToLong(Routing.Leg::getTravTimeNs).mapToInt(RoutingServicePH::nsToS).sum();
-            var p = new ProfilingEntry(threadNum.get(), now, nsToS(request.getDepartureTimeNs()), request.getFromLinkId(), request.getToLinkId(), startTime, endTime - startTime, travelTime, requestId);
-            pe.add(p);
+    /**
+     * @return the planned route of the request from the route table, null if there is no table or the request deviates from
+     * the plan
+     */
+    private Routing.Response lookup(Routing.Request request) {
+        if (routes == null) {
+            return null;
         }
+        Routing.Response planned = routes.lookup(request);
+        if (planned == null) {
+            tableMisses.increment();
+        } else {
+            tableHits.increment();
+        }
+        return planned;
+    }
+
+    private void addProfilingEntry(Routing.Request request, Routing.Response response, String source, int thread, long startTime, long duration, long queueTime, long waitTime) {
+        int travelTime = response.getLegsList().stream().mapToLong(Routing.Leg::getTravTimeNs).mapToInt(RoutingServicePH::nsToS).sum();
+        var p = new ProfilingEntry(source, thread, nsToS(request.getNowNs()), nsToS(request.getDepartureTimeNs()), request.getFromLinkId(), request.getToLinkId(), startTime, duration, travelTime, request.getRequestId(), queueTime, waitTime);
+        profilingEntries.add(p);
     }
 
-    private Routing.Response convertToProtoResponse(List<? extends PlanElement> planElements, ByteString requestId) {
+    Routing.Response convertToProtoResponse(List<? extends PlanElement> planElements, ByteString requestId) {
         Routing.Response.Builder responseBuilder = Routing.Response.newBuilder();
 
         for (PlanElement element : planElements) {
@@ -211,7 +373,7 @@ public class RoutingServicePH extends RoutingServiceGrpc.RoutingServiceImplBase
     }
 
     @NotNull
-    private RoutingRequest createRaptorRequest(Routing.Request request) {
+    static RoutingRequest createRaptorRequest(Routing.Request request) {
         Id<Link> fromLink = Id.createLinkId(request.getFromLinkId());
         Id<Link> toLink = Id.createLinkId(request.getToLinkId());
 
@@ -252,25 +414,14 @@ public class RoutingServicePH extends RoutingServiceGrpc.RoutingServiceImplBase
             return;
         }
 
-        DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
-        String t = LocalDateTime.now().format(dateTimeFormatter);
-        String folder = config.controller().getOutputDirectory() + "/" + GitInfo.commitHash();
-
-        try {
-            Files.createDirectories(Path.of(folder));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        var numaSuffix = JVMFlagsReader.isArgumentEnabled("UseNUMA") ? "numa-" : "";
-        String outputFile = folder + "/routing-profiling-" + numaSuffix + t + ".csv";
+        Path outputFile = profilingOutputFile(config, "routing-profiling");
 
         log.info("Writing profiling entries to file: {}", outputFile);
 
-        List<ProfilingEntry> allEntries = this.profilingEntries.values().stream().flatMap(Collection::stream).sorted(Comparator.comparingInt(e -> e.simulationNow)).toList();
+        List<ProfilingEntry> allEntries = this.profilingEntries.stream().sorted(Comparator.comparingInt(e -> e.simulationNow)).toList();
 
-        try (java.io.BufferedWriter writer = Files.newBufferedWriter(java.nio.file.Paths.get(outputFile));
-             CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("thread", "now", "departure_time", "from", "to", "start", "duration_ns", "travel_time_s", "request_id").build())) {
+        try (java.io.BufferedWriter writer = Files.newBufferedWriter(outputFile);
+             CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("thread", "now", "departure_time", "from", "to", "start", "duration_ns", "travel_time_s", "request_id", "queue_ns", "wait_ns", "source").build())) {
             for (ProfilingEntry profilingEntry : allEntries) {
                 csv.printRecord(
                         profilingEntry.thread,
@@ -281,15 +432,53 @@ public class RoutingServicePH extends RoutingServiceGrpc.RoutingServiceImplBase
                         profilingEntry.start,
                         profilingEntry.duration,
                         profilingEntry.travelTime,
-                        new BigInteger(1, profilingEntry.requestId.toByteArray()).toString()
+                        requestIdToString(profilingEntry.requestId),
+                        profilingEntry.queueTime,
+                        profilingEntry.waitTime,
+                        profilingEntry.source
                 );
             }
+            RunInfo.current().write(RunInfo.sidecar(outputFile));
         } catch (IOException e) {
             log.error("Error writing to file: {}", outputFile, e);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Returns a time stamped csv file in the folder of the current commit below the output directory of the config. The
+     * folder is created if necessary.
+     */
+    static Path profilingOutputFile(Config config, String name) {
+        DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+        String t = LocalDateTime.now().format(dateTimeFormatter);
+        String folder = config.controller().getOutputDirectory() + "/" + GitInfo.commitHash();
+
+        try {
+            Files.createDirectories(Path.of(folder));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        var numaSuffix = JVMFlagsReader.isArgumentEnabled("UseNUMA") ? "numa-" : "";
+        return Path.of(folder, name + "-" + numaSuffix + t + ".csv");
+    }
+
+    /**
+     * Formats a request id as unsigned decimal number. This is the representation used in the profiling output.
+     */
+    public static String requestIdToString(ByteString requestId) {
+        return new BigInteger(1, requestId.toByteArray()).toString();
+    }
+
+    /**
+     * @return whether a row of the profiling output was answered by a search. Files written before the {@code source}
+     * column was added have only such rows.
+     */
+    public static boolean isSearch(CSVRecord record) {
+        return !record.isMapped("source") || SOURCE_SEARCH.equals(record.get("source"));
+    }
+
     public static int nsToS(long ns) {
         return (int) (ns / NANO_SEC_PER_SEC);
     }
@@ -298,7 +487,53 @@ public class RoutingServicePH extends RoutingServiceGrpc.RoutingServiceImplBase
         return (long) s * NANO_SEC_PER_SEC;
     }
 
-    public record Factory(Config config, Runnable shutdown, boolean profile) {
+    /**
+     * Executors of the stages of a request. Decoding, response conversion and writing run on the I/O executor, only the
+     * Raptor search runs on the compute executor. The threads of the compute executor must be named
+     * {@code <name>-<number>}, the number identifies the thread in the profiling output.
+     */
+    public record Stages(Executor io, Executor compute) {
+        /**
+         * Runs all stages on the thread that received the request.
+         */
+        public static Stages inline() {
+            return new Stages(Runnable::run, Runnable::run);
+        }
+    }
+
+    /**
+     * Router that searches the pt routes.
+     */
+    public enum Engine {
+        /**
+         * The Swiss Rail Raptor of MATSim, configured by the transit router and scoring parameters of the config.
+         */
+        MATSIM,
+        /**
+         * {@link RaptorRouter} on primitive arrays, which answers with the proto response directly. Optimizes the arrival time
+         * with a penalty per transfer instead of generalized costs.
+         */
+        PRIMITIVE
+    }
+
+    /**
+     * Settings of a service, usually created with {@link #builder(Config)}.
+     *
+     * @param loadInputs adds inputs to the scenario after it has been loaded from the config, e.g. a network that is not
+     *                   read from XML
+     * @param routes     routes of planned trips which are answered without search, see {@link PrerouteTrips}. May be null.
+     */
+    public record Factory(Config config, Runnable shutdown, boolean profile, ConcurrencyLimiter limiter, Stages stages,
+                          Consumer<Scenario> loadInputs, RouteTable routes, Engine engine) {
+
+        /**
+         * Starts with a service that ignores shutdown requests, does not profile, routes with a fixed concurrency and inline
+         * stages on the Swiss Rail Raptor and has no route table.
+         */
+        public static Builder builder(Config config) {
+            return new Builder(config);
+        }
+
         public RoutingServicePH create() {
             config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.overwriteExistingFiles);
 
@@ -321,14 +556,96 @@ public class RoutingServicePH extends RoutingServiceGrpc.RoutingServiceImplBase
 
             // ThreadLocal for Scenario and RoutingModule
             Scenario sc = ScenarioUtils.loadScenario(config);
+            loadInputs.accept(sc);
             Injector adhocInjector = ControllerUtils.createAdhocInjector(sc);
             ThreadLocal<RoutingModule> raptor = ThreadLocal.withInitial(() -> adhocInjector.getInstance(Key.get(RoutingModule.class, Names.named("pt"))));
-            return new RoutingServicePH(raptor, shutdown, config, profile);
+            RaptorRouter primitive = null;
+            if (engine == Engine.PRIMITIVE) {
+                RaptorData data = RaptorData.of(sc.getTransitSchedule(), RaptorParameters.of(config));
+                log.info("Using primitive raptor engine with {} stops, {} routes and {} trips", data.stops(), data.routes(), data.trips());
+                primitive = new RaptorRouter(data);
+            }
+            return new RoutingServicePH(raptor, primitive, shutdown, config, profile, limiter, stages, routes);
+        }
+
+        public static final class Builder {
+            private final Config config;
+            private Runnable shutdown = () -> {
+            };
+            private boolean profile;
+            private ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed();
+            private Stages stages = Stages.inline();
+            private Consumer<Scenario> loadInputs = sc -> {
+            };
+            private RouteTable routes;
+            private Engine engine = Engine.MATSIM;
+
+            private Builder(Config config) {
+                this.config = config;
+            }
+
+            public Builder shutdown(Runnable shutdown) {
+                this.shutdown = shutdown;
+                return this;
+            }
+
+            public Builder profile(boolean profile) {
+                this.profile = profile;
+                return this;
+            }
+
+            public Builder limiter(ConcurrencyLimiter limiter) {
+                this.limiter = limiter;
+                return this;
+            }
+
+            public Builder stages(Stages stages) {
+                this.stages = stages;
+                return this;
+            }
+
+            public Builder loadInputs(Consumer<Scenario> loadInputs) {
+                this.loadInputs = loadInputs;
+                return this;
+            }
+
+            public Builder routes(RouteTable routes) {
+                this.routes = routes;
+                return this;
+            }
+
+            public Builder engine(Engine engine) {
+                this.engine = engine;
+                return this;
+            }
+
+            public Factory build() {
+                return new Factory(config, shutdown, profile, limiter, stages, loadInputs, routes, engine);
+            }
         }
     }
 
-    private record ProfilingEntry(int thread, int simulationNow, long departureTime, String from, String to,
-                                  long start, long duration, int travelTime, ByteString requestId) {
+    /**
+     * @param source    {@link #SOURCE_SEARCH} or {@link #SOURCE_TABLE}. Answers from the route table have thread -1 and no
+     *                  search, they must not be mixed into service time statistics.
+     * @param duration  service time of decoding, search, conversion and writing, without any waiting
+     * @param queueTime wait for a routing thread
+     * @param waitTime  wait for the concurrency limiter and for the hand-off from the routing thread back to the I/O executor
+     */
+    private record ProfilingEntry(String source, int thread, int simulationNow, long departureTime, String from, String to,
+                                  long start, long duration, int travelTime, ByteString requestId, long queueTime, long waitTime) {
+
+    }
 
+    /**
+     * Result of a search: the plan elements of the Swiss Rail Raptor, or the response of the primitive engine.
+     *
+     * @param queueTime   wait for a routing thread
+     * @param limiterTime wait for the concurrency limiter on the routing thread
+     * @param searchTime  time of the search itself
+     * @param searchEnd   end of the search, from which the hand-off to the I/O executor is measured
+     */
+    private record SearchResult(List<? extends PlanElement> planElements, Routing.Response response, int thread, long queueTime,
+                                long limiterTime, long searchTime, long searchEnd) {
     }
 }
@@ -0,0 +1,450 @@
+package org.matsim.routing.raptor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.pt.transitSchedule.api.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transit schedule in flat primitive arrays, for {@link RaptorRouter}. Stops, routes and trips are numbered consecutively;
+ * per route, the stops and the departures of its trips are stored in slices of shared arrays, given by start offsets.
+ * <p>
+ * All trips of a route have the same offsets from their departure, as in MATSim's transit schedules, so a trip is stored
+ * only by its departure time and trips never overtake each other within a route. Transfers connect stops within the
+ * transfer radius with a walk. The access and egress stops of a query are precomputed per cell of a fine grid, see
+ * {@link StopCandidates}; a coarser grid of the stops serves transfers, the extension radius and points outside the fine
+ * grid.
+ * <p>
+ * The data is immutable and shared between all threads.
+ */
+public final class RaptorData {
+    private static final Logger log = LogManager.getLogger(RaptorData.class);
+
+    final int stops;
+    final String[] stopIds;
+    final String[] stopLinkIds;
+    final double[] stopX;
+    final double[] stopY;
+
+    final int routes;
+    final String[] lineIds;
+    final String[] routeIds;
+    // start of the stops of route r in the route stop arrays, routes + 1 entries
+    final int[] routeStopStart;
+    final int[] routeStops;
+    // route of each route stop
+    final int[] routeStopRoutes;
+    final int[] arrivalOffsets;
+    final int[] departureOffsets;
+    // cumulative beeline distance along the route, per route stop
+    final double[] routeStopDistances;
+    // start of the trips of route r, routes + 1 entries, the departures are sorted per route
+    final int[] routeTripStart;
+    final int[] tripDepartures;
+
+    // routes serving stop s: stopRouteStart[s] until stopRouteStart[s + 1], with the position of the stop in the route
+    final int[] stopRouteStart;
+    final int[] stopRoutes;
+    final int[] stopRoutePositions;
+
+    // walking transfers from stop s, without the stop itself
+    final int[] transferStart;
+    final int[] transferTargets;
+    final int[] transferTimes;
+
+    final StopGrid grid;
+    // access and egress stops per cell of a fine grid, precomputed for the search radius
+    final StopCandidates candidates;
+    final RaptorParameters parameters;
+
+    private RaptorData(Builder b, RaptorParameters parameters) {
+        this.parameters = parameters;
+
+        this.stops = b.stopIds.size();
+        this.stopIds = b.stopIds.toArray(String[]::new);
+        this.stopLinkIds = b.stopLinkIds.toArray(String[]::new);
+        this.stopX = Arrays.copyOf(b.stopX, stops);
+        this.stopY = Arrays.copyOf(b.stopY, stops);
+
+        this.routes = b.lineIds.size();
+        this.lineIds = b.lineIds.toArray(String[]::new);
+        this.routeIds = b.routeIds.toArray(String[]::new);
+        this.routeStopStart = new int[routes + 1];
+        this.routeTripStart = new int[routes + 1];
+        int routeStopCount = 0;
+        int tripCount = 0;
+        for (int r = 0; r < routes; r++) {
+            routeStopCount += b.routeStops.get(r).length;
+            tripCount += b.departures.get(r).length;
+            routeStopStart[r + 1] = routeStopCount;
+            routeTripStart[r + 1] = tripCount;
+        }
+
+        this.routeStops = new int[routeStopCount];
+        this.routeStopRoutes = new int[routeStopCount];
+        this.arrivalOffsets = new int[routeStopCount];
+        this.departureOffsets = new int[routeStopCount];
+        this.routeStopDistances = new double[routeStopCount];
+        this.tripDepartures = new int[tripCount];
+        int[] stopRouteCounts = new int[stops + 1];
+        for (int r = 0; r < routes; r++) {
+            int start = routeStopStart[r];
+            int[] stopsOfRoute = b.routeStops.get(r);
+            System.arraycopy(stopsOfRoute, 0, routeStops, start, stopsOfRoute.length);
+            Arrays.fill(routeStopRoutes, start, start + stopsOfRoute.length, r);
+            System.arraycopy(b.arrivalOffsets.get(r), 0, arrivalOffsets, start, stopsOfRoute.length);
+            System.arraycopy(b.departureOffsets.get(r), 0, departureOffsets, start, stopsOfRoute.length);
+            for (int i = 0; i < stopsOfRoute.length; i++) {
+                if (i > 0) {
+                    routeStopDistances[start + i] = routeStopDistances[start + i - 1] + distance(stopsOfRoute[i - 1], stopsOfRoute[i]);
+                }
+                stopRouteCounts[stopsOfRoute[i] + 1]++;
+            }
+
+            int[] departures = b.departures.get(r).clone();
+            Arrays.sort(departures);
+            System.arraycopy(departures, 0, tripDepartures, routeTripStart[r], departures.length);
+        }
+
+        this.stopRouteStart = prefixSums(stopRouteCounts);
+        this.stopRoutes = new int[routeStopCount];
+        this.stopRoutePositions = new int[routeStopCount];
+        int[] cursor = Arrays.copyOf(stopRouteStart, stops);
+        for (int r = 0; r < routes; r++) {
+            for (int i = routeStopStart[r]; i < routeStopStart[r + 1]; i++) {
+                int s = routeStops[i];
+                stopRoutes[cursor[s]] = r;
+                stopRoutePositions[cursor[s]] = i;
+                cursor[s]++;
+            }
+        }
+
+        this.grid = new StopGrid(stopX, stopY, Math.max(parameters.transferRadius(), parameters.searchRadius()));
+        this.candidates = new StopCandidates(stopX, stopY, parameters.searchRadius(), StopCandidates.DEFAULT_CELL_SIZE);
+
+        // transfers within the radius, as beeline walks
+        int[] transferCounts = new int[stops + 1];
+        List<int[]> targets = new ArrayList<>(stops);
+        for (int s = 0; s < stops; s++) {
+            int[] near = grid.within(stopX[s], stopY[s], parameters.transferRadius());
+            int n = 0;
+            for (int t : near) {
+                if (t != s) {
+                    near[n++] = t;
+                }
+            }
+            near = Arrays.copyOf(near, n);
+            targets.add(near);
+            transferCounts[s + 1] = n;
+        }
+        this.transferStart = prefixSums(transferCounts);
+        this.transferTargets = new int[transferStart[stops]];
+        this.transferTimes = new int[transferStart[stops]];
+        for (int s = 0; s < stops; s++) {
+            int[] near = targets.get(s);
+            for (int i = 0; i < near.length; i++) {
+                transferTargets[transferStart[s] + i] = near[i];
+                transferTimes[transferStart[s] + i] = parameters.walkTime(distance(s, near[i])) + parameters.transferTime();
+            }
+        }
+    }
+
+    /**
+     * Builds the data of all routes of a transit schedule.
+     */
+    public static RaptorData of(TransitSchedule schedule, RaptorParameters parameters) {
+        Builder b = new Builder();
+        Map<TransitStopFacility, Integer> stopIndex = new HashMap<>();
+        for (TransitStopFacility stop : schedule.getFacilities().values()) {
+            String link = stop.getLinkId() == null ? null : stop.getLinkId().toString();
+            stopIndex.put(stop, b.addStop(stop.getId().toString(), link, stop.getCoord().getX(), stop.getCoord().getY()));
+        }
+
+        for (TransitLine line : schedule.getTransitLines().values()) {
+            for (TransitRoute route : line.getRoutes().values()) {
+                List<TransitRouteStop> routeStops = route.getStops();
+                int[] stops = new int[routeStops.size()];
+                int[] arrivals = new int[stops.length];
+                int[] departures = new int[stops.length];
+                for (int i = 0; i < stops.length; i++) {
+                    TransitRouteStop rs = routeStops.get(i);
+                    stops[i] = stopIndex.get(rs.getStopFacility());
+                    double arrival = rs.getArrivalOffset().orElse(rs.getDepartureOffset().orElse(0));
+                    double departure = rs.getDepartureOffset().orElse(arrival);
+                    arrivals[i] = (int) arrival;
+                    departures[i] = (int) departure;
+                }
+                int[] trips = route.getDepartures().values().stream().mapToInt(d -> (int) d.getDepartureTime()).toArray();
+                b.addRoute(line.getId().toString(), route.getId().toString(), stops, arrivals, departures, trips);
+            }
+        }
+        RaptorData data = b.build(parameters);
+        log.info("Precomputed {} access and egress stop candidates in {} cells of {} m", data.candidates.candidates(),
+                data.candidates.cells(), data.candidates.cellSize());
+        return data;
+    }
+
+    public int stops() {
+        return stops;
+    }
+
+    public int routes() {
+        return routes;
+    }
+
+    public int trips() {
+        return tripDepartures.length;
+    }
+
+    public int transfers() {
+        return transferTargets.length;
+    }
+
+    double distance(int from, int to) {
+        double dx = stopX[from] - stopX[to];
+        double dy = stopY[from] - stopY[to];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static int[] prefixSums(int[] counts) {
+        int[] res = counts.clone();
+        for (int i = 1; i < res.length; i++) {
+            res[i] += res[i - 1];
+        }
+        return res;
+    }
+
+    /**
+     * Collects stops and routes with plain ids, independent of MATSim's schedule objects.
+     */
+    public static final class Builder {
+        private final List<String> stopIds = new ArrayList<>();
+        private final List<String> stopLinkIds = new ArrayList<>();
+        private double[] stopX = new double[64];
+        private double[] stopY = new double[64];
+
+        private final List<String> lineIds = new ArrayList<>();
+        private final List<String> routeIds = new ArrayList<>();
+        private final List<int[]> routeStops = new ArrayList<>();
+        private final List<int[]> arrivalOffsets = new ArrayList<>();
+        private final List<int[]> departureOffsets = new ArrayList<>();
+        private final List<int[]> departures = new ArrayList<>();
+
+        /**
+         * @return index of the stop
+         */
+        public int addStop(String id, String linkId, double x, double y) {
+            int i = stopIds.size();
+            if (i == stopX.length) {
+                stopX = Arrays.copyOf(stopX, i * 2);
+                stopY = Arrays.copyOf(stopY, i * 2);
+            }
+            stopIds.add(id);
+            stopLinkIds.add(linkId);
+            stopX[i] = x;
+            stopY[i] = y;
+            return i;
+        }
+
+        /**
+         * @param stops      stop indices in the order of the route
+         * @param arrivals   arrival offsets from the departure of a trip at the first stop, in seconds
+         * @param departures departure offsets, in seconds
+         * @param trips      departure times of the trips at the first stop, in seconds
+         */
+        public Builder addRoute(String lineId, String routeId, int[] stops, int[] arrivals, int[] departures, int[] trips) {
+            if (arrivals.length != stops.length || departures.length != stops.length) {
+                throw new IllegalArgumentException("Route " + routeId + " needs one arrival and departure offset per stop");
+            }
+            lineIds.add(lineId);
+            routeIds.add(routeId);
+            routeStops.add(stops);
+            arrivalOffsets.add(arrivals);
+            departureOffsets.add(departures);
+            this.departures.add(trips);
+            return this;
+        }
+
+        public RaptorData build(RaptorParameters parameters) {
+            return new RaptorData(this, parameters);
+        }
+    }
+
+    /**
+     * Stops sorted into square cells. Cells are identified by a key of their column and row, the stops of the cell with the
+     * i-th smallest key are cellStops[cellStart[i]] until cellStops[cellStart[i + 1]].
+     */
+    static final class StopGrid {
+        // beyond this, points are far outside of the schedule and all stops are scanned
+        private static final int MAX_RINGS = 64;
+
+        private final double cellSize;
+        private final double[] x;
+        private final double[] y;
+        private final long[] cellKeys;
+        private final int[] cellStart;
+        private final int[] cellStops;
+
+        StopGrid(double[] x, double[] y, double cellSize) {
+            this.cellSize = Math.max(1, cellSize);
+            this.x = x;
+            this.y = y;
+
+            int n = x.length;
+            long[] keys = new long[n];
+            Integer[] order = new Integer[n];
+            for (int s = 0; s < n; s++) {
+                keys[s] = key(cell(x[s]), cell(y[s]));
+                order[s] = s;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+
+            this.cellStops = new int[n];
+            long[] uniqueKeys = new long[n];
+            int[] starts = new int[n + 1];
+            int cells = 0;
+            for (int i = 0; i < n; i++) {
+                int s = order[i];
+                cellStops[i] = s;
+                if (cells == 0 || uniqueKeys[cells - 1] != keys[s]) {
+                    uniqueKeys[cells] = keys[s];
+                    starts[cells] = i;
+                    cells++;
+                }
+            }
+            starts[cells] = n;
+            this.cellKeys = Arrays.copyOf(uniqueKeys, cells);
+            this.cellStart = Arrays.copyOf(starts, cells + 1);
+        }
+
+        /**
+         * @return the stops within the radius of the point
+         */
+        int[] within(double px, double py, double radius) {
+            int[] res = new int[16];
+            int n = 0;
+            int cells = (int) Math.ceil(radius / cellSize);
+            int cx = cell(px);
+            int cy = cell(py);
+            for (int i = cx - cells; i <= cx + cells; i++) {
+                for (int j = cy - cells; j <= cy + cells; j++) {
+                    int c = Arrays.binarySearch(cellKeys, key(i, j));
+                    if (c < 0) {
+                        continue;
+                    }
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int s = cellStops[k];
+                        double dx = x[s] - px;
+                        double dy = y[s] - py;
+                        if (dx * dx + dy * dy <= radius * radius) {
+                            if (n == res.length) {
+                                res = Arrays.copyOf(res, n * 2);
+                            }
+                            res[n++] = s;
+                        }
+                    }
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+
+        /**
+         * Writes the stops within the radius of the point to the buffer, without allocation.
+         *
+         * @return number of stops written, or -1 if the buffer is too small
+         */
+        int within(double px, double py, double radius, int[] buffer) {
+            int n = 0;
+            int cells = (int) Math.ceil(radius / cellSize);
+            int cx = cell(px);
+            int cy = cell(py);
+            for (int i = cx - cells; i <= cx + cells; i++) {
+                for (int j = cy - cells; j <= cy + cells; j++) {
+                    int c = Arrays.binarySearch(cellKeys, key(i, j));
+                    if (c < 0) {
+                        continue;
+                    }
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int s = cellStops[k];
+                        double dx = x[s] - px;
+                        double dy = y[s] - py;
+                        if (dx * dx + dy * dy <= radius * radius) {
+                            if (n == buffer.length) {
+                                return -1;
+                            }
+                            buffer[n++] = s;
+                        }
+                    }
+                }
+            }
+            return n;
+        }
+
+        /**
+         * @return the stop closest to the point, searching rings of cells outwards, -1 if there are no stops
+         */
+        int nearest(double px, double py) {
+            if (x.length == 0) {
+                return -1;
+            }
+            int cx = cell(px);
+            int cy = cell(py);
+            int best = -1;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            for (int ring = 0; ; ring++) {
+                for (int i = cx - ring; i <= cx + ring; i++) {
+                    for (int j = cy - ring; j <= cy + ring; j++) {
+                        if (Math.abs(i - cx) != ring && Math.abs(j - cy) != ring) {
+                            continue;
+                        }
+                        int c = Arrays.binarySearch(cellKeys, key(i, j));
+                        if (c < 0) {
+                            continue;
+                        }
+                        for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                            int s = cellStops[k];
+                            double d = Math.hypot(x[s] - px, y[s] - py);
+                            if (d < bestDistance) {
+                                bestDistance = d;
+                                best = s;
+                            }
+                        }
+                    }
+                }
+                // stops in further rings are at least ring * cellSize away
+                if (best >= 0 && bestDistance <= ring * cellSize) {
+                    return best;
+                }
+                if (ring == MAX_RINGS) {
+                    return nearestByScan(px, py);
+                }
+            }
+        }
+
+        private int nearestByScan(double px, double py) {
+            int best = -1;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            for (int s = 0; s < x.length; s++) {
+                double d = Math.hypot(x[s] - px, y[s] - py);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = s;
+                }
+            }
+            return best;
+        }
+
+        private int cell(double v) {
+            return (int) Math.floor(v / cellSize);
+        }
+
+        private static long key(int i, int j) {
+            return ((long) i << 32) | (j & 0xffffffffL);
+        }
+    }
+}
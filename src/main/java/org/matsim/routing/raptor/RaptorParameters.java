@@ -0,0 +1,56 @@
+package org.matsim.routing.raptor;
+
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.groups.RoutingConfigGroup;
+import org.matsim.core.config.groups.ScoringConfigGroup;
+
+/**
+ * Parameters of {@link RaptorRouter}.
+ *
+ * @param walkSpeed        walking speed in m/s
+ * @param beelineFactor    ratio of walked distance to beeline distance
+ * @param searchRadius     radius around origin and destination in which access and egress stops are searched, in m
+ * @param extensionRadius  if no stop is within the search radius, the stops within the distance of the nearest stop plus
+ *                         this radius are used
+ * @param transferRadius   maximum beeline distance of a walking transfer between two stops, in m
+ * @param transferTime     additional time of a walking transfer, in s
+ * @param transferPenalty  seconds of arrival time that one transfer less is worth when choosing among the routes
+ * @param maxTransfers     maximum number of transfers
+ */
+public record RaptorParameters(double walkSpeed, double beelineFactor, double searchRadius, double extensionRadius,
+                               double transferRadius, int transferTime, int transferPenalty, int maxTransfers) {
+
+    public static final int DEFAULT_MAX_TRANSFERS = 8;
+
+    /**
+     * Reads the parameters from the config, like the Swiss Rail Raptor does: walking from the teleported walk mode, radii
+     * and transfer time from the transit router group, and the transfer penalty from the utility of a line switch relative
+     * to the disutility of travelling by pt.
+     */
+    public static RaptorParameters of(Config config) {
+        RoutingConfigGroup.TeleportedModeParams walk = config.routing().getTeleportedModeParams().get(TransportMode.walk);
+        double walkSpeed = walk != null && walk.getTeleportedModeSpeed() != null ? walk.getTeleportedModeSpeed() : 1.0;
+        double beelineFactor = walk != null && walk.getBeelineDistanceFactor() != null ? walk.getBeelineDistanceFactor() : 1.3;
+
+        ScoringConfigGroup scoring = config.scoring();
+        ScoringConfigGroup.ModeParams pt = scoring.getModes().get(TransportMode.pt);
+        double utilityOfTimePerSecond = (scoring.getPerforming_utils_hr() - (pt == null ? 0 : pt.getMarginalUtilityOfTraveling())) / 3600;
+        int transferPenalty = utilityOfTimePerSecond > 0 ? (int) Math.round(-scoring.getUtilityOfLineSwitch() / utilityOfTimePerSecond) : 0;
+
+        return new RaptorParameters(walkSpeed, beelineFactor,
+                config.transitRouter().getSearchRadius(),
+                config.transitRouter().getExtensionRadius(),
+                config.transitRouter().getMaxBeelineWalkConnectionDistance(),
+                (int) config.transitRouter().getAdditionalTransferTime(),
+                Math.max(0, transferPenalty),
+                DEFAULT_MAX_TRANSFERS);
+    }
+
+    /**
+     * @return walking time for a beeline distance, in whole seconds
+     */
+    public int walkTime(double beelineDistance) {
+        return (int) Math.ceil(beelineDistance * beelineFactor / walkSpeed);
+    }
+}
@@ -0,0 +1,506 @@
+package org.matsim.routing.raptor;
+
+import routing.Routing;
+
+import java.util.Arrays;
+
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+import static org.matsim.routing.ph.RoutingServicePH.sToNs;
+
+/**
+ * Round-based public transit router (RAPTOR) on {@link RaptorData}, which answers a routing request directly with a
+ * protobuf response. Round k finds the earliest arrivals at all stops with k vehicles, boarding the earliest reachable trip of
+ * every route served by a stop improved in the previous round, followed by walking transfers. Labels are pruned by the
+ * earliest arrival at the stop and at the destination found so far.
+ * <p>
+ * Among the arrivals at the destination per number of vehicles, the one with the earliest arrival plus
+ * {@link RaptorParameters#transferPenalty()} per transfer is taken; a direct walk is taken if it arrives at least as early.
+ * This differs from the generalized costs of the Swiss Rail Raptor, so routes may differ in some cases, see
+ * {@link org.matsim.analysis.CompareRaptorEngines}.
+ * <p>
+ * Every thread keeps its label arrays between queries and only resets the stops reached by the last query, so a search does
+ * not allocate apart from the response.
+ */
+public final class RaptorRouter {
+    static final String WALK = "walk";
+    static final String PT = "pt";
+    static final String PT_INTERACTION = "pt interaction";
+
+    private static final int INF = Integer.MAX_VALUE;
+
+    private static final byte UNSET = 0;
+    private static final byte ACCESS = 1;
+    private static final byte VEHICLE = 2;
+    private static final byte TRANSFER = 3;
+    // label of the previous round, carried over
+    private static final byte COPY = 4;
+
+    private static final int WALK_LEG = 0;
+    private static final int PT_LEG = 1;
+
+    private final RaptorData data;
+    private final RaptorParameters parameters;
+    private final ThreadLocal<Workspace> workspaces;
+
+    public RaptorRouter(RaptorData data) {
+        this.data = data;
+        this.parameters = data.parameters;
+        this.workspaces = ThreadLocal.withInitial(Workspace::new);
+    }
+
+    public RaptorData data() {
+        return data;
+    }
+
+    public Routing.Response route(Routing.Request request) {
+        Workspace w = workspaces.get();
+        try {
+            return w.route(request);
+        } finally {
+            w.reset();
+        }
+    }
+
+    /**
+     * Labels of one thread. Arrays indexed by round and stop hold round * stops + stop.
+     */
+    private final class Workspace {
+        private final int n = data.stops;
+        private final int rounds = parameters.maxTransfers() + 2;
+
+        private final int[] arrival = new int[rounds * n];
+        private final byte[] kind = new byte[rounds * n];
+        private final int[] vehicleTrip = new int[rounds * n];
+        private final int[] vehicleBoard = new int[rounds * n];
+        private final int[] vehicleAlight = new int[rounds * n];
+        private final int[] transferFrom = new int[rounds * n];
+        private final int[] best = new int[n];
+        // earliest arrival by vehicle: walks are not chained, so a later arrival by vehicle may still lead to earlier transfers
+        private final int[] bestVehicle = new int[n];
+
+        private final boolean[] touched = new boolean[n];
+        private final int[] touchedStops = new int[n];
+        private int touchedCount;
+
+        private final boolean[] marked = new boolean[n];
+        private final int[] markedStops = new int[n];
+        private int markedCount;
+
+        // stops reached by vehicle in the current round, the sources of transfers
+        private final boolean[] reached = new boolean[n];
+        private final int[] reachedStops = new int[n];
+        private int reachedCount;
+
+        private final int[] routeStart = new int[data.routes];
+        private final int[] queuedRoutes = new int[data.routes];
+        private int queuedCount;
+
+        private final int[] accessStops = new int[n];
+        private final int[] accessTimes = new int[n];
+        private int accessCount;
+        private final int[] egressStops = new int[n];
+        private final int[] egressTimes = new int[n];
+        private int egressCount;
+        private final int[] egressTimeOf = new int[n];
+
+        private final int[] roundTarget = new int[rounds];
+        private final int[] roundEgress = new int[rounds];
+        private final int[] buffer = new int[n];
+
+        // legs of the result, from destination to origin
+        private final int[] legKind = new int[2 * rounds + 2];
+        private final int[] legFrom = new int[2 * rounds + 2];
+        private final int[] legTo = new int[2 * rounds + 2];
+        private final int[] legDeparture = new int[2 * rounds + 2];
+        private final int[] legArrival = new int[2 * rounds + 2];
+        private final int[] legTrip = new int[2 * rounds + 2];
+        private final int[] legBoard = new int[2 * rounds + 2];
+        private final int[] legAlight = new int[2 * rounds + 2];
+        private int legCount;
+
+        Workspace() {
+            Arrays.fill(arrival, INF);
+            Arrays.fill(best, INF);
+            Arrays.fill(bestVehicle, INF);
+            Arrays.fill(routeStart, INF);
+            Arrays.fill(egressTimeOf, -1);
+        }
+
+        Routing.Response route(Routing.Request request) {
+            int departure = nsToS(request.getDepartureTimeNs());
+            double fromX = request.getFrom().getX();
+            double fromY = request.getFrom().getY();
+            double toX = request.getTo().getX();
+            double toY = request.getTo().getY();
+
+            accessCount = candidates(fromX, fromY, accessStops, accessTimes);
+            egressCount = candidates(toX, toY, egressStops, egressTimes);
+            for (int i = 0; i < egressCount; i++) {
+                egressTimeOf[egressStops[i]] = egressTimes[i];
+            }
+
+            search(departure);
+
+            int chosen = -1;
+            long chosenScore = Long.MAX_VALUE;
+            for (int k = 1; k < rounds; k++) {
+                if (roundTarget[k] == INF) {
+                    continue;
+                }
+                long score = roundTarget[k] + (long) (k - 1) * parameters.transferPenalty();
+                if (score < chosenScore) {
+                    chosenScore = score;
+                    chosen = k;
+                }
+            }
+
+            int walkArrival = departure + parameters.walkTime(Math.hypot(toX - fromX, toY - fromY));
+            if (chosen < 0 || walkArrival <= roundTarget[chosen]) {
+                return directWalk(request, departure, walkArrival);
+            }
+            backtrack(chosen, departure);
+            return response(request);
+        }
+
+        private void search(int departure) {
+            Arrays.fill(roundTarget, INF);
+            int bestTarget = INF;
+
+            for (int i = 0; i < accessCount; i++) {
+                int s = accessStops[i];
+                int t = departure + accessTimes[i];
+                if (t < best[s]) {
+                    arrival[s] = t;
+                    kind[s] = ACCESS;
+                    best[s] = t;
+                    touch(s);
+                    mark(s);
+                }
+            }
+
+            for (int k = 1; k < rounds && markedCount > 0; k++) {
+                int previous = (k - 1) * n;
+                int current = k * n;
+                for (int i = 0; i < touchedCount; i++) {
+                    int s = touchedStops[i];
+                    arrival[current + s] = arrival[previous + s];
+                    kind[current + s] = kind[previous + s] == UNSET ? UNSET : COPY;
+                }
+
+                // routes to scan, each from the first marked stop along it
+                for (int i = 0; i < markedCount; i++) {
+                    int s = markedStops[i];
+                    marked[s] = false;
+                    for (int j = data.stopRouteStart[s]; j < data.stopRouteStart[s + 1]; j++) {
+                        int r = data.stopRoutes[j];
+                        int pos = data.stopRoutePositions[j];
+                        if (routeStart[r] == INF) {
+                            queuedRoutes[queuedCount++] = r;
+                        }
+                        routeStart[r] = Math.min(routeStart[r], pos);
+                    }
+                }
+                markedCount = 0;
+
+                for (int i = 0; i < queuedCount; i++) {
+                    int r = queuedRoutes[i];
+                    bestTarget = scanRoute(r, routeStart[r], k, bestTarget);
+                    routeStart[r] = INF;
+                }
+                queuedCount = 0;
+
+                // walking transfers from the stops reached by vehicle in this round
+                for (int i = 0; i < reachedCount; i++) {
+                    int u = reachedStops[i];
+                    reached[u] = false;
+                    int idx = current + u;
+                    int arrivalByVehicle = data.tripDepartures[vehicleTrip[idx]] + data.arrivalOffsets[vehicleAlight[idx]];
+                    for (int j = data.transferStart[u]; j < data.transferStart[u + 1]; j++) {
+                        int v = data.transferTargets[j];
+                        int t = arrivalByVehicle + data.transferTimes[j];
+                        if (t < best[v] && t < bestTarget) {
+                            arrival[current + v] = t;
+                            kind[current + v] = TRANSFER;
+                            transferFrom[current + v] = u;
+                            best[v] = t;
+                            touch(v);
+                            mark(v);
+                        }
+                    }
+                }
+                reachedCount = 0;
+
+                for (int i = 0; i < markedCount; i++) {
+                    int s = markedStops[i];
+                    int egress = egressTimeOf[s];
+                    if (egress >= 0 && arrival[current + s] + egress < roundTarget[k]) {
+                        roundTarget[k] = arrival[current + s] + egress;
+                        roundEgress[k] = s;
+                    }
+                }
+                bestTarget = Math.min(bestTarget, roundTarget[k]);
+            }
+        }
+
+        private int scanRoute(int r, int from, int k, int bestTarget) {
+            int previous = (k - 1) * n;
+            int current = k * n;
+            int end = data.routeStopStart[r + 1];
+            int trip = -1;
+            int board = -1;
+            for (int pos = from; pos < end; pos++) {
+                int s = data.routeStops[pos];
+                if (trip >= 0) {
+                    int t = data.tripDepartures[trip] + data.arrivalOffsets[pos];
+                    if (t < bestVehicle[s] && t < bestTarget) {
+                        int idx = current + s;
+                        vehicleTrip[idx] = trip;
+                        vehicleBoard[idx] = board;
+                        vehicleAlight[idx] = pos;
+                        bestVehicle[s] = t;
+                        touch(s);
+                        if (!reached[s]) {
+                            reached[s] = true;
+                            reachedStops[reachedCount++] = s;
+                        }
+                        if (t < best[s]) {
+                            arrival[idx] = t;
+                            kind[idx] = VEHICLE;
+                            best[s] = t;
+                            mark(s);
+                        }
+                    }
+                }
+
+                int ready = arrival[previous + s];
+                if (ready == INF || pos == end - 1) {
+                    continue;
+                }
+                if (trip < 0 || ready < data.tripDepartures[trip] + data.departureOffsets[pos]) {
+                    int earlier = earliestTrip(r, pos, ready);
+                    if (earlier >= 0 && (trip < 0 || earlier < trip)) {
+                        trip = earlier;
+                        board = pos;
+                    }
+                }
+            }
+            return bestTarget;
+        }
+
+        /**
+         * @return the first trip of the route departing at the route stop not before the time, -1 if there is none
+         */
+        private int earliestTrip(int r, int pos, int time) {
+            int lo = data.routeTripStart[r];
+            int hi = data.routeTripStart[r + 1];
+            int earliestDeparture = time - data.departureOffsets[pos];
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (data.tripDepartures[mid] < earliestDeparture) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo < data.routeTripStart[r + 1] ? lo : -1;
+        }
+
+        /**
+         * Collects the legs from the destination back to the origin.
+         */
+        private void backtrack(int round, int departure) {
+            legCount = 0;
+            int s = roundEgress[round];
+            int egressStart = arrival[round * n + s];
+            addLeg(WALK_LEG, s, -1, egressStart, egressStart + egressTimeOf[s], -1, -1, -1);
+
+            int k = round;
+            while (true) {
+                int idx = k * n + s;
+                byte kd = kind[idx];
+                if (kd == COPY) {
+                    k--;
+                    continue;
+                }
+                if (kd == ACCESS) {
+                    addLeg(WALK_LEG, -1, s, departure, arrival[idx], -1, -1, -1);
+                    return;
+                }
+                if (kd == TRANSFER) {
+                    int u = transferFrom[idx];
+                    int uIdx = k * n + u;
+                    int walkStart = data.tripDepartures[vehicleTrip[uIdx]] + data.arrivalOffsets[vehicleAlight[uIdx]];
+                    addLeg(WALK_LEG, u, s, walkStart, arrival[idx], -1, -1, -1);
+                    s = u;
+                    idx = uIdx;
+                }
+                int trip = vehicleTrip[idx];
+                int board = vehicleBoard[idx];
+                int alight = vehicleAlight[idx];
+                int boardStop = data.routeStops[board];
+                addLeg(PT_LEG, boardStop, s, data.tripDepartures[trip] + data.departureOffsets[board],
+                        data.tripDepartures[trip] + data.arrivalOffsets[alight], trip, board, alight);
+                s = boardStop;
+                k--;
+            }
+        }
+
+        private void addLeg(int type, int from, int to, int dep, int arr, int trip, int board, int alight) {
+            legKind[legCount] = type;
+            legFrom[legCount] = from;
+            legTo[legCount] = to;
+            legDeparture[legCount] = dep;
+            legArrival[legCount] = arr;
+            legTrip[legCount] = trip;
+            legBoard[legCount] = board;
+            legAlight[legCount] = alight;
+            legCount++;
+        }
+
+        private Routing.Response response(Routing.Request request) {
+            Routing.Response.Builder response = Routing.Response.newBuilder().setRequestId(request.getRequestId());
+            // legs start where the previous one ended, waiting for a vehicle is part of the pt leg
+            int time = legDeparture[legCount - 1];
+            for (int i = legCount - 1; i >= 0; i--) {
+                if (i < legCount - 1) {
+                    int stop = legFrom[i];
+                    response.addActivities(Routing.Activity.newBuilder()
+                            .setActType(PT_INTERACTION)
+                            .setLinkId(link(stop))
+                            .setCoordinate(coordinate(data.stopX[stop], data.stopY[stop]))
+                            .setMaxDurNs(0));
+                }
+
+                String fromLink = legFrom[i] < 0 ? request.getFromLinkId() : link(legFrom[i]);
+                String toLink = legTo[i] < 0 ? request.getToLinkId() : link(legTo[i]);
+                int travelTime = legArrival[i] - time;
+                Routing.Leg.Builder leg = Routing.Leg.newBuilder()
+                        .setRoutingMode(PT)
+                        .setDepTimeNs(sToNs(time))
+                        .setTravTimeNs(sToNs(travelTime));
+
+                if (legKind[i] == PT_LEG) {
+                    double distance = data.routeStopDistances[legAlight[i]] - data.routeStopDistances[legBoard[i]];
+                    int r = data.routeStopRoutes[legBoard[i]];
+                    leg.setMode(PT).setPtRoute(Routing.PtRoute.newBuilder()
+                            .setDelegate(genericRoute(fromLink, toLink, travelTime, distance))
+                            .setInformation(Routing.PtRouteDescription.newBuilder()
+                                    .setTransitRouteId(data.routeIds[r])
+                                    .setTransitLineId(data.lineIds[r])
+                                    .setAccessFacilityId(data.stopIds[legFrom[i]])
+                                    .setEgressFacilityId(data.stopIds[legTo[i]])
+                                    .setBoardingTimeNs(sToNs(legDeparture[i]))));
+                } else {
+                    leg.setMode(WALK).setGenericRoute(genericRoute(fromLink, toLink, travelTime, walkDistance(request, legFrom[i], legTo[i])));
+                }
+                response.addLegs(leg);
+                time = legArrival[i];
+            }
+            return response.build();
+        }
+
+        private Routing.Response directWalk(Routing.Request request, int departure, int arrival) {
+            double distance = Math.hypot(request.getTo().getX() - request.getFrom().getX(), request.getTo().getY() - request.getFrom().getY())
+                    * parameters.beelineFactor();
+            Routing.Leg leg = Routing.Leg.newBuilder()
+                    .setMode(WALK)
+                    .setRoutingMode(PT)
+                    .setDepTimeNs(sToNs(departure))
+                    .setTravTimeNs(sToNs(arrival - departure))
+                    .setGenericRoute(genericRoute(request.getFromLinkId(), request.getToLinkId(), arrival - departure, distance))
+                    .build();
+            return Routing.Response.newBuilder().addLegs(leg).setRequestId(request.getRequestId()).build();
+        }
+
+        private double walkDistance(Routing.Request request, int from, int to) {
+            double fx = from < 0 ? request.getFrom().getX() : data.stopX[from];
+            double fy = from < 0 ? request.getFrom().getY() : data.stopY[from];
+            double tx = to < 0 ? request.getTo().getX() : data.stopX[to];
+            double ty = to < 0 ? request.getTo().getY() : data.stopY[to];
+            return Math.hypot(tx - fx, ty - fy) * parameters.beelineFactor();
+        }
+
+        /**
+         * Stops within the search radius of a point, from the precomputed candidates of its cell, or if there are none, within
+         * the distance of the nearest stop plus the extension radius.
+         */
+        private int candidates(double x, double y, int[] stops, int[] times) {
+            int count = data.candidates.within(x, y, parameters.searchRadius(), buffer);
+            if (count < 0) {
+                count = data.grid.within(x, y, parameters.searchRadius(), buffer);
+            }
+            if (count == 0) {
+                int nearest = data.grid.nearest(x, y);
+                if (nearest < 0) {
+                    return 0;
+                }
+                double radius = Math.hypot(data.stopX[nearest] - x, data.stopY[nearest] - y) + parameters.extensionRadius();
+                count = data.grid.within(x, y, radius, buffer);
+            }
+            for (int i = 0; i < count; i++) {
+                int s = buffer[i];
+                stops[i] = s;
+                times[i] = parameters.walkTime(Math.hypot(data.stopX[s] - x, data.stopY[s] - y));
+            }
+            return count;
+        }
+
+        private void touch(int s) {
+            if (!touched[s]) {
+                touched[s] = true;
+                touchedStops[touchedCount++] = s;
+            }
+        }
+
+        private void mark(int s) {
+            if (!marked[s]) {
+                marked[s] = true;
+                markedStops[markedCount++] = s;
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                int s = touchedStops[i];
+                for (int k = 0; k < rounds; k++) {
+                    arrival[k * n + s] = INF;
+                    kind[k * n + s] = UNSET;
+                }
+                best[s] = INF;
+                bestVehicle[s] = INF;
+                touched[s] = false;
+            }
+            touchedCount = 0;
+            for (int i = 0; i < markedCount; i++) {
+                marked[markedStops[i]] = false;
+            }
+            markedCount = 0;
+            for (int i = 0; i < reachedCount; i++) {
+                reached[reachedStops[i]] = false;
+            }
+            reachedCount = 0;
+            for (int i = 0; i < egressCount; i++) {
+                egressTimeOf[egressStops[i]] = -1;
+            }
+            egressCount = 0;
+            accessCount = 0;
+        }
+
+        private String link(int stop) {
+            String link = data.stopLinkIds[stop];
+            return link == null ? "" : link;
+        }
+    }
+
+    private static Routing.GenericRoute.Builder genericRoute(String from, String to, int travelTime, double distance) {
+        return Routing.GenericRoute.newBuilder()
+                .setStartLink(from)
+                .setEndLink(to)
+                .setTravTimeNs(sToNs(travelTime))
+                .setDistance(distance);
+    }
+
+    private static Routing.Coordinate.Builder coordinate(double x, double y) {
+        return Routing.Coordinate.newBuilder().setX(x).setY(y);
+    }
+}
@@ -0,0 +1,190 @@
+package org.matsim.routing.raptor;
+
+import java.util.Arrays;
+
+/**
+ * Access and egress stop candidates, precomputed for a regular grid of small cells over the area of the stops. The
+ * candidates of a cell are all stops within the radius of some point of the cell, i.e. within the radius plus half the cell
+ * diagonal of its center, sorted by their distance to the center. A query filters the candidates of its cell by the exact
+ * distance and stops at the first candidate too far from the center to be within the radius of the point.
+ * <p>
+ * Requests come from activity coordinates, which differ from the coordinates of their links, so candidates are looked up by
+ * cell and not by link. Walking times are computed from the exact distance by the caller. Points outside the grid or radii
+ * above the precomputed one are not covered, then the caller falls back to the radius search of {@link RaptorData.StopGrid}.
+ */
+final class StopCandidates {
+    static final double DEFAULT_CELL_SIZE = 250;
+
+    // bounds the cell offsets to 16 MB; above, the cells are enlarged
+    private static final long MAX_CELLS = 1 << 22;
+
+    private final double[] x;
+    private final double[] y;
+    private final double radius;
+    private final double cellSize;
+    private final double minX;
+    private final double minY;
+    private final int columns;
+    private final int rows;
+
+    // candidates of cell c = row * columns + column are cellStops[cellStart[c]] until cellStops[cellStart[c + 1]]
+    private final int[] cellStart;
+    private final int[] cellStops;
+    private final float[] cellDistances;
+
+    StopCandidates(double[] x, double[] y, double radius, double cellSize) {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int s = 0; s < x.length; s++) {
+            minX = Math.min(minX, x[s]);
+            minY = Math.min(minY, y[s]);
+            maxX = Math.max(maxX, x[s]);
+            maxY = Math.max(maxY, y[s]);
+        }
+        if (x.length == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        // points further away than the radius have no stop within the radius
+        this.minX = minX - radius;
+        this.minY = minY - radius;
+        double width = maxX - minX + 2 * radius;
+        double height = maxY - minY + 2 * radius;
+
+        double size = Math.max(1, cellSize);
+        if ((Math.floor(width / size) + 1) * (Math.floor(height / size) + 1) > MAX_CELLS) {
+            size = Math.ceil(Math.sqrt(width * height / MAX_CELLS)) + 1;
+        }
+        this.cellSize = size;
+        this.columns = (int) Math.floor(width / size) + 1;
+        this.rows = (int) Math.floor(height / size) + 1;
+        int cells = columns * rows;
+
+        // a candidate of a cell may be up to half the diagonal further from its center than from the point
+        double reach = radius + size * Math.sqrt(0.5) + 1;
+        int[] counts = new int[cells + 1];
+        for (int s = 0; s < x.length; s++) {
+            forEachCell(s, reach, (c, d) -> counts[c + 1]++);
+        }
+        for (int c = 0; c < cells; c++) {
+            if ((long) counts[c] + counts[c + 1] > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many stop candidates for a cell size of " + size + " m");
+            }
+            counts[c + 1] += counts[c];
+        }
+        this.cellStart = counts;
+        this.cellStops = new int[cellStart[cells]];
+        this.cellDistances = new float[cellStart[cells]];
+
+        int[] cursor = Arrays.copyOf(cellStart, cells);
+        for (int s = 0; s < x.length; s++) {
+            int stop = s;
+            forEachCell(s, reach, (c, d) -> {
+                cellStops[cursor[c]] = stop;
+                cellDistances[cursor[c]] = (float) d;
+                cursor[c]++;
+            });
+        }
+        sortByDistance();
+    }
+
+    /**
+     * Writes the stops within the radius of the point to the buffer, without allocation.
+     *
+     * @return number of stops written, or -1 if the point is outside the grid, the radius exceeds the precomputed one or the
+     * buffer is too small
+     */
+    int within(double px, double py, double r, int[] buffer) {
+        if (r > radius) {
+            return -1;
+        }
+        int column = (int) Math.floor((px - minX) / cellSize);
+        int row = (int) Math.floor((py - minY) / cellSize);
+        if (column < 0 || column >= columns || row < 0 || row >= rows) {
+            return -1;
+        }
+        int c = row * columns + column;
+        double offset = Math.hypot(px - (minX + (column + 0.5) * cellSize), py - (minY + (row + 0.5) * cellSize));
+        // the float distances are rounded, one meter of slack keeps them conservative
+        double limit = r + offset + 1;
+
+        int n = 0;
+        for (int k = cellStart[c]; k < cellStart[c + 1] && cellDistances[k] <= limit; k++) {
+            int s = cellStops[k];
+            double dx = x[s] - px;
+            double dy = y[s] - py;
+            if (dx * dx + dy * dy <= r * r) {
+                if (n == buffer.length) {
+                    return -1;
+                }
+                buffer[n++] = s;
+            }
+        }
+        return n;
+    }
+
+    int cells() {
+        return columns * rows;
+    }
+
+    int candidates() {
+        return cellStops.length;
+    }
+
+    double cellSize() {
+        return cellSize;
+    }
+
+    private void forEachCell(int s, double reach, CellConsumer consumer) {
+        int fromColumn = Math.max(0, (int) Math.ceil((x[s] - reach - minX) / cellSize - 0.5));
+        int toColumn = Math.min(columns - 1, (int) Math.floor((x[s] + reach - minX) / cellSize - 0.5));
+        int fromRow = Math.max(0, (int) Math.ceil((y[s] - reach - minY) / cellSize - 0.5));
+        int toRow = Math.min(rows - 1, (int) Math.floor((y[s] + reach - minY) / cellSize - 0.5));
+        for (int row = fromRow; row <= toRow; row++) {
+            double dy = y[s] - (minY + (row + 0.5) * cellSize);
+            for (int column = fromColumn; column <= toColumn; column++) {
+                double dx = x[s] - (minX + (column + 0.5) * cellSize);
+                double d = Math.sqrt(dx * dx + dy * dy);
+                if (d <= reach) {
+                    consumer.accept(row * columns + column, d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts the candidates of every cell by distance. Distance and stop are packed into one long; the bits of non-negative
+     * floats order like their values.
+     */
+    private void sortByDistance() {
+        long[] packed = new long[16];
+        for (int c = 0; c < cellStart.length - 1; c++) {
+            int from = cellStart[c];
+            int n = cellStart[c + 1] - from;
+            if (n < 2) {
+                continue;
+            }
+            if (packed.length < n) {
+                packed = new long[Math.max(n, packed.length * 2)];
+            }
+            for (int i = 0; i < n; i++) {
+                packed[i] = (long) Float.floatToIntBits(cellDistances[from + i]) << 32 | cellStops[from + i];
+            }
+            Arrays.sort(packed, 0, n);
+            for (int i = 0; i < n; i++) {
+                cellDistances[from + i] = Float.intBitsToFloat((int) (packed[i] >>> 32));
+                cellStops[from + i] = (int) packed[i];
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface CellConsumer {
+        void accept(int cell, double distance);
+    }
+}
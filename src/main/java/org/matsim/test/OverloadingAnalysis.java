@@ -1,6 +1,8 @@
 package org.matsim.test;
 
 import org.apache.commons.lang3.tuple.Pair;
+import org.matsim.IdStoreDeserializer;
+import org.matsim.analysis.events.BinpbEventsReader;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.events.LinkEnterEvent;
 import org.matsim.api.core.v01.events.LinkLeaveEvent;
@@ -11,13 +13,18 @@ import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.events.EventsUtils;
 import org.matsim.vehicles.Vehicle;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 public class OverloadingAnalysis {
-    public static void main(String[] args) {
+    /**
+     * @param args optionally the id store of the Rust run, to read its binary events instead of the converted XML events
+     */
+    public static void main(String[] args) throws IOException {
 
         double rate = 0.03;
         double sample = 0.01;
@@ -37,7 +44,13 @@ public class OverloadingAnalysis {
             LinkStats linkStats = new LinkStats();
             EventsManager rustEventsManager = EventsUtils.createEventsManager();
             rustEventsManager.addHandler(linkStats);
-            EventsUtils.readEvents(rustEventsManager, rust + "/events.0.xml.gz");
+            if (args.length > 0) {
+                rustEventsManager.initProcessing();
+                new BinpbEventsReader(rustEventsManager, IdStoreDeserializer.loadIdStore(Path.of(args[0]))).readFile(Path.of(rust));
+                rustEventsManager.finishProcessing();
+            } else {
+                EventsUtils.readEvents(rustEventsManager, rust + "/events.0.xml.gz");
+            }
             System.out.println(linkStats.travelTimes);
         }
     }
@@ -0,0 +1,158 @@
+package org.matsim;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import ids.Ids;
+import network.NetworkOuterClass;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+import pt.TransitScheduleOuterClass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinpbScenarioReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testNetworkAndSchedule() throws IOException {
+        writeIds();
+        write("network", network());
+        write("transit-schedule", schedule());
+
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        new BinpbScenarioReader(tempDir.resolve("run")).read(scenario);
+
+        assertEquals(3, scenario.getNetwork().getNodes().size());
+        assertEquals(2, scenario.getNetwork().getLinks().size());
+        assertEquals(7.5, scenario.getNetwork().getEffectiveCellSize());
+        Node b = scenario.getNetwork().getNodes().get(Id.createNodeId("b"));
+        assertEquals(100, b.getCoord().getX());
+        assertEquals(50, b.getCoord().getY());
+
+        Link ab = scenario.getNetwork().getLinks().get(Id.createLinkId("ab"));
+        assertEquals(Id.createNodeId("a"), ab.getFromNode().getId());
+        assertEquals(Id.createNodeId("b"), ab.getToNode().getId());
+        assertEquals(111, ab.getLength());
+        assertEquals(1800, ab.getCapacity());
+        assertEquals(13.9, ab.getFreespeed());
+        assertEquals(2, ab.getNumberOfLanes());
+        assertEquals(Set.of("car", "bus"), ab.getAllowedModes());
+        Link bc = scenario.getNetwork().getLinks().get(Id.createLinkId("bc"));
+        assertEquals(Set.of("bus"), bc.getAllowedModes());
+
+        TransitStopFacility stop = scenario.getTransitSchedule().getFacilities().get(Id.create("stop_2", TransitStopFacility.class));
+        assertEquals(Id.createLinkId("bc"), stop.getLinkId());
+        assertEquals(200, stop.getCoord().getX());
+        assertTrue(stop.getIsBlockingLane());
+
+        TransitLine line = scenario.getTransitSchedule().getTransitLines().get(Id.create("line", TransitLine.class));
+        TransitRoute route = line.getRoutes().get(Id.create("route", TransitRoute.class));
+        assertEquals("bus", route.getTransportMode());
+        assertEquals(2, route.getStops().size());
+        assertEquals(Id.create("stop_1", TransitStopFacility.class), route.getStops().get(0).getStopFacility().getId());
+        assertEquals(60, route.getStops().get(1).getArrivalOffset().seconds());
+        assertEquals(Id.createLinkId("ab"), route.getRoute().getStartLinkId());
+        assertEquals(Id.createLinkId("bc"), route.getRoute().getEndLinkId());
+        Departure departure = route.getDepartures().get(Id.create("dep", Departure.class));
+        assertEquals(3600, departure.getDepartureTime());
+        assertEquals(Id.create("bus_1", Vehicle.class), departure.getVehicleId());
+    }
+
+    @Test
+    void testPartitionedNetwork() throws IOException {
+        writeIds();
+        write("network.4", network());
+
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        new BinpbScenarioReader(tempDir.resolve("run")).read(scenario);
+
+        assertEquals(2, scenario.getNetwork().getLinks().size());
+        assertTrue(scenario.getTransitSchedule().getFacilities().isEmpty());
+    }
+
+    @Test
+    void testAmbiguousPartitionedNetwork() throws IOException {
+        writeIds();
+        write("network.2", network());
+        write("network.4", network());
+
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        BinpbScenarioReader reader = new BinpbScenarioReader(tempDir.resolve("run"));
+        assertThrows(IllegalArgumentException.class, () -> reader.readNetwork(scenario.getNetwork()));
+    }
+
+    private static NetworkOuterClass.Network network() {
+        return NetworkOuterClass.Network.newBuilder()
+                .setEffectiveCellSize(7.5)
+                .addNodes(NetworkOuterClass.Node.newBuilder().setId(0).setX(0).setY(0))
+                .addNodes(NetworkOuterClass.Node.newBuilder().setId(1).setX(100).setY(50))
+                .addNodes(NetworkOuterClass.Node.newBuilder().setId(2).setX(200).setY(50))
+                .addLinks(NetworkOuterClass.Link.newBuilder().setId(0).setFrom(0).setTo(1)
+                        .setLength(111).setCapacity(1800).setFreespeed(13.9).setPermlanes(2).addModes(0).addModes(1))
+                .addLinks(NetworkOuterClass.Link.newBuilder().setId(1).setFrom(1).setTo(2)
+                        .setLength(100).setCapacity(900).setFreespeed(8.3).setPermlanes(1).addModes(1))
+                .build();
+    }
+
+    private static TransitScheduleOuterClass.TransitSchedule schedule() {
+        // string ids: 0 car, 1 bus, 2 stop_1, 3 stop_2, 4 line, 5 route, 6 dep
+        return TransitScheduleOuterClass.TransitSchedule.newBuilder()
+                .addStopFacilities(TransitScheduleOuterClass.TransitStopFacility.newBuilder().setId(2).setX(100).setY(50).setLinkId(0))
+                .addStopFacilities(TransitScheduleOuterClass.TransitStopFacility.newBuilder().setId(3).setX(200).setY(50).setLinkId(1).setIsBlocking(true))
+                .addLines(TransitScheduleOuterClass.TransitLine.newBuilder().setId(4)
+                        .addRoutes(TransitScheduleOuterClass.TransitRoute.newBuilder().setId(5).setTransportMode(1)
+                                .addStops(TransitScheduleOuterClass.TransitRouteStop.newBuilder().setStopFacilityId(2).setDepartureOffset(0))
+                                .addStops(TransitScheduleOuterClass.TransitRouteStop.newBuilder().setStopFacilityId(3).setArrivalOffset(60).setDepartureOffset(60))
+                                .addRoute(0)
+                                .addRoute(1)
+                                .addDepartures(TransitScheduleOuterClass.Departure.newBuilder().setId(6).setDepartureTime(3600).setVehicleId(0))))
+                .build();
+    }
+
+    private void writeIds() throws IOException {
+        try (OutputStream out = Files.newOutputStream(tempDir.resolve("run.ids.binpb"))) {
+            ids(1, List.of("car", "bus", "stop_1", "stop_2", "line", "route", "dep")).writeDelimitedTo(out);
+            ids(3, List.of("ab", "bc")).writeDelimitedTo(out);
+            ids(4, List.of("a", "b", "c")).writeDelimitedTo(out);
+            ids(6, List.of("bus_1")).writeDelimitedTo(out);
+        }
+    }
+
+    private void write(String name, Message message) throws IOException {
+        try (OutputStream out = Files.newOutputStream(tempDir.resolve("run." + name + ".binpb"))) {
+            message.writeTo(out);
+        }
+    }
+
+    private static Ids.IdsWithType ids(int type, List<String> ids) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        for (String id : ids) {
+            out.writeStringNoTag(id);
+        }
+        out.flush();
+        return Ids.IdsWithType.newBuilder().setTypeId(type).setRaw(ByteString.copyFrom(bytes.toByteArray())).build();
+    }
+}
@@ -0,0 +1,83 @@
+package org.matsim;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import ids.Ids;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testResource() {
+        IdStore store = IdStore.load(Path.of("src/test/resources/org/matsim/ids.pbf"));
+
+        assertEquals(Set.of(0L, 1L), store.types());
+        assertEquals("test-2", store.get(0, 1));
+        assertEquals(1, store.indexOf(0, "test-2"));
+        assertEquals(0, store.indexOf(1, "string-id"));
+        assertEquals(-1, store.indexOf(1, "test-1"));
+        assertEquals(-1, store.indexOf(42, "test-1"));
+    }
+
+    @Test
+    void testRawAndLz4() throws IOException {
+        List<String> links = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            links.add("link_" + i);
+        }
+        List<String> persons = List.of("berlin_1", "", "Straße", "berlin_2");
+
+        Path file = tempDir.resolve("test.ids.binpb");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            Ids.IdsWithType.newBuilder().setTypeId(3).setLz4Data(lz4(encode(links))).build().writeDelimitedTo(out);
+            Ids.IdsWithType.newBuilder().setTypeId(2).setRaw(encode(persons)).build().writeDelimitedTo(out);
+        }
+
+        IdStore store = IdStore.load(file);
+
+        assertEquals(10_000, store.size(3));
+        assertEquals(links, store.asList(3));
+        assertEquals(persons, store.asList(2));
+        for (int i = 0; i < links.size(); i++) {
+            assertEquals(i, store.indexOf(3, links.get(i)));
+        }
+        assertEquals(1, store.indexOf(2, ""));
+        assertEquals(2, store.indexOf(2, "Straße"));
+        assertEquals(-1, store.indexOf(2, "link_1"));
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(2, 4));
+    }
+
+    private static ByteString encode(List<String> ids) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        for (String id : ids) {
+            out.writeStringNoTag(id);
+        }
+        out.flush();
+        return ByteString.copyFrom(bytes.toByteArray());
+    }
+
+    private static ByteString lz4(ByteString data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new LZ4FrameOutputStream(bytes)) {
+            data.writeTo(out);
+        }
+        return ByteString.copyFrom(bytes.toByteArray());
+    }
+}
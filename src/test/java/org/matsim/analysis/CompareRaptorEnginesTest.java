@@ -0,0 +1,84 @@
+package org.matsim.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.routing.ph.RoutingServicePH;
+import routing.Routing;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompareRaptorEnginesTest {
+    // the engines optimize different costs, so the arrival may differ by a little
+    private static final int ARRIVAL_TOLERANCE = 60;
+
+    @Test
+    void testEnginesAgreeOnPtTutorial() throws Exception {
+        RoutingServicePH matsim = create(RoutingServicePH.Engine.MATSIM);
+        RoutingServicePH primitive = create(RoutingServicePH.Engine.PRIMITIVE);
+
+        List<Routing.Request> requests = List.of(
+                request("1112", 1000, 1500, "4142", 4000, 1500, 27126),
+                request("1112", 1000, 1500, "4142", 4000, 1500, 28800),
+                request("4142", 4000, 1500, "1112", 1000, 1500, 30000),
+                request("4142", 4000, 1500, "1112", 1000, 1500, 36000));
+
+        // thread names must end with a number, see RoutingServicePH.Stages
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "router-0"));
+        try {
+            int withPt = executor.submit(() -> {
+                matsim.init();
+                primitive.init();
+                int n = 0;
+                for (Routing.Request request : requests) {
+                    Routing.Response a = matsim.route(request);
+                    Routing.Response b = primitive.route(request);
+                    int departure = RoutingServicePH.nsToS(request.getDepartureTimeNs());
+
+                    n += CompareRaptorEngines.ptLegs(a) > 0 ? 1 : 0;
+                    assertEquals(CompareRaptorEngines.lines(a), CompareRaptorEngines.lines(b));
+                    int arrivalA = CompareRaptorEngines.arrival(a, departure);
+                    int arrivalB = CompareRaptorEngines.arrival(b, departure);
+                    assertTrue(Math.abs(arrivalA - arrivalB) <= ARRIVAL_TOLERANCE,
+                            "Arrival at " + arrivalA + " with the Swiss Rail Raptor, at " + arrivalB + " with the primitive engine");
+                }
+                return n;
+            }).get();
+            assertTrue(withPt > 0, "No request was routed by pt");
+        } catch (ExecutionException e) {
+            // report failed assertions of the routing thread as such
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static RoutingServicePH create(RoutingServicePH.Engine engine) {
+        var ptScenarioURL = ExamplesUtils.getTestScenarioURL("pt-tutorial");
+        Config config = ConfigUtils.loadConfig(IOUtils.extendUrl(ptScenarioURL, "0.config.xml"));
+        return RoutingServicePH.Factory.builder(config).engine(engine).build().create();
+    }
+
+    private static Routing.Request request(String fromLink, double fromX, double fromY, String toLink, double toX, double toY, int departure) {
+        return Routing.Request.newBuilder()
+                .setPersonId("1")
+                .setFromLinkId(fromLink)
+                .setFrom(Routing.Coordinate.newBuilder().setX(fromX).setY(fromY))
+                .setToLinkId(toLink)
+                .setTo(Routing.Coordinate.newBuilder().setX(toX).setY(toY))
+                .setMode("pt")
+                .setDepartureTimeNs(RoutingServicePH.sToNs(departure))
+                .build();
+    }
+}
@@ -0,0 +1,182 @@
+package org.matsim.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.NetworkWriter;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationWriter;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitScheduleWriter;
+import org.matsim.vehicles.Vehicle;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+class ExperiencedPlansWriterTest {
+    private static final int PERSONS = 8;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testStreamingMatchesDefault() {
+        writeInputs();
+
+        assertEquals(0, run("default.xml.gz", false));
+        assertEquals(0, run("streaming.xml.gz", true));
+
+        List<Person> expected = read("default.xml.gz");
+        List<Person> actual = read("streaming.xml.gz");
+
+        assertEquals(PERSONS, expected.size());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertSamePlan(expected.get(i).getSelectedPlan(), actual.get(i).getSelectedPlan());
+        }
+    }
+
+    private int run(String output, boolean streaming) {
+        List<String> args = new ArrayList<>(List.of(
+                "--network", dir.resolve("network.xml").toString(),
+                "--population", dir.resolve("plans.xml").toString(),
+                "--transit-schedule", dir.resolve("schedule.xml").toString(),
+                "--events", dir.resolve("events.xml").toString(),
+                "--output", dir.resolve(output).toString(),
+                "--threads", "3"));
+        if (streaming) {
+            args.add("--streaming");
+        }
+        return new CommandLine(new ExperiencedPlansWriter()).execute(args.toArray(String[]::new));
+    }
+
+    private List<Person> read(String file) {
+        Population population = PopulationUtils.readPopulation(dir.resolve(file).toString());
+        return population.getPersons().values().stream()
+                .sorted(Comparator.comparing(Person::getId))
+                .map(Person.class::cast)
+                .toList();
+    }
+
+    private static void assertSamePlan(Plan expected, Plan actual) {
+        List<PlanElement> a = expected.getPlanElements();
+        List<PlanElement> b = actual.getPlanElements();
+        assertEquals(a.size(), b.size());
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) instanceof Activity x) {
+                Activity y = assertInstanceOf(Activity.class, b.get(i));
+                assertEquals(x.getType(), y.getType());
+                assertEquals(x.getLinkId(), y.getLinkId());
+                assertEquals(x.getStartTime(), y.getStartTime());
+                assertEquals(x.getEndTime(), y.getEndTime());
+            } else {
+                Leg x = (Leg) a.get(i);
+                Leg y = assertInstanceOf(Leg.class, b.get(i));
+                assertEquals(x.getMode(), y.getMode());
+                assertEquals(x.getDepartureTime(), y.getDepartureTime());
+                assertEquals(x.getTravelTime(), y.getTravelTime());
+                assertEquals(x.getRoute().getStartLinkId(), y.getRoute().getStartLinkId());
+                assertEquals(x.getRoute().getEndLinkId(), y.getRoute().getEndLinkId());
+                assertEquals(x.getRoute().getDistance(), y.getRoute().getDistance(), 1e-6);
+            }
+        }
+    }
+
+    /**
+     * Writes a line of three links in each direction and agents that drive from home on the first link to work on the last
+     * one and back. The trips overlap in time, so link events of agents of different shards are interleaved.
+     */
+    private void writeInputs() {
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        Network network = scenario.getNetwork();
+        Node n0 = NetworkUtils.createAndAddNode(network, Id.createNodeId("0"), new Coord(0, 0));
+        Node n1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(1000, 0));
+        Node n2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(2000, 0));
+        Node n3 = NetworkUtils.createAndAddNode(network, Id.createNodeId("3"), new Coord(3000, 0));
+        Link a = NetworkUtils.createAndAddLink(network, Id.createLinkId("a"), n0, n1, 1000, 10, 1000, 1);
+        Link b = NetworkUtils.createAndAddLink(network, Id.createLinkId("b"), n1, n2, 1000, 10, 1000, 1);
+        Link c = NetworkUtils.createAndAddLink(network, Id.createLinkId("c"), n2, n3, 1000, 10, 1000, 1);
+        Link cBack = NetworkUtils.createAndAddLink(network, Id.createLinkId("c_back"), n3, n2, 1000, 10, 1000, 1);
+        Link bBack = NetworkUtils.createAndAddLink(network, Id.createLinkId("b_back"), n2, n1, 1000, 10, 1000, 1);
+        Link aBack = NetworkUtils.createAndAddLink(network, Id.createLinkId("a_back"), n1, n0, 1000, 10, 1000, 1);
+        new NetworkWriter(network).write(dir.resolve("network.xml").toString());
+        new TransitScheduleWriter(scenario.getTransitSchedule()).writeFile(dir.resolve("schedule.xml").toString());
+
+        Population population = scenario.getPopulation();
+        EventWriterXML events = new EventWriterXML(dir.resolve("events.xml").toString());
+        List<Event> all = new ArrayList<>();
+        for (int i = 0; i < PERSONS; i++) {
+            Id<Person> person = Id.createPersonId("p" + i);
+            Id<Vehicle> car = Id.createVehicleId("car" + i);
+            double start = 6 * 3600 + i * 30;
+
+            Plan plan = PopulationUtils.createPlan();
+            plan.addActivity(PopulationUtils.createActivityFromLinkId("home", a.getId()));
+            plan.addLeg(PopulationUtils.createLeg("car"));
+            plan.addActivity(PopulationUtils.createActivityFromLinkId("work", c.getId()));
+            plan.addLeg(PopulationUtils.createLeg("car"));
+            plan.addActivity(PopulationUtils.createActivityFromLinkId("home", aBack.getId()));
+            Person p = population.getFactory().createPerson(person);
+            p.addPlan(plan);
+            population.addPerson(p);
+
+            drive(all, person, car, "home", "work", start, a, b, c);
+            drive(all, person, car, "work", "home", start + 8 * 3600, c, cBack, bBack, aBack);
+        }
+        new PopulationWriter(population).write(dir.resolve("plans.xml").toString());
+
+        all.stream().sorted(Comparator.comparingDouble(Event::getTime)).forEach(events::handleEvent);
+        events.closeFile();
+    }
+
+    private static void drive(List<Event> events, Id<Person> person, Id<Vehicle> car, String from, String to, double time, Link... route) {
+        Link first = route[0];
+        Link last = route[route.length - 1];
+        events.add(new ActivityEndEvent(time, person, first.getId(), null, from, first.getToNode().getCoord()));
+        events.add(new PersonDepartureEvent(time, person, first.getId(), "car", "car"));
+        events.add(new PersonEntersVehicleEvent(time, person, car));
+        events.add(new VehicleEntersTrafficEvent(time, person, first.getId(), car, "car", 1.0));
+        for (int i = 1; i < route.length; i++) {
+            time += 100;
+            events.add(new LinkLeaveEvent(time, car, route[i - 1].getId()));
+            events.add(new LinkEnterEvent(time, car, route[i].getId()));
+        }
+        time += 100;
+        events.add(new VehicleLeavesTrafficEvent(time, person, last.getId(), car, "car", 1.0));
+        events.add(new PersonLeavesVehicleEvent(time, person, car));
+        events.add(new PersonArrivalEvent(time, person, last.getId(), "car"));
+        events.add(new ActivityStartEvent(time, person, last.getId(), null, to, last.getToNode().getCoord()));
+    }
+}
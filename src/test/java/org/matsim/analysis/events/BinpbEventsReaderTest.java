@@ -0,0 +1,116 @@
+package org.matsim.analysis.events;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import events.Events;
+import ids.Ids;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.IdStoreDeserializer;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.api.experimental.events.TeleportationArrivalEvent;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinpbEventsReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPartitionsAreMergedByTime() throws IOException {
+        try (OutputStream out = Files.newOutputStream(tempDir.resolve("run.ids.binpb"))) {
+            // string ids: 0 home, 1 walk, 2 pt, 3 line, 4 route
+            ids(1, List.of("home", "walk", "pt", "line", "route")).writeDelimitedTo(out);
+            ids(2, List.of("p0", "p1")).writeDelimitedTo(out);
+            ids(3, List.of("a", "b")).writeDelimitedTo(out);
+            ids(6, List.of("bus_1")).writeDelimitedTo(out);
+        }
+        Path events = Files.createDirectory(tempDir.resolve("events"));
+        write(events.resolve("events.0.binpb"),
+                step(10, Events.Event.newBuilder().setActEnd(Events.ActivityEndEvent.newBuilder().setPerson(0).setLink(0).setActType(0)),
+                        Events.Event.newBuilder().setDeparture(Events.PersonDepartureEvent.newBuilder().setPerson(0).setLink(0).setMode(1).setRoutingMode(1))),
+                step(30, Events.Event.newBuilder().setLinkEnter(Events.LinkEnterEvent.newBuilder().setLink(1).setVehicle(0))),
+                step(50, Events.Event.newBuilder().setTravelledWithPt(Events.TravelledWithPtEvent.newBuilder()
+                        .setPerson(1).setDistance(1200).setMode(2).setLine(3).setRoute(4))));
+        write(events.resolve("events.1.binpb"),
+                step(10, Events.Event.newBuilder().setActEnd(Events.ActivityEndEvent.newBuilder().setPerson(1).setLink(1).setActType(0))),
+                step(20, Events.Event.newBuilder().setPersonEntersVeh(Events.PersonEntersVehicleEvent.newBuilder().setPerson(0).setVehicle(0))),
+                step(50, Events.Event.newBuilder().setArrival(Events.PersonArrivalEvent.newBuilder().setPerson(1).setLink(1).setMode(2))));
+
+        List<Event> read = new ArrayList<>();
+        EventsManager manager = EventsUtils.createEventsManager();
+        manager.addHandler((BasicEventHandler) read::add);
+        manager.initProcessing();
+        new BinpbEventsReader(manager, IdStoreDeserializer.loadIdStore(tempDir.resolve("run.ids.binpb")))
+                .addCustomEventMapper(BinpbEventsReader.TRAVELLED_WITH_PT, e -> new TeleportationArrivalEvent(e.getTime(),
+                        Id.createPersonId(e.getAttributes().get("person")), Double.parseDouble(e.getAttributes().get("distance")),
+                        e.getAttributes().get("mode")))
+                .readFile(events);
+        manager.finishProcessing();
+
+        // ordered by time, then by partition
+        assertEquals(List.of(ActivityEndEvent.class, PersonDepartureEvent.class, ActivityEndEvent.class, PersonEntersVehicleEvent.class,
+                        LinkEnterEvent.class, TeleportationArrivalEvent.class, PersonArrivalEvent.class),
+                read.stream().map(Object::getClass).toList());
+        assertEquals(List.of(10., 10., 10., 20., 30., 50., 50.), read.stream().map(Event::getTime).toList());
+
+        ActivityEndEvent end = (ActivityEndEvent) read.get(2);
+        assertEquals(Id.createPersonId("p1"), end.getPersonId());
+        assertEquals(Id.createLinkId("b"), end.getLinkId());
+        assertEquals("home", end.getActType());
+        PersonDepartureEvent departure = (PersonDepartureEvent) read.get(1);
+        assertEquals("walk", departure.getLegMode());
+        PersonEntersVehicleEvent enters = (PersonEntersVehicleEvent) read.get(3);
+        assertEquals(Id.createPersonId("p0"), enters.getPersonId());
+        assertEquals(Id.createVehicleId("bus_1"), enters.getVehicleId());
+
+        TeleportationArrivalEvent teleported = (TeleportationArrivalEvent) read.get(5);
+        assertEquals(Id.createPersonId("p1"), teleported.getPersonId());
+        assertEquals(1200, teleported.getDistance());
+        assertEquals("pt", teleported.getMode());
+    }
+
+    private static Events.TimeStep step(int time, Events.Event.Builder... events) {
+        Events.TimeStep.Builder step = Events.TimeStep.newBuilder().setTime(time);
+        for (Events.Event.Builder event : events) {
+            step.addEvents(event);
+        }
+        return step.build();
+    }
+
+    private static void write(Path file, Events.TimeStep... steps) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (Events.TimeStep step : steps) {
+                step.writeDelimitedTo(out);
+            }
+        }
+    }
+
+    private static Ids.IdsWithType ids(int type, List<String> ids) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        for (String id : ids) {
+            out.writeStringNoTag(id);
+        }
+        out.flush();
+        return Ids.IdsWithType.newBuilder().setTypeId(type).setRaw(ByteString.copyFrom(bytes.toByteArray())).build();
+    }
+}
@@ -0,0 +1,42 @@
+package org.matsim.analysis.events;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.Vehicle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LinkLoadTest {
+
+    @Test
+    void testBoardingsOnLastEnteredLink() {
+        Id<Link> l1 = Id.createLinkId("link-load-1");
+        Id<Link> l2 = Id.createLinkId("link-load-2");
+        Id<Vehicle> bus = Id.createVehicleId("link-load-bus");
+        Id<Person> p = Id.createPersonId("link-load-p");
+
+        LinkLoad load = new LinkLoad();
+
+        // not counted, the bus has not entered a link yet
+        load.handleEvent(new PersonEntersVehicleEvent(0, p, bus));
+
+        load.handleEvent(new LinkEnterEvent(10, bus, l1));
+        load.handleEvent(new PersonDepartureEvent(15, p, l1, "pt", "pt"));
+        load.handleEvent(new PersonEntersVehicleEvent(20, p, bus));
+        load.handleEvent(new LinkEnterEvent(30, bus, l2));
+        load.handleEvent(new PersonLeavesVehicleEvent(40, p, bus));
+
+        assertEquals(1, load.traversals(l1.index()));
+        assertEquals(1, load.traversals(l2.index()));
+        assertEquals(1, load.boardings(l1.index()));
+        assertEquals(1, load.boardings(l2.index()));
+        assertEquals(1, load.departures(l1.index()));
+        assertEquals(0, load.departures(l2.index()));
+    }
+}
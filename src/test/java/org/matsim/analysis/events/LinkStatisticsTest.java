@@ -0,0 +1,58 @@
+package org.matsim.analysis.events;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.vehicles.Vehicle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinkStatisticsTest {
+
+    @Test
+    void testFlowsAndTravelTimes() {
+        Id<Link> link = Id.createLinkId("link-stats-1");
+        Id<Vehicle> v1 = Id.createVehicleId("link-stats-v1");
+        Id<Vehicle> v2 = Id.createVehicleId("link-stats-v2");
+
+        LinkStatistics stats = new LinkStatistics(60, 180);
+
+        // v1 passes the whole link, entering in bin 0 and leaving in bin 1
+        stats.handleEvent(new LinkEnterEvent(50, v1, link));
+        stats.handleEvent(new LinkLeaveEvent(70, v1, link));
+
+        // v2 starts on the link, so only its flow counts
+        stats.handleEvent(new VehicleEntersTrafficEvent(65, null, link, v2, "car", 1.0));
+        stats.handleEvent(new LinkLeaveEvent(75, v2, link));
+
+        // late events go to the last bin
+        stats.handleEvent(new LinkEnterEvent(500, v1, link));
+        stats.handleEvent(new LinkLeaveEvent(600, v1, link));
+
+        int l = link.index();
+        assertEquals(0, stats.flow(l, 0));
+        assertEquals(2, stats.flow(l, 1));
+        assertEquals(1, stats.flow(l, 2));
+
+        assertEquals(20, stats.meanTravelTime(l, 0));
+        assertTrue(Double.isNaN(stats.meanTravelTime(l, 1)));
+        assertEquals(100, stats.meanTravelTime(l, 2));
+
+        // 20 s is in [16, 32), 100 s in [64, 128)
+        assertEquals(1, stats.histogram(l, 5));
+        assertEquals(1, stats.histogram(l, 7));
+        assertEquals(16, LinkStatistics.bucketLowerBound(5));
+    }
+
+    @Test
+    void testBuckets() {
+        assertEquals(0, LinkStatistics.bucket(0.5));
+        assertEquals(1, LinkStatistics.bucket(1));
+        assertEquals(2, LinkStatistics.bucket(3.9));
+        assertEquals(LinkStatistics.HISTOGRAM_BUCKETS - 1, LinkStatistics.bucket(1e9));
+    }
+}
@@ -0,0 +1,86 @@
+package org.matsim.analysis.replay;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import routing.Routing;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.matsim.routing.ph.RoutingServicePH.sToNs;
+
+class IndexedRequestTraceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testSortedRoundTrip() throws IOException {
+        Path file = tempDir.resolve("sorted.trace");
+        write(file, 0, 0, 5, 7, 7, 7);
+
+        try (IndexedRequestTrace trace = IndexedRequestTrace.open(file)) {
+            assertEquals(8, trace.endTime());
+            assertEquals(6, trace.size());
+            assertEquals(List.of("0", "1"), ids(trace.requestsAt(0)));
+            assertTrue(trace.requestsAt(1).isEmpty());
+            assertEquals(List.of("2"), ids(trace.requestsAt(5)));
+            assertEquals(List.of("3", "4", "5"), ids(trace.requestsAt(7)));
+            assertTrue(trace.requestsAt(8).isEmpty());
+        }
+    }
+
+    @Test
+    void testUnsortedInputIsGroupedBySecond() throws IOException {
+        Path file = tempDir.resolve("unsorted.trace");
+        write(file, 3, 1, 3, 0, 1);
+
+        try (IndexedRequestTrace trace = IndexedRequestTrace.open(file)) {
+            assertEquals(4, trace.endTime());
+            assertEquals(List.of("3"), ids(trace.requestsAt(0)));
+            assertEquals(List.of("1", "4"), ids(trace.requestsAt(1)));
+            assertTrue(trace.requestsAt(2).isEmpty());
+            assertEquals(List.of("0", "2"), ids(trace.requestsAt(3)));
+        }
+    }
+
+    @Test
+    void testOpenDetectsFormat() throws IOException {
+        Path indexed = tempDir.resolve("requests.trace");
+        write(indexed, 2);
+        try (IndexedRequestTrace trace = assertInstanceOf(IndexedRequestTrace.class, RequestTrace.open(indexed))) {
+            assertEquals(List.of("0"), ids(trace.requestsAt(2)));
+        }
+
+        Path delimited = tempDir.resolve("requests.pb");
+        try (RequestTraceWriter writer = RequestTraceWriter.create(delimited, RequestTrace.Format.DELIMITED)) {
+            writer.add(request(0, 2));
+        }
+        RequestTrace trace = RequestTrace.open(delimited);
+        assertFalse(trace instanceof IndexedRequestTrace);
+        assertEquals(List.of("0"), ids(trace.requestsAt(2)));
+    }
+
+    private static void write(Path file, int... nows) throws IOException {
+        try (RequestTraceWriter writer = RequestTraceWriter.create(file, RequestTrace.Format.INDEXED)) {
+            for (int i = 0; i < nows.length; i++) {
+                writer.add(request(i, nows[i]));
+            }
+        }
+    }
+
+    private static Routing.Request request(int id, int now) {
+        return Routing.Request.newBuilder()
+                .setMode("pt")
+                .setFromLinkId(String.valueOf(id))
+                .setNowNs(sToNs(now))
+                .setDepartureTimeNs(sToNs(now + 600))
+                .build();
+    }
+
+    private static List<String> ids(List<Routing.Request> requests) {
+        return requests.stream().map(Routing.Request::getFromLinkId).toList();
+    }
+}
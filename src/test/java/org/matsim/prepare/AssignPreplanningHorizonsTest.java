@@ -0,0 +1,51 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.prepare.AssignPreplanningHorizons.Schedule;
+import org.matsim.prepare.AssignPreplanningHorizons.Window;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AssignPreplanningHorizonsTest {
+
+    @Test
+    void testPeakIsMovedBack() {
+        Schedule schedule = new Schedule(2);
+
+        // a peak of 5 requests in bin 5, which may move back to bin 2
+        for (int i = 0; i < 5; i++) {
+            schedule.add(new Window(2, 5));
+        }
+        // one request which cannot move, in bin 4
+        schedule.add(new Window(4, 4));
+        schedule.compute();
+
+        assertEquals(5, schedule.peakWithoutShift());
+        assertEquals(2, schedule.peak());
+        assertEquals(2, schedule.load(5));
+        // the fixed request takes one place in bin 4
+        assertEquals(2, schedule.load(4));
+        assertEquals(2, schedule.load(3));
+        assertEquals(0, schedule.load(2));
+        assertEquals(3, schedule.shifted());
+        assertEquals(0, schedule.overflow());
+
+        assertEquals(5, schedule.next(new Window(2, 5)));
+        assertEquals(5, schedule.next(new Window(2, 5)));
+        assertEquals(4, schedule.next(new Window(2, 5)));
+        assertEquals(4, schedule.next(new Window(4, 4)));
+    }
+
+    @Test
+    void testOverflowAtEarliestBin() {
+        Schedule schedule = new Schedule(1);
+        for (int i = 0; i < 3; i++) {
+            schedule.add(new Window(0, 1));
+        }
+        schedule.compute();
+
+        assertEquals(1, schedule.load(1));
+        assertEquals(2, schedule.load(0));
+        assertEquals(1, schedule.overflow());
+    }
+}
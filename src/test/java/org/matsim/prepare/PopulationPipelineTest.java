@@ -0,0 +1,128 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationWriter;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PopulationPipelineTest {
+    private static final int PERSONS = 500;
+    private static final String CRS = "EPSG:25832";
+
+    @TempDir
+    Path dir;
+
+    private String input;
+
+    @BeforeEach
+    void setUp() {
+        Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+        population.setName("pipeline test");
+        population.getAttributes().putAttribute("coordinateReferenceSystem", CRS);
+        population.getAttributes().putAttribute("sample", 0.1);
+        for (int i = 0; i < PERSONS; i++) {
+            Person person = population.getFactory().createPerson(Id.createPersonId("p" + i));
+            Plan plan = PopulationUtils.createPlan();
+            plan.addActivity(PopulationUtils.createActivityFromLinkId("home", Id.createLinkId("l" + i)));
+            person.addPlan(plan);
+            population.addPerson(person);
+        }
+        input = dir.resolve("plans.xml").toString();
+        new PopulationWriter(population).write(input);
+    }
+
+    @Test
+    void testInputOrderIsKept() {
+        List<String> ids = new ArrayList<>();
+        PopulationPipeline.Result result = PopulationPipeline.read(input)
+                .threads(8)
+                .map(p -> {
+                    // later persons often finish before earlier ones
+                    LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(100_000));
+                    return p;
+                })
+                .forEach(p -> ids.add(p.getId().toString()));
+
+        assertEquals(PERSONS, result.read());
+        assertEquals(PERSONS, result.written());
+        for (int i = 0; i < PERSONS; i++) {
+            assertEquals("p" + i, ids.get(i));
+        }
+    }
+
+    @Test
+    void testNullsAreSkipped() {
+        List<Integer> numbers = new ArrayList<>();
+        PopulationPipeline.Result result = PopulationPipeline.read(input)
+                .threads(4)
+                .filter(p -> number(p) % 2 == 0)
+                .map(p -> number(p) % 3 == 0 ? null : p)
+                .run(PopulationPipelineTest::number, numbers::add);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < PERSONS; i++) {
+            if (i % 2 == 0 && i % 3 != 0) {
+                expected.add(i);
+            }
+        }
+        assertEquals(PERSONS, result.read());
+        assertEquals(expected.size(), result.written());
+        assertEquals(expected, numbers);
+    }
+
+    @Test
+    void testWorkerFailureReachesCaller() {
+        RuntimeException failure = new RuntimeException("person p123");
+        List<Integer> numbers = new ArrayList<>();
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> PopulationPipeline.read(input)
+                .threads(4)
+                .map(p -> {
+                    if (number(p) == 123) {
+                        throw failure;
+                    }
+                    return p;
+                })
+                .run(PopulationPipelineTest::number, numbers::add));
+
+        assertEquals(failure, e.getCause());
+        // nothing after the failed person is passed on
+        assertEquals(123, numbers.size());
+    }
+
+    @Test
+    void testPopulationAttributesAreWritten() {
+        String output = dir.resolve("output.xml.gz").toString();
+        PopulationPipeline.read(input)
+                .threads(2)
+                .filter(p -> number(p) < 10)
+                .write(output);
+
+        Population population = PopulationUtils.readPopulation(output);
+        assertEquals(10, population.getPersons().size());
+        assertEquals("pipeline test", population.getName());
+        assertEquals(CRS, population.getAttributes().getAttribute("coordinateReferenceSystem"));
+        assertInstanceOf(Double.class, population.getAttributes().getAttribute("sample"));
+        assertEquals(0.1, (double) population.getAttributes().getAttribute("sample"));
+    }
+
+    private static int number(Person person) {
+        return Integer.parseInt(person.getId().toString().substring(1));
+    }
+}
@@ -0,0 +1,56 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationWriter;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PreparePopulationTest {
+    private static final String CRS = "EPSG:25832";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testOutputsKeepPopulationAttributes() {
+        Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+        population.setName("prepare test");
+        population.getAttributes().putAttribute("coordinateReferenceSystem", CRS);
+        population.addPerson(person(population, "car-1", "car"));
+        population.addPerson(person(population, "car-2", "car"));
+        population.addPerson(person(population, "bike", "bike"));
+        Path input = dir.resolve("plans.xml");
+        new PopulationWriter(population).write(input.toString());
+
+        int code = new CommandLine(new PreparePopulation()).execute("--input", input.toString(), "--modes", "car",
+                "--input-pct", "10", "--samples", "10", "--horizons", "0,600", "--threads", "2");
+        assertEquals(0, code);
+
+        for (String file : new String[]{"plans-filtered-10pct-horizon0.xml", "plans-filtered-10pct-horizon600.xml"}) {
+            Population output = PopulationUtils.readPopulation(dir.resolve(file).toString());
+            assertEquals(2, output.getPersons().size(), file);
+            assertEquals("prepare test", output.getName(), file);
+            assertEquals(CRS, output.getAttributes().getAttribute("coordinateReferenceSystem"), file);
+        }
+    }
+
+    private static Person person(Population population, String id, String mode) {
+        Person person = population.getFactory().createPerson(Id.createPersonId(id));
+        Plan plan = PopulationUtils.createPlan();
+        plan.addActivity(PopulationUtils.createActivityFromLinkId("home", Id.createLinkId("l1")));
+        plan.addLeg(PopulationUtils.createLeg(mode));
+        plan.addActivity(PopulationUtils.createActivityFromLinkId("work", Id.createLinkId("l2")));
+        person.addPlan(plan);
+        return person;
+    }
+}
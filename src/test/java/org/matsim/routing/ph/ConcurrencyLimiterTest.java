@@ -0,0 +1,96 @@
+package org.matsim.routing.ph;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimiterTest {
+
+    @Test
+    void testFixedNeverBlocks() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Mode.FIXED, 1, 4);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void testAimdGrowsWhileLatencyIsStable() {
+        ConcurrencyLimiter.Aimd aimd = new ConcurrencyLimiter.Aimd();
+        int limit = 4;
+        for (int i = 0; i < 10; i++) {
+            limit = aimd.update(1_000_000, limit, limit);
+        }
+        assertEquals(14, limit);
+    }
+
+    @Test
+    void testAimdBacksOffWhenLatencyRises() {
+        ConcurrencyLimiter.Aimd aimd = new ConcurrencyLimiter.Aimd();
+        int limit = aimd.update(1_000_000, 20, 20);
+        assertEquals(21, limit);
+
+        limit = aimd.update(3_000_000, limit, limit);
+        assertEquals(18, limit);
+    }
+
+    @Test
+    void testAimdDoesNotGrowUnusedLimit() {
+        ConcurrencyLimiter.Aimd aimd = new ConcurrencyLimiter.Aimd();
+        assertEquals(20, aimd.update(1_000_000, 2, 20));
+    }
+
+    @Test
+    void testGradientShrinksWhenLatencyRises() {
+        ConcurrencyLimiter.Gradient gradient = new ConcurrencyLimiter.Gradient(1, 64);
+        int limit = 32;
+        for (int i = 0; i < 5; i++) {
+            limit = gradient.update(1_000_000, limit, limit);
+        }
+        int stable = limit;
+        assertTrue(stable >= 32, "Limit should not shrink at constant latency, but was " + stable);
+
+        for (int i = 0; i < 5; i++) {
+            limit = gradient.update(10_000_000, limit, limit);
+        }
+        assertTrue(limit < stable, "Limit should shrink when latency rises, but was " + limit);
+    }
+
+    @Test
+    void testGradientRespectsBounds() {
+        ConcurrencyLimiter.Gradient gradient = new ConcurrencyLimiter.Gradient(2, 8);
+        int limit = 8;
+        for (int i = 0; i < 100; i++) {
+            limit = gradient.update(1_000_000, limit, limit);
+        }
+        assertEquals(8, limit);
+
+        for (int i = 0; i < 100; i++) {
+            limit = gradient.update(1_000_000L * (i + 2), limit, limit);
+        }
+        assertTrue(limit >= 2);
+    }
+
+    @Test
+    void testAdaptiveLimiterBlocksAboveLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Mode.AIMD, 1, 2);
+        assertEquals(1, limiter.getLimit());
+        limiter.acquire();
+
+        Thread waiting = new Thread(() -> {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        waiting.join(200);
+        assertTrue(waiting.isAlive(), "Second request should wait for a free slot");
+
+        limiter.release(1_000_000);
+        waiting.join(1_000);
+        assertFalse(waiting.isAlive());
+    }
+}
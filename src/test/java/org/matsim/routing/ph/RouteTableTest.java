@@ -0,0 +1,81 @@
+package org.matsim.routing.ph;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import routing.PlannedRoutes;
+import routing.Routing;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.matsim.routing.ph.RoutingServicePH.sToNs;
+
+class RouteTableTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testLookup() throws IOException {
+        Path file = tempDir.resolve("routes.table");
+        try (RouteTable.Writer writer = RouteTable.writer(file)) {
+            for (int p = 0; p < 100; p++) {
+                writer.add(route("person_" + p, 0, 8 * 3600 + p, "home_" + p, "work_" + p));
+                writer.add(route("person_" + p, 1, 17 * 3600 + p, "work_" + p, "home_" + p));
+            }
+        }
+
+        try (RouteTable table = RouteTable.open(file)) {
+            assertEquals(200, table.size());
+            for (int p = 0; p < 100; p++) {
+                PlannedRoutes.PlannedRoute route = table.find("person_" + p, 17 * 3600 + p, "work_" + p, "home_" + p);
+                assertNotNull(route);
+                assertEquals(1, route.getTripIndex());
+            }
+
+            Routing.Request request = Routing.Request.newBuilder()
+                    .setPersonId("person_3")
+                    .setFromLinkId("home_3")
+                    .setToLinkId("work_3")
+                    .setDepartureTimeNs(sToNs(8 * 3600 + 3))
+                    .setRequestId(ByteString.copyFromUtf8("r"))
+                    .build();
+            Routing.Response response = table.lookup(request);
+            assertEquals("home_3", response.getLegs(0).getGenericRoute().getStartLink());
+            assertEquals(ByteString.copyFromUtf8("r"), response.getRequestId());
+
+            // deviations from the plan are not answered
+            assertNull(table.lookup(request.toBuilder().setDepartureTimeNs(sToNs(8 * 3600 + 4)).build()));
+            assertNull(table.lookup(request.toBuilder().setToLinkId("work_4").build()));
+            assertNull(table.lookup(request.toBuilder().setPersonId("person_100").build()));
+        }
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        Path file = tempDir.resolve("empty.table");
+        RouteTable.writer(file).close();
+
+        try (RouteTable table = RouteTable.open(file)) {
+            assertEquals(0, table.size());
+            assertNull(table.find("person", 0, "a", "b"));
+        }
+    }
+
+    private static PlannedRoutes.PlannedRoute route(String person, int trip, int departure, String from, String to) {
+        Routing.Leg leg = Routing.Leg.newBuilder()
+                .setMode("walk")
+                .setGenericRoute(Routing.GenericRoute.newBuilder().setStartLink(from).setEndLink(to))
+                .build();
+        return PlannedRoutes.PlannedRoute.newBuilder()
+                .setPersonId(person)
+                .setTripIndex(trip)
+                .setDepartureTimeNs(sToNs(departure))
+                .setFromLinkId(from)
+                .setToLinkId(to)
+                .setResponse(Routing.Response.newBuilder().addLegs(leg))
+                .build();
+    }
+}
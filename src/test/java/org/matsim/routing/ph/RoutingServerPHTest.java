@@ -27,8 +27,7 @@ public class RoutingServerPHTest {
     void setUp() throws IOException {
         var ptScenarioURL = ExamplesUtils.getTestScenarioURL("pt-tutorial");
         Config config = ConfigUtils.loadConfig(IOUtils.extendUrl(ptScenarioURL, "0.config.xml"));
-        RoutingServicePH service = new RoutingServicePH.Factory(config, () -> {
-        }, false).create();
+        RoutingServicePH service = RoutingServicePH.Factory.builder(config).build().create();
         server = ServerBuilder.forPort(0).addService(service).build().start();
         channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
     }
@@ -50,13 +49,11 @@ public class RoutingServerPHTest {
         Routing.Request request = Routing.Request.newBuilder()
                 .setPersonId("1")
                 .setFromLinkId("1112")
-                .setFromX(1000)
-                .setFromY(1500)
+                .setFrom(Routing.Coordinate.newBuilder().setX(1000).setY(1500))
                 .setToLinkId("4142")
-                .setToX(4000)
-                .setToY(1500)
+                .setTo(Routing.Coordinate.newBuilder().setX(4000).setY(1500))
                 .setMode("pt")
-                .setDepartureTime(27126)
+                .setDepartureTimeNs(RoutingServicePH.sToNs(27126))
                 .build();
 
         Routing.Response response = stub.getRoute(request);
@@ -0,0 +1,96 @@
+package org.matsim.routing.raptor;
+
+import org.junit.jupiter.api.Test;
+import routing.Routing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.matsim.routing.ph.RoutingServicePH.nsToS;
+import static org.matsim.routing.ph.RoutingServicePH.sToNs;
+
+class RaptorRouterTest {
+
+    /**
+     * Line 1 runs A - B - C, line 2 D - E. C and D are 100 m apart.
+     */
+    private static RaptorRouter router() {
+        RaptorData.Builder b = new RaptorData.Builder();
+        int a = b.addStop("A", "la", 0, 0);
+        int bb = b.addStop("B", "lb", 1000, 0);
+        int c = b.addStop("C", "lc", 2000, 0);
+        int d = b.addStop("D", "ld", 2000, 100);
+        int e = b.addStop("E", "le", 5000, 100);
+        b.addRoute("line1", "r1", new int[]{a, bb, c}, new int[]{0, 120, 240}, new int[]{0, 120, 240}, new int[]{29400, 28800});
+        b.addRoute("line2", "r2", new int[]{d, e}, new int[]{0, 300}, new int[]{0, 300}, new int[]{29000, 29200});
+        return new RaptorRouter(b.build(new RaptorParameters(1, 1, 200, 100, 150, 0, 0, RaptorParameters.DEFAULT_MAX_TRANSFERS)));
+    }
+
+    private static Routing.Request request(double toY, int departure) {
+        return Routing.Request.newBuilder()
+                .setFromLinkId("from")
+                .setFrom(Routing.Coordinate.newBuilder().setX(0).setY(50))
+                .setToLinkId("to")
+                .setTo(Routing.Coordinate.newBuilder().setX(5000).setY(toY))
+                .setDepartureTimeNs(sToNs(departure))
+                .build();
+    }
+
+    @Test
+    void testTransfer() {
+        RaptorRouter router = router();
+        Routing.Response response = router.route(request(150, 28700));
+
+        assertEquals(5, response.getLegsCount());
+        assertEquals(4, response.getActivitiesCount());
+        assertEquals("walk", response.getLegs(0).getMode());
+        assertEquals("from", response.getLegs(0).getGenericRoute().getStartLink());
+        assertEquals("la", response.getLegs(0).getGenericRoute().getEndLink());
+
+        Routing.PtRouteDescription first = response.getLegs(1).getPtRoute().getInformation();
+        assertEquals("line1", first.getTransitLineId());
+        assertEquals("A", first.getAccessFacilityId());
+        assertEquals("C", first.getEgressFacilityId());
+        assertEquals(28800, nsToS(first.getBoardingTimeNs()));
+        assertEquals(2000, response.getLegs(1).getPtRoute().getDelegate().getDistance(), 1e-9);
+
+        assertEquals("walk", response.getLegs(2).getMode());
+        Routing.PtRouteDescription second = response.getLegs(3).getPtRoute().getInformation();
+        assertEquals("line2", second.getTransitLineId());
+        assertEquals(29200, nsToS(second.getBoardingTimeNs()));
+        assertEquals("to", response.getLegs(4).getGenericRoute().getEndLink());
+
+        // legs are contiguous and end after the egress walk
+        long time = response.getLegs(0).getDepTimeNs();
+        for (Routing.Leg leg : response.getLegsList()) {
+            assertEquals(time, leg.getDepTimeNs());
+            assertEquals("pt", leg.getRoutingMode());
+            time += leg.getTravTimeNs();
+        }
+        assertEquals(29200 + 300 + 50, nsToS(time));
+        assertEquals("pt interaction", response.getActivities(0).getActType());
+        assertEquals("la", response.getActivities(0).getLinkId());
+
+        // the workspace is reset between queries
+        assertEquals(response, router.route(request(150, 28700)));
+    }
+
+    @Test
+    void testExtensionRadius() {
+        // no stop within the search radius of the destination, the nearest one is used
+        Routing.Response response = router().route(request(400, 28700));
+
+        assertEquals(5, response.getLegsCount());
+        assertEquals("E", response.getLegs(3).getPtRoute().getInformation().getEgressFacilityId());
+        assertEquals(300, nsToS(response.getLegs(4).getTravTimeNs()));
+    }
+
+    @Test
+    void testDirectWalk() {
+        // after the last trip of line 1
+        Routing.Response response = router().route(request(50, 29500));
+
+        assertEquals(1, response.getLegsCount());
+        assertEquals(0, response.getActivitiesCount());
+        assertEquals("walk", response.getLegs(0).getMode());
+        assertEquals(5000, nsToS(response.getLegs(0).getTravTimeNs()));
+    }
+}
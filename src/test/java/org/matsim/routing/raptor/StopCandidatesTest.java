@@ -0,0 +1,56 @@
+package org.matsim.routing.raptor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StopCandidatesTest {
+
+    @Test
+    void testSameAsRadiusSearch() {
+        SplittableRandom random = new SplittableRandom(4711);
+        int n = 2000;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int s = 0; s < n; s++) {
+            x[s] = random.nextDouble(-5000, 5000);
+            y[s] = random.nextDouble(-5000, 5000);
+        }
+        StopCandidates candidates = new StopCandidates(x, y, 600, 100);
+        RaptorData.StopGrid grid = new RaptorData.StopGrid(x, y, 600);
+
+        int[] buffer = new int[n];
+        for (int i = 0; i < 5000; i++) {
+            double px = random.nextDouble(-6000, 6000);
+            double py = random.nextDouble(-6000, 6000);
+            double r = i % 2 == 0 ? 600 : random.nextDouble(0, 600);
+
+            int count = candidates.within(px, py, r, buffer);
+            int[] expected = grid.within(px, py, r);
+            if (count < 0) {
+                // only points far outside of the stops are not covered
+                assertEquals(0, expected.length);
+                continue;
+            }
+            int[] actual = Arrays.copyOf(buffer, count);
+            Arrays.sort(actual);
+            Arrays.sort(expected);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void testNotCovered() {
+        StopCandidates candidates = new StopCandidates(new double[]{0, 1000}, new double[]{0, 0}, 500, 100);
+        int[] buffer = new int[2];
+
+        assertEquals(1, candidates.within(100, 0, 500, buffer));
+        assertEquals(0, buffer[0]);
+        assertEquals(0, candidates.within(500, 400, 300, buffer));
+        assertEquals(-1, candidates.within(100, 0, 800, buffer));
+        assertEquals(-1, candidates.within(3000, 0, 500, buffer));
+    }
+}